@@ -0,0 +1,85 @@
+package sc.fiji.tools.benchmarks;
+
+import com.google.gson.JsonParser;
+import ij.IJ;
+import ij.ImagePlus;
+import ij.macro.Interpreter;
+import net.imagej.ImageJ;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sc.fiji.tools.FijiTools;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queries of the opened images, with N synthetic images opened in batch mode (no window)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CurrentStateBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    int nImages;
+
+    ImageJ ij;
+
+    FijiTools tools;
+
+    long version;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ij = new ImageJ();
+        Interpreter.batchMode = true;
+        for (int i = 0; i < nImages; i++) {
+            ImagePlus imp = IJ.createImage("image_" + i, "16-bit ramp", 64, 64, 2, 5, 3);
+            imp.show();
+        }
+        // Created after the images, which are then all known
+        tools = new FijiTools(ij, true);
+        version = JsonParser.parseString(tools.getStateSince(0)).getAsJsonObject().get("version").getAsLong();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Interpreter.batchMode = false;
+        tools.dispose();
+        ij.context().dispose();
+    }
+
+    @Benchmark
+    public String currentState() {
+        return tools.getCurrentState();
+    }
+
+    /**
+     * Nothing changed: the delta is empty
+     */
+    @Benchmark
+    public String stateSinceLastVersion() {
+        return tools.getStateSince(version);
+    }
+
+    /**
+     * Statistics are cached, after the first iteration they are only serialized
+     */
+    @Benchmark
+    public String currentStateWithStatistics() {
+        return tools.getCurrentState(true);
+    }
+}
@@ -0,0 +1,45 @@
+package sc.fiji.tools.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Script execution: warm (the compiled script is cached) and cold (each script is new, and compiled)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecuteGroovyBenchmark {
+
+    static final String SCRIPT = "def sum = 0\nfor (int i = 0; i < 1000; i++) sum += i\nreturn sum\n";
+
+    long counter = 0;
+
+    @Benchmark
+    public String warm(FijiToolsState state) {
+        return state.tools.executeGroovy(SCRIPT);
+    }
+
+    @Benchmark
+    public String cold(FijiToolsState state) {
+        // A different comment makes a different script, which misses the script cache
+        return state.tools.executeGroovy("// " + (counter++) + "\n" + SCRIPT);
+    }
+
+    @Benchmark
+    public String fencedWarm(FijiToolsState state) {
+        return state.tools.executeGroovy("```groovy\n" + SCRIPT + "```");
+    }
+}
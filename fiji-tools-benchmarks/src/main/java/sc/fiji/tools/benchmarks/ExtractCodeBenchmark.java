@@ -0,0 +1,37 @@
+package sc.fiji.tools.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sc.fiji.tools.FijiTools;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExtractCodeBenchmark {
+
+    String plain = "import ij.IJ\nIJ.log('hello')\nreturn 42\n";
+
+    String fenced = "```groovy\n" + plain + "```";
+
+    @Benchmark
+    public String extractPlainCode() {
+        return FijiTools.extractCode(plain);
+    }
+
+    @Benchmark
+    public String extractFencedCode() {
+        return FijiTools.extractCode(fenced);
+    }
+}
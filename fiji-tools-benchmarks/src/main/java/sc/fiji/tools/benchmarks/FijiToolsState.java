@@ -0,0 +1,32 @@
+package sc.fiji.tools.benchmarks;
+
+import net.imagej.ImageJ;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import sc.fiji.tools.FijiTools;
+
+/**
+ * An ImageJ context and a headless FijiTools instance under test
+ */
+@State(Scope.Benchmark)
+public class FijiToolsState {
+
+    public ImageJ ij;
+
+    public FijiTools tools;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        ij = new ImageJ();
+        tools = new FijiTools(ij, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        tools.dispose();
+        ij.context().dispose();
+    }
+}
@@ -0,0 +1,69 @@
+package sc.fiji.tools.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.scijava.command.Command;
+import sc.fiji.tools.BuildMDForLLM;
+import sc.fiji.tools.CommandDescriptor;
+import sc.fiji.tools.CommandIndex;
+import sc.fiji.tools.ImageJInvestigator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Documentation of commands for LLMs, from the command index
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InvestigatorBenchmark {
+
+    static final String PACKAGE = "net.imagej";
+
+    static final int N_COMMANDS = 50;
+
+    List<Class<? extends Command>> commands = new ArrayList<>();
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        for (CommandDescriptor command : CommandIndex.getInstance().getCommands(PACKAGE)) {
+            if (commands.size() == N_COMMANDS) break;
+            try {
+                commands.add((Class<? extends Command>) Class.forName(command.getClassName()));
+            } catch (ClassNotFoundException | LinkageError e) {
+                // Not loadable in this classpath
+            }
+        }
+    }
+
+    @Benchmark
+    public void toJson(Blackhole blackhole) {
+        for (Class<? extends Command> command : commands) blackhole.consume(ImageJInvestigator.toJson(command));
+    }
+
+    @Benchmark
+    public void toMd(Blackhole blackhole) {
+        for (Class<? extends Command> command : commands) blackhole.consume(ImageJInvestigator.toMd(command));
+    }
+
+    @Benchmark
+    public String commandsInfos() {
+        return BuildMDForLLM.getCommandsInfos(PACKAGE);
+    }
+}
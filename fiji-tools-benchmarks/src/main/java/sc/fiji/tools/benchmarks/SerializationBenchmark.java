@@ -0,0 +1,111 @@
+package sc.fiji.tools.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sc.fiji.tools.FijiTools;
+import sc.fiji.tools.ResultSerializer;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of execution results returning large objects
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"100", "10000", "1000000"})
+    int size;
+
+    public static class Measure {
+        String label;
+        double area;
+        double mean;
+        int[] bounds;
+    }
+
+    FijiTools.ExecutionResult doubles;
+
+    FijiTools.ExecutionResult objects;
+
+    FijiTools.ExecutionResult map;
+
+    final ResultSerializer serializer = new ResultSerializer();
+
+    final ResultSerializer unbounded = new ResultSerializer(Integer.MAX_VALUE, Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    @Setup
+    public void setup() {
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) values[i] = Math.sin(i);
+        doubles = result(values);
+
+        List<Measure> measures = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Measure m = new Measure();
+            m.label = "roi_" + i;
+            m.area = i * 1.5;
+            m.mean = Math.cos(i);
+            m.bounds = new int[]{i, i, 10, 10};
+            measures.add(m);
+        }
+        objects = result(measures);
+
+        Map<String, Double> entries = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) entries.put("key_" + i, (double) i);
+        map = result(entries);
+    }
+
+    static FijiTools.ExecutionResult result(Object o) {
+        FijiTools.ExecutionResult result = new FijiTools.ExecutionResult();
+        result.executionSuccess = true;
+        result.returnedObject = o;
+        result.returnedObjectClass = o.getClass().getName();
+        return result;
+    }
+
+    @Benchmark
+    public String doubleArray() {
+        return serializer.toJson(doubles);
+    }
+
+    @Benchmark
+    public String objectList() {
+        return serializer.toJson(objects);
+    }
+
+    @Benchmark
+    public String stringMap() {
+        return serializer.toJson(map);
+    }
+
+    @Benchmark
+    public String objectListCompact() {
+        return serializer.compact().toJson(objects);
+    }
+
+    /**
+     * Without caps, everything is written
+     */
+    @Benchmark
+    public String objectListUnbounded() {
+        return unbounded.toJson(objects);
+    }
+}
@@ -0,0 +1,197 @@
+package sc.fiji.tools;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes CBOR (RFC 8949) into a {@link DirectBufferOutput}.
+ *
+ * Objects and arrays are written with indefinite lengths, since their size is only known once
+ * written. Arrays of primitive numbers are written as typed arrays (RFC 8746): a tag giving the
+ * element type, followed by the little endian elements as a single byte string, which decoders
+ * can map to a numpy array without parsing each number.
+ */
+public class CborWriter implements StructuredWriter {
+
+    static final int MAJOR_UNSIGNED = 0;
+    static final int MAJOR_NEGATIVE = 1;
+    static final int MAJOR_BYTES = 2;
+    static final int MAJOR_TEXT = 3;
+    static final int MAJOR_TAG = 6;
+
+    static final int INDEFINITE_ARRAY = 0x9F;
+    static final int INDEFINITE_MAP = 0xBF;
+    static final int BREAK = 0xFF;
+    static final int FALSE = 0xF4;
+    static final int TRUE = 0xF5;
+    static final int NULL = 0xF6;
+    static final int FLOAT32 = 0xFA;
+    static final int FLOAT64 = 0xFB;
+
+    /**
+     * RFC 8746 tags of little endian typed arrays
+     */
+    static final int TAG_SINT8 = 72;
+    static final int TAG_UINT16_LE = 69;
+    static final int TAG_SINT16_LE = 77;
+    static final int TAG_SINT32_LE = 78;
+    static final int TAG_SINT64_LE = 79;
+    static final int TAG_FLOAT32_LE = 85;
+    static final int TAG_FLOAT64_LE = 86;
+
+    final DirectBufferOutput out;
+
+    final int start;
+
+    public CborWriter(DirectBufferOutput out) {
+        this.out = out;
+        this.start = out.size();
+    }
+
+    void head(int major, long value) {
+        int type = major << 5;
+        if (value < 24) {
+            out.write(type | (int) value);
+        } else if (value < 0x100) {
+            out.write(type | 24);
+            out.write((int) value);
+        } else if (value < 0x10000) {
+            out.write(type | 25);
+            out.writeShort((short) value);
+        } else if (value < 0x100000000L) {
+            out.write(type | 26);
+            out.writeInt((int) value);
+        } else {
+            out.write(type | 27);
+            out.writeLong(value);
+        }
+    }
+
+    @Override
+    public StructuredWriter beginObject() {
+        out.write(INDEFINITE_MAP);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endObject() {
+        out.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter beginArray() {
+        out.write(INDEFINITE_ARRAY);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter endArray() {
+        out.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter name(String name) {
+        return text(name);
+    }
+
+    @Override
+    public StructuredWriter value(String value) {
+        if (value == null) return nullValue();
+        return text(value);
+    }
+
+    StructuredWriter text(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        head(MAJOR_TEXT, bytes.length);
+        out.write(bytes, 0, bytes.length);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(Number value) {
+        if (value == null) return nullValue();
+        if ((value instanceof Integer) || (value instanceof Long) || (value instanceof Short) || (value instanceof Byte)
+                || (value instanceof AtomicInteger) || (value instanceof AtomicLong)) {
+            return integer(value.longValue());
+        }
+        if ((value instanceof BigInteger) && (((BigInteger) value).bitLength() < 64)) {
+            return integer(value.longValue());
+        }
+        if (value instanceof Float) {
+            out.write(FLOAT32);
+            out.writeInt(Float.floatToRawIntBits(value.floatValue()));
+            return this;
+        }
+        double d = value.doubleValue();
+        if (!(value instanceof Double) && !(value instanceof BigDecimal) && !(value instanceof BigInteger)
+                && (d == Math.rint(d)) && (Math.abs(d) < (1L << 53))) {
+            // Numbers of unknown type, such as lazily parsed json numbers
+            return integer((long) d);
+        }
+        out.write(FLOAT64);
+        out.writeLong(Double.doubleToRawLongBits(d));
+        return this;
+    }
+
+    StructuredWriter integer(long v) {
+        if (v >= 0) {
+            head(MAJOR_UNSIGNED, v);
+        } else {
+            head(MAJOR_NEGATIVE, -1 - v);
+        }
+        return this;
+    }
+
+    @Override
+    public StructuredWriter value(boolean value) {
+        out.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public StructuredWriter nullValue() {
+        out.write(NULL);
+        return this;
+    }
+
+    @Override
+    public boolean writesPackedArrays() {
+        return true;
+    }
+
+    @Override
+    public StructuredWriter packedArray(Object array, int length) {
+        head(MAJOR_TAG, typedArrayTag(array));
+        head(MAJOR_BYTES, (long) length * DirectBufferOutput.elementSize(array));
+        out.writeLittleEndian(array, length);
+        return this;
+    }
+
+    static int typedArrayTag(Object array) {
+        // Signed as java values, as in json: ImageJ 8 and 16-bit pixels should be read as unsigned
+        if (array instanceof byte[]) return TAG_SINT8;
+        if (array instanceof short[]) return TAG_SINT16_LE;
+        if (array instanceof char[]) return TAG_UINT16_LE;
+        if (array instanceof int[]) return TAG_SINT32_LE;
+        if (array instanceof long[]) return TAG_SINT64_LE;
+        if (array instanceof float[]) return TAG_FLOAT32_LE;
+        if (array instanceof double[]) return TAG_FLOAT64_LE;
+        throw new IllegalArgumentException("Not an array of primitive numbers: " + array.getClass().getName());
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return out.size() - start;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
@@ -0,0 +1,367 @@
+package sc.fiji.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Single pass, parallel scanner of classpath entries (jars and directories).
+ *
+ * Only the header of each class file is read (name, superclass, interfaces and class level
+ * runtime annotations): the scan itself loads no class. Entries are scanned in parallel on a
+ * work-stealing pool, and the result answers subtype and annotation queries for SciJava commands,
+ * SciJava services and ImageJ1 plugins from the same pass. A hierarchy going through a class
+ * outside the scanned entries cannot be resolved from the headers: callers such as
+ * {@link CommandIndex} then load the class.
+ */
+public class ClasspathScanner {
+
+    public static final String COMMAND = "org.scijava.command.Command";
+    public static final String SERVICE = "org.scijava.service.Service";
+    public static final String PLUGIN_ANNOTATION = "org.scijava.plugin.Plugin";
+    public static final String IJ1_PLUGIN = "ij.plugin.PlugIn";
+
+    public static class ClassHeader {
+        public final Path source;
+        public final String name;
+        public final String superName;
+        public final String[] interfaces;
+        public final String[] annotations;
+
+        ClassHeader(Path source, String name, String superName, String[] interfaces, String[] annotations) {
+            this.source = source;
+            this.name = name;
+            this.superName = superName;
+            this.interfaces = interfaces;
+            this.annotations = annotations;
+        }
+
+        public boolean isAnnotatedWith(String annotationName) {
+            for (String annotation : annotations) {
+                if (annotation.equals(annotationName)) return true;
+            }
+            return false;
+        }
+    }
+
+    final int parallelism;
+
+    public ClasspathScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ClasspathScanner(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public ScanResult scan(Collection<Path> classpathEntries) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ClassHeader> headers = pool.submit(() -> classpathEntries.parallelStream()
+                    .flatMap(entry -> scanEntry(entry).stream())
+                    .collect(Collectors.toList())).get();
+            return new ScanResult(headers);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static List<ClassHeader> scanEntry(Path entry) {
+        List<ClassHeader> headers = new ArrayList<>();
+        try {
+            if (Files.isDirectory(entry)) {
+                try (Stream<Path> files = Files.walk(entry)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        if (isScannable(entry.relativize(file).toString().replace('\\', '/'))) {
+                            addHeader(headers, entry, Files.readAllBytes(file));
+                        }
+                    }
+                }
+            } else {
+                try (ZipFile zip = new ZipFile(entry.toFile())) {
+                    Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        ZipEntry zipEntry = entries.nextElement();
+                        if (isScannable(zipEntry.getName())) {
+                            try (InputStream in = zip.getInputStream(zipEntry)) {
+                                addHeader(headers, entry, in.readAllBytes());
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // Unreadable or corrupted entry: it contributes no class
+        }
+        return headers;
+    }
+
+    static boolean isScannable(String path) {
+        return path.endsWith(".class")
+                && !path.endsWith("module-info.class")
+                && !path.endsWith("package-info.class")
+                && !path.startsWith("META-INF/");
+    }
+
+    static void addHeader(List<ClassHeader> headers, Path source, byte[] classFile) {
+        try {
+            headers.add(readHeader(source, classFile));
+        } catch (RuntimeException | IOException e) {
+            // Not a valid class file
+        }
+    }
+
+    /**
+     * Reads the constant pool, the class hierarchy and the class level runtime visible annotations;
+     * fields and methods are skipped
+     */
+    static ClassHeader readHeader(Path source, byte[] classFile) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(classFile);
+        if (buf.getInt() != 0xCAFEBABE) throw new IOException("Not a class file");
+        buf.getShort(); // minor version
+        buf.getShort(); // major version
+        int cpCount = buf.getShort() & 0xFFFF;
+        int[] offsets = new int[cpCount];
+        for (int i = 1; i < cpCount; i++) {
+            byte tag = buf.get();
+            offsets[i] = buf.position();
+            switch (tag) {
+                case 1: // Utf8
+                    buf.position(buf.position() + 2 + (buf.getShort(buf.position()) & 0xFFFF));
+                    break;
+                case 3: case 4: // Integer, Float
+                case 9: case 10: case 11: case 12: // Field, Method, InterfaceMethod refs, NameAndType
+                case 17: case 18: // Dynamic, InvokeDynamic
+                    buf.position(buf.position() + 4);
+                    break;
+                case 5: case 6: // Long, Double: two slots
+                    buf.position(buf.position() + 8);
+                    i++;
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // Class, String, MethodType, Module, Package
+                    buf.position(buf.position() + 2);
+                    break;
+                case 15: // MethodHandle
+                    buf.position(buf.position() + 3);
+                    break;
+                default:
+                    throw new IOException("Unknown constant pool tag " + tag);
+            }
+        }
+        buf.getShort(); // access flags
+        String name = className(classFile, offsets, buf.getShort() & 0xFFFF);
+        int superIndex = buf.getShort() & 0xFFFF;
+        String superName = superIndex == 0 ? null : className(classFile, offsets, superIndex);
+        String[] interfaces = new String[buf.getShort() & 0xFFFF];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = className(classFile, offsets, buf.getShort() & 0xFFFF);
+        }
+        skipMembers(buf); // fields
+        skipMembers(buf); // methods
+        List<String> annotations = new ArrayList<>();
+        int attributesCount = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < attributesCount; i++) {
+            String attributeName = utf8(classFile, offsets, buf.getShort() & 0xFFFF);
+            int length = buf.getInt();
+            int end = buf.position() + length;
+            if ("RuntimeVisibleAnnotations".equals(attributeName)) {
+                int n = buf.getShort() & 0xFFFF;
+                for (int a = 0; a < n; a++) {
+                    String descriptor = utf8(classFile, offsets, buf.getShort(buf.position()) & 0xFFFF);
+                    annotations.add(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+                    skipAnnotation(buf);
+                }
+            }
+            buf.position(end);
+        }
+        return new ClassHeader(source, name, superName, interfaces, annotations.toArray(new String[0]));
+    }
+
+    static void skipMembers(ByteBuffer buf) {
+        int count = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            buf.position(buf.position() + 6); // access flags, name, descriptor
+            int attributesCount = buf.getShort() & 0xFFFF;
+            for (int a = 0; a < attributesCount; a++) {
+                buf.getShort(); // name
+                int length = buf.getInt();
+                buf.position(buf.position() + length);
+            }
+        }
+    }
+
+    static void skipAnnotation(ByteBuffer buf) {
+        buf.getShort(); // type
+        int pairs = buf.getShort() & 0xFFFF;
+        for (int i = 0; i < pairs; i++) {
+            buf.getShort(); // element name
+            skipElementValue(buf);
+        }
+    }
+
+    static void skipElementValue(ByteBuffer buf) {
+        char tag = (char) buf.get();
+        switch (tag) {
+            case 'e':
+                buf.position(buf.position() + 4);
+                break;
+            case '@':
+                skipAnnotation(buf);
+                break;
+            case '[':
+                int n = buf.getShort() & 0xFFFF;
+                for (int i = 0; i < n; i++) skipElementValue(buf);
+                break;
+            default: // constants and class
+                buf.position(buf.position() + 2);
+        }
+    }
+
+    static String className(byte[] classFile, int[] offsets, int classIndex) throws IOException {
+        int nameIndex = ((classFile[offsets[classIndex]] & 0xFF) << 8) | (classFile[offsets[classIndex] + 1] & 0xFF);
+        return utf8(classFile, offsets, nameIndex).replace('/', '.');
+    }
+
+    static String utf8(byte[] classFile, int[] offsets, int index) throws IOException {
+        int offset = offsets[index];
+        int length = ((classFile[offset] & 0xFF) << 8) | (classFile[offset + 1] & 0xFF);
+        return new DataInputStream(new ByteArrayInputStream(classFile, offset, length + 2)).readUTF();
+    }
+
+    public static class ScanResult {
+
+        final Map<String, ClassHeader> headers = new HashMap<>();
+
+        final Map<String, List<String>> directSubTypes = new HashMap<>();
+
+        final Map<String, Set<String>> subTypesCache = new HashMap<>();
+
+        ScanResult(List<ClassHeader> scanned) {
+            for (ClassHeader header : scanned) {
+                if (headers.putIfAbsent(header.name, header) != null) continue; // first on the classpath wins
+                if (header.superName != null) {
+                    directSubTypes.computeIfAbsent(header.superName, k -> new ArrayList<>()).add(header.name);
+                }
+                for (String itf : header.interfaces) {
+                    directSubTypes.computeIfAbsent(itf, k -> new ArrayList<>()).add(header.name);
+                }
+            }
+        }
+
+        public Collection<ClassHeader> getHeaders() {
+            return Collections.unmodifiableCollection(headers.values());
+        }
+
+        public ClassHeader getHeader(String className) {
+            return headers.get(className);
+        }
+
+        /**
+         * @return all classes of the scan which extend or implement the type, directly or not
+         */
+        public synchronized Set<String> getSubTypesOf(String typeName) {
+            return subTypesCache.computeIfAbsent(typeName, root -> {
+                Set<String> found = new HashSet<>();
+                Deque<String> toVisit = new ArrayDeque<>();
+                toVisit.add(root);
+                while (!toVisit.isEmpty()) {
+                    for (String sub : directSubTypes.getOrDefault(toVisit.poll(), Collections.emptyList())) {
+                        if (found.add(sub)) toVisit.add(sub);
+                    }
+                }
+                return found;
+            });
+        }
+
+        /**
+         * @return true or false if the hierarchy of the class is fully known from the scan,
+         * null if it goes through a class which was not scanned (the class has to be loaded to know)
+         */
+        public Boolean isSubTypeOf(String className, String typeName) {
+            if (getSubTypesOf(typeName).contains(className)) return true;
+            Deque<String> toVisit = new ArrayDeque<>();
+            toVisit.add(className);
+            Set<String> visited = new HashSet<>();
+            while (!toVisit.isEmpty()) {
+                String current = toVisit.poll();
+                if (!visited.add(current)) continue;
+                ClassHeader header = headers.get(current);
+                if (header == null) {
+                    if (!isPlatformClass(current)) return null;
+                    continue;
+                }
+                if (header.superName != null) toVisit.add(header.superName);
+                Collections.addAll(toVisit, header.interfaces);
+            }
+            return false;
+        }
+
+        public List<ClassHeader> getAnnotatedWith(String annotationName) {
+            return headers.values().stream()
+                    .filter(h -> h.isAnnotatedWith(annotationName))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * @return SciJava commands of the scan: classes annotated with @Plugin implementing Command
+         */
+        public List<String> getCommands() {
+            return annotatedSubTypes(COMMAND);
+        }
+
+        /**
+         * @return SciJava services of the scan: classes annotated with @Plugin implementing Service
+         */
+        public List<String> getServices() {
+            return annotatedSubTypes(SERVICE);
+        }
+
+        /**
+         * @return ImageJ1 plugins of the scan: classes implementing ij.plugin.PlugIn
+         */
+        public List<String> getIJ1Plugins() {
+            return getSubTypesOf(IJ1_PLUGIN).stream().sorted().collect(Collectors.toList());
+        }
+
+        List<String> annotatedSubTypes(String typeName) {
+            Set<String> subTypes = getSubTypesOf(typeName);
+            return getAnnotatedWith(PLUGIN_ANNOTATION).stream()
+                    .map(h -> h.name)
+                    .filter(subTypes::contains)
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static boolean isPlatformClass(String className) {
+        return className.startsWith("java.") || className.startsWith("javax.")
+                || className.startsWith("jdk.") || className.startsWith("sun.");
+    }
+}
@@ -0,0 +1,165 @@
+package sc.fiji.tools;
+
+import org.scijava.Context;
+import org.scijava.ItemIO;
+import org.scijava.ItemVisibility;
+import org.scijava.command.DynamicCommand;
+import org.scijava.command.InteractiveCommand;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.Service;
+import org.scijava.widget.Button;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable description of a SciJava command: its {@link Plugin} annotation and its documented
+ * {@link Parameter} fields, collected along the whole superclass chain.
+ *
+ * Descriptors are computed once per class (see {@link #of(Class)}), and are the single model read by
+ * the JSON and markdown renderers of {@link CommandRenderer} and stored in the {@link CommandIndex}.
+ */
+public final class CommandDescriptor {
+
+    private static final ClassValue<CommandDescriptor> DESCRIPTORS = new ClassValue<CommandDescriptor>() {
+        @Override
+        protected CommandDescriptor computeValue(Class<?> type) {
+            return new CommandDescriptor(type);
+        }
+    };
+
+    /**
+     * @return the descriptor of the class, computed on first call and memoized afterwards
+     */
+    public static CommandDescriptor of(Class<?> commandClass) {
+        return DESCRIPTORS.get(commandClass);
+    }
+
+    public static final class ParameterDescriptor {
+        private final String name;
+        private final String type;
+        private final String label;
+        private final String description;
+
+        ParameterDescriptor(Field f, Parameter p) {
+            this.name = f.getName();
+            this.type = f.getType().getSimpleName();
+            this.label = p.label();
+            this.description = p.description();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return simple name of the field type
+         */
+        public String getType() {
+            return type;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+    }
+
+    private final String className;
+    private final boolean plugin;
+    private final String label;
+    private final String description;
+    private final boolean interactive;
+    private final List<ParameterDescriptor> inputs;
+    private final List<ParameterDescriptor> outputs;
+
+    private CommandDescriptor(Class<?> commandClass) {
+        className = commandClass.getName();
+        Plugin p = commandClass.getAnnotation(Plugin.class);
+        plugin = p != null;
+        label = plugin ? p.label() : "";
+        description = plugin ? p.description() : "";
+        interactive = InteractiveCommand.class.isAssignableFrom(commandClass)
+                || DynamicCommand.class.isAssignableFrom(commandClass);
+
+        List<ParameterDescriptor> in = new ArrayList<>();
+        List<ParameterDescriptor> out = new ArrayList<>();
+        Set<String> names = new HashSet<>(); // A field shadows the fields with the same name in superclasses
+        for (Class<?> c = commandClass; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                Parameter param = f.getAnnotation(Parameter.class);
+                if ((param == null) || isSkippable(f) || !names.add(f.getName())) continue;
+                ParameterDescriptor descriptor = new ParameterDescriptor(f, param);
+                if (((param.type() == ItemIO.INPUT) || (param.type() == ItemIO.BOTH))
+                        && (param.visibility() != ItemVisibility.MESSAGE)) {
+                    in.add(descriptor);
+                }
+                if ((param.type() == ItemIO.OUTPUT) || (param.type() == ItemIO.BOTH)) {
+                    out.add(descriptor);
+                }
+            }
+        }
+        in.sort(Comparator.comparing(ParameterDescriptor::getName));
+        out.sort(Comparator.comparing(ParameterDescriptor::getName));
+        inputs = in;
+        outputs = out;
+    }
+
+    /**
+     * Services, context and buttons are not documented
+     */
+    private static boolean isSkippable(Field f) {
+        return Service.class.isAssignableFrom(f.getType())
+                || f.getType().equals(Context.class)
+                || f.getType().equals(Button.class);
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    /**
+     * @return true if the class is annotated with {@link Plugin}; commands without it are not documented
+     */
+    public boolean isPlugin() {
+        return plugin;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return true for {@link InteractiveCommand}s and {@link DynamicCommand}s
+     */
+    public boolean isInteractive() {
+        return interactive;
+    }
+
+    /**
+     * @return visible input parameters, sorted by name
+     */
+    public List<ParameterDescriptor> getInputs() {
+        return Collections.unmodifiableList(inputs);
+    }
+
+    /**
+     * @return output parameters, sorted by name
+     */
+    public List<ParameterDescriptor> getOutputs() {
+        return Collections.unmodifiableList(outputs);
+    }
+}
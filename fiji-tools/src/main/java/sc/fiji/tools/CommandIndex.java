@@ -0,0 +1,268 @@
+package sc.fiji.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import ij.plugin.PlugIn;
+import org.reflections.util.ClasspathHelper;
+import org.scijava.command.Command;
+import org.scijava.service.Service;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Index of all SciJava {@link Command}s found on the classpath, with their {@link CommandDescriptor},
+ * as well as of SciJava services and ImageJ1 plugins, collected from a single {@link ClasspathScanner} pass.
+ *
+ * Classes are loaded (without initialization) while indexing: every command, to read its parameters,
+ * and every class whose hierarchy goes through a class outside the scanned entries, to check its type.
+ *
+ * The index is persisted on disk, keyed by jar path, size and modification time: only the jars
+ * which changed since the index was written are scanned again. Classpath directories (used during
+ * development) are always scanned and never persisted.
+ */
+public class CommandIndex {
+
+    public static final int FORMAT_VERSION = 5;
+
+    public static final Path DEFAULT_INDEX_FILE =
+            Paths.get(System.getProperty("user.home"), ".fiji-tools", "command-index.json");
+
+    static final Gson GSON = new Gson();
+
+    private static CommandIndex instance;
+
+    /**
+     * @return the index of the current classpath, persisted in {@link #DEFAULT_INDEX_FILE}, refreshed on first call
+     */
+    public static synchronized CommandIndex getInstance() {
+        if (instance == null) {
+            instance = new CommandIndex(DEFAULT_INDEX_FILE, CommandIndex.class.getClassLoader());
+            instance.refresh();
+        }
+        return instance;
+    }
+
+    static class JarEntry {
+        long size;
+        long lastModified;
+        List<CommandDescriptor> commands = new ArrayList<>();
+        List<String> services = new ArrayList<>();
+        List<String> ij1Plugins = new ArrayList<>();
+    }
+
+    static class IndexFile {
+        int version = FORMAT_VERSION;
+        Map<String, JarEntry> jars = new HashMap<>();
+    }
+
+    final Path indexFile;
+
+    final ClassLoader classLoader;
+
+    Map<String, JarEntry> jars = new HashMap<>();
+
+    volatile List<CommandDescriptor> commands = new ArrayList<>();
+
+    volatile List<String> services = new ArrayList<>();
+
+    volatile List<String> ij1Plugins = new ArrayList<>();
+
+    public CommandIndex(Path indexFile, ClassLoader classLoader) {
+        this.indexFile = indexFile;
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * Brings the index up to date with the classpath: jars which are new or whose size or
+     * modification time changed are scanned, in a single parallel pass, the others are read
+     * from the index file
+     */
+    public synchronized void refresh() {
+        Map<String, JarEntry> persisted = load();
+        Map<String, JarEntry> current = new HashMap<>();
+        List<Path> toScan = new ArrayList<>();
+
+        for (Path entry : getClasspathEntries()) {
+            if (Files.isDirectory(entry)) {
+                toScan.add(entry);
+                continue;
+            }
+            try {
+                long size = Files.size(entry);
+                long lastModified = Files.getLastModifiedTime(entry).toMillis();
+                JarEntry jar = persisted.get(key(entry));
+                if ((jar == null) || (jar.size != size) || (jar.lastModified != lastModified)) {
+                    jar = new JarEntry();
+                    jar.size = size;
+                    jar.lastModified = lastModified;
+                    toScan.add(entry);
+                }
+                current.put(key(entry), jar);
+            } catch (IOException e) {
+                // Vanished or unreadable jar: not indexed
+            }
+        }
+
+        List<JarEntry> directories = new ArrayList<>();
+        if (!toScan.isEmpty()) {
+            ClasspathScanner.ScanResult scanResult = new ClasspathScanner().scan(toScan);
+            Map<Path, List<ClasspathScanner.ClassHeader>> headersPerEntry = scanResult.getHeaders().stream()
+                    .collect(Collectors.groupingBy(h -> h.source));
+            for (Path entry : toScan) {
+                JarEntry jar = Files.isDirectory(entry) ? new JarEntry() : current.get(key(entry));
+                fill(jar, headersPerEntry.getOrDefault(entry, new ArrayList<>()), scanResult);
+                if (Files.isDirectory(entry)) directories.add(jar);
+            }
+        }
+
+        boolean jarsScanned = toScan.stream().anyMatch(entry -> !Files.isDirectory(entry));
+        if (jarsScanned || !current.keySet().equals(persisted.keySet())) {
+            save(current);
+        }
+        jars = current;
+
+        List<JarEntry> all = new ArrayList<>(current.values());
+        all.addAll(directories);
+        List<CommandDescriptor> allCommands = new ArrayList<>();
+        List<String> allServices = new ArrayList<>();
+        List<String> allIJ1Plugins = new ArrayList<>();
+        for (JarEntry jar : all) {
+            allCommands.addAll(jar.commands);
+            allServices.addAll(jar.services);
+            allIJ1Plugins.addAll(jar.ij1Plugins);
+        }
+        allCommands.sort(Comparator.comparing(CommandDescriptor::getClassName));
+        allServices.sort(Comparator.naturalOrder());
+        allIJ1Plugins.sort(Comparator.naturalOrder());
+        commands = allCommands;
+        services = allServices;
+        ij1Plugins = allIJ1Plugins;
+    }
+
+    static String key(Path entry) {
+        return entry.toAbsolutePath().toString();
+    }
+
+    /**
+     * @param packagePath package prefix, as used by {@link org.reflections.Reflections#Reflections(Object...)}
+     * @return the indexed commands whose class name starts with the package prefix
+     */
+    public List<CommandDescriptor> getCommands(String packagePath) {
+        return commands.stream()
+                .filter(c -> c.getClassName().startsWith(packagePath))
+                .collect(Collectors.toList());
+    }
+
+    public List<CommandDescriptor> getAllCommands() {
+        return commands;
+    }
+
+    /**
+     * @return the names of the SciJava services whose class name starts with the package prefix
+     */
+    public List<String> getServices(String packagePath) {
+        return services.stream().filter(c -> c.startsWith(packagePath)).collect(Collectors.toList());
+    }
+
+    /**
+     * @return the names of the ImageJ1 plugins (implementing ij.plugin.PlugIn) whose class name
+     * starts with the package prefix
+     */
+    public List<String> getIJ1Plugins(String packagePath) {
+        return ij1Plugins.stream().filter(c -> c.startsWith(packagePath)).collect(Collectors.toList());
+    }
+
+    /**
+     * Fills the entry from the class headers of one classpath entry. Commands are loaded
+     * (without initialization) to read their parameters, as well as the classes whose hierarchy
+     * goes through classes that were not part of the scan.
+     */
+    void fill(JarEntry jar, List<ClasspathScanner.ClassHeader> headers, ClasspathScanner.ScanResult scanResult) {
+        for (ClasspathScanner.ClassHeader header : headers) {
+            if (header.isAnnotatedWith(ClasspathScanner.PLUGIN_ANNOTATION)) {
+                if (isSubTypeOf(header.name, Command.class, scanResult)) {
+                    try {
+                        jar.commands.add(CommandDescriptor.of(Class.forName(header.name, false, classLoader)));
+                    } catch (ClassNotFoundException | LinkageError e) {
+                        // Class not loadable in this classpath: not usable as a command either
+                    }
+                } else if (isSubTypeOf(header.name, Service.class, scanResult)) {
+                    jar.services.add(header.name);
+                }
+            }
+            if (isSubTypeOf(header.name, PlugIn.class, scanResult)) {
+                jar.ij1Plugins.add(header.name);
+            }
+        }
+    }
+
+    boolean isSubTypeOf(String className, Class<?> type, ClasspathScanner.ScanResult scanResult) {
+        Boolean known = scanResult.isSubTypeOf(className, type.getName());
+        if (known != null) return known;
+        try {
+            return type.isAssignableFrom(Class.forName(className, false, classLoader));
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static List<Path> getClasspathEntries() {
+        Set<URL> urls = new LinkedHashSet<>();
+        urls.addAll(ClasspathHelper.forJavaClassPath());
+        urls.addAll(ClasspathHelper.forClassLoader());
+        List<Path> entries = new ArrayList<>();
+        for (URL url : urls) {
+            if (!"file".equals(url.getProtocol())) continue;
+            try {
+                Path path = Paths.get(url.toURI());
+                if (Files.exists(path)) entries.add(path);
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // Not a local file
+            }
+        }
+        return entries;
+    }
+
+    Map<String, JarEntry> load() {
+        if (!Files.exists(indexFile)) return new HashMap<>();
+        try (Reader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            IndexFile file = GSON.fromJson(reader, IndexFile.class);
+            if ((file == null) || (file.version != FORMAT_VERSION) || (file.jars == null)) return new HashMap<>();
+            return file.jars;
+        } catch (IOException | JsonParseException e) {
+            return new HashMap<>();
+        }
+    }
+
+    void save(Map<String, JarEntry> jars) {
+        IndexFile file = new IndexFile();
+        file.jars = jars;
+        try {
+            Files.createDirectories(indexFile.getParent());
+            Path tmp = Files.createTempFile(indexFile.getParent(), "command-index", ".tmp");
+            try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                GSON.toJson(file, writer);
+            }
+            Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Could not save the command index in " + indexFile + ": " + e.getMessage());
+        }
+    }
+}
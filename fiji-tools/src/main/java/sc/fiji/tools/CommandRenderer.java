@@ -0,0 +1,121 @@
+package sc.fiji.tools;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.util.List;
+
+/**
+ * Renders {@link CommandDescriptor}s as JSON or as markdown, for LLMs
+ */
+public class CommandRenderer {
+
+    /**
+     * @return a json array containing the description of the command, or an empty array if it is not a plugin
+     */
+    public static String toJson(CommandDescriptor command) {
+        JsonArray jsonArray = new JsonArray();
+        if (command.isPlugin()) {
+            JsonObject jsonObject = new JsonObject();
+
+            // Add the name and description first
+            jsonObject.addProperty("name", command.getClassName());
+            if (!command.getDescription().isEmpty()) {
+                jsonObject.addProperty("description", command.getDescription());
+            }
+            jsonObject.add("input", toJson(command.getInputs()));
+            jsonObject.add("output", toJson(command.getOutputs()));
+            jsonArray.add(jsonObject);
+        }
+        return ResultSerializer.GSON.toJson(jsonArray);
+    }
+
+    private static JsonArray toJson(List<CommandDescriptor.ParameterDescriptor> parameters) {
+        JsonArray array = new JsonArray();
+        parameters.forEach(p -> {
+            JsonObject fieldNode = new JsonObject();
+            fieldNode.addProperty("type", p.getType());
+            fieldNode.addProperty("name", p.getName());
+            if (!p.getLabel().isEmpty()) {
+                fieldNode.addProperty("label", p.getLabel());
+            }
+            if (!p.getDescription().isEmpty()) {
+                fieldNode.addProperty("description", p.getDescription());
+            }
+            array.add(fieldNode);
+        });
+        return array;
+    }
+
+    /**
+     * @return a compact json array (no whitespace) of commands, parameters being written as "Type name" strings
+     */
+    public static String toCompactJson(List<CommandDescriptor> commands) {
+        JsonArray jsonArray = new JsonArray();
+        commands.forEach(command -> {
+            JsonObject jsonObject = new JsonObject();
+            jsonObject.addProperty("name", command.getClassName());
+            if (!command.getLabel().isEmpty()) {
+                jsonObject.addProperty("label", command.getLabel());
+            }
+            if (!command.getDescription().isEmpty()) {
+                jsonObject.addProperty("description", command.getDescription());
+            }
+            jsonObject.add("input", toSignatures(command.getInputs()));
+            jsonObject.add("output", toSignatures(command.getOutputs()));
+            jsonArray.add(jsonObject);
+        });
+        return jsonArray.toString();
+    }
+
+    private static JsonArray toSignatures(List<CommandDescriptor.ParameterDescriptor> parameters) {
+        JsonArray array = new JsonArray();
+        parameters.forEach(p -> array.add(p.getType() + " " + p.getName()));
+        return array;
+    }
+
+    /**
+     * @return a summary of a SciJava command as a piece of markdown formatted text, or an empty string if it is not a plugin
+     */
+    public static String toMd(CommandDescriptor command) {
+        StringBuilder infos = new StringBuilder();
+        if (!command.isPlugin()) return "";
+
+        infos.append("# " + command.getClassName() + "\n");
+        if (!command.getLabel().isEmpty()) {
+            infos.append("Label: " + command.getLabel() + "\n");
+        }
+        if (!command.getDescription().isEmpty()) {
+            infos.append("Description: " + command.getDescription() + "\n");
+        }
+
+        infos.append("## Input\n");
+        command.getInputs().forEach(p -> {
+            infos.append(p.getType()+" " + p.getName() + ";");
+            appendLabelAndDescription(infos, p);
+            infos.append("\n");
+        });
+
+        infos.append("## Output\n");
+        command.getOutputs().forEach(p -> {
+            infos.append(p.getType()+" " + p.getName() + ";");
+            appendLabelAndDescription(infos, p);
+            infos.append("\n");
+        });
+
+        infos.append("\n");
+        return infos.toString();
+    }
+
+    private static void appendLabelAndDescription(StringBuilder infos, CommandDescriptor.ParameterDescriptor p) {
+        if ((!p.getLabel().isEmpty())||(!p.getDescription().isEmpty())) {
+            infos.append(" //");
+        }
+        if (!p.getLabel().isEmpty()) {
+            infos.append(" Label: "+p.getLabel() + ";");
+        }
+        if (!p.getDescription().isEmpty()) {
+            infos.append(" Description: "+p.getDescription() + ";");
+        }
+    }
+}
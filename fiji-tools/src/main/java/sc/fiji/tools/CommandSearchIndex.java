@@ -0,0 +1,159 @@
+package sc.fiji.tools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * In-memory inverted index over command metadata, ranked with BM25.
+ *
+ * Indexed text: class name (split on packages and camel case), plugin label and description,
+ * parameter names, labels and descriptions. Postings are stored as primitive arrays
+ * (document ids and term frequencies), and queries only touch the postings of their terms.
+ */
+public class CommandSearchIndex {
+
+    static final float K1 = 1.2f;
+
+    static final float B = 0.75f;
+
+    final List<CommandDescriptor> documents;
+
+    final Map<String, int[][]> postings; // term -> {document ids, term frequencies}
+
+    final int[] documentLengths;
+
+    final float averageDocumentLength;
+
+    public CommandSearchIndex(List<CommandDescriptor> commands) {
+        documents = new ArrayList<>(commands);
+        documentLengths = new int[documents.size()];
+
+        Map<String, PostingBuilder> builders = new HashMap<>();
+        long totalLength = 0;
+        for (int doc = 0; doc < documents.size(); doc++) {
+            List<String> terms = tokenize(text(documents.get(doc)));
+            documentLengths[doc] = terms.size();
+            totalLength += terms.size();
+            for (String term : terms) {
+                builders.computeIfAbsent(term, t -> new PostingBuilder()).add(doc);
+            }
+        }
+        averageDocumentLength = documents.isEmpty() ? 0 : (float) totalLength / documents.size();
+
+        postings = new HashMap<>(builders.size() * 2);
+        builders.forEach((term, builder) -> postings.put(term, builder.toArrays()));
+    }
+
+    /**
+     * @return the k best matching commands, best first; repeating a word in the query does not change the ranking
+     */
+    public List<CommandDescriptor> search(String query, int k) {
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(tokenize(query)));
+        if (terms.isEmpty() || documents.isEmpty() || (k <= 0)) return new ArrayList<>();
+
+        float[] scores = new float[documents.size()];
+        int n = documents.size();
+        for (String term : terms) {
+            int[][] posting = postings.get(term);
+            if (posting == null) continue;
+            int[] docs = posting[0];
+            int[] frequencies = posting[1];
+            float idf = (float) Math.log(1 + (n - docs.length + 0.5) / (docs.length + 0.5));
+            for (int i = 0; i < docs.length; i++) {
+                int doc = docs[i];
+                float tf = frequencies[i];
+                float norm = K1 * (1 - B + B * documentLengths[doc] / averageDocumentLength);
+                scores[doc] += idf * tf * (K1 + 1) / (tf + norm);
+            }
+        }
+
+        // Partial selection of the top k with a small sorted array
+        int[] top = new int[Math.min(k, n)];
+        int size = 0;
+        for (int doc = 0; doc < n; doc++) {
+            if (scores[doc] <= 0) continue;
+            if ((size == top.length) && (scores[doc] <= scores[top[size - 1]])) continue;
+            int pos = (size < top.length) ? size++ : size - 1;
+            while ((pos > 0) && (scores[top[pos - 1]] < scores[doc])) {
+                top[pos] = top[pos - 1];
+                pos--;
+            }
+            top[pos] = doc;
+        }
+        List<CommandDescriptor> results = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            results.add(documents.get(top[i]));
+        }
+        return results;
+    }
+
+    public int size() {
+        return documents.size();
+    }
+
+    static String text(CommandDescriptor command) {
+        StringBuilder text = new StringBuilder();
+        text.append(command.getClassName()).append(' ');
+        text.append(command.getLabel()).append(' ');
+        text.append(command.getDescription()).append(' ');
+        List<CommandDescriptor.ParameterDescriptor> parameters = new ArrayList<>(command.getInputs());
+        parameters.addAll(command.getOutputs());
+        for (CommandDescriptor.ParameterDescriptor p : parameters) {
+            text.append(p.getName()).append(' ');
+            text.append(p.getLabel()).append(' ');
+            text.append(p.getDescription()).append(' ');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Splits on non alphanumeric characters and on camel case boundaries, lower cases,
+     * and drops single characters
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder current = new StringBuilder();
+        char previous = ' ';
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            boolean boundary = !Character.isLetterOrDigit(c)
+                    || (Character.isUpperCase(c) && Character.isLowerCase(previous));
+            if (boundary && (current.length() > 0)) {
+                if (current.length() > 1) tokens.add(current.toString().toLowerCase(Locale.ROOT));
+                current.setLength(0);
+            }
+            if (Character.isLetterOrDigit(c)) current.append(c);
+            previous = c;
+        }
+        return tokens;
+    }
+
+    static class PostingBuilder {
+        int[] docs = new int[4];
+        int[] frequencies = new int[4];
+        int size = 0;
+
+        void add(int doc) {
+            if ((size > 0) && (docs[size - 1] == doc)) {
+                frequencies[size - 1]++;
+                return;
+            }
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                frequencies = Arrays.copyOf(frequencies, size * 2);
+            }
+            docs[size] = doc;
+            frequencies[size] = 1;
+            size++;
+        }
+
+        int[][] toArrays() {
+            return new int[][]{Arrays.copyOf(docs, size), Arrays.copyOf(frequencies, size)};
+        }
+    }
+}
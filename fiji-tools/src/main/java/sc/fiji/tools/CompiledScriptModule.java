@@ -0,0 +1,139 @@
+package sc.fiji.tools;
+
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.scijava.module.ModuleItem;
+import org.scijava.script.ScriptInfo;
+import org.scijava.script.ScriptModule;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link ScriptModule} which runs an already compiled groovy script class instead
+ * of evaluating the script text with a fresh script engine.
+ *
+ * The {@link ScriptInfo} is still used for SciJava script parameters, so that
+ * pre- and post-processing behave as for a regular script module.
+ */
+public class CompiledScriptModule extends ScriptModule {
+
+    final Class<? extends Script> scriptClass;
+
+    final Binding binding;
+
+    Writer errorWriter;
+
+    Writer outputWriter;
+
+    Object returnValue;
+
+    ThreadFactory scriptThreadFactory;
+
+    public CompiledScriptModule(ScriptInfo info, Class<? extends Script> scriptClass) {
+        this(info, scriptClass, new Binding());
+    }
+
+    /**
+     * @param binding variables of the script; passing the same binding to several modules lets
+     *                them share the variables they define
+     */
+    public CompiledScriptModule(ScriptInfo info, Class<? extends Script> scriptClass, Binding binding) {
+        super(info);
+        this.scriptClass = scriptClass;
+        this.binding = binding;
+    }
+
+    @Override
+    public void setErrorWriter(Writer error) {
+        super.setErrorWriter(error);
+        this.errorWriter = error;
+    }
+
+    /**
+     * The writer receives what the script prints (println...), through the "out" variable of the binding
+     */
+    @Override
+    public void setOutputWriter(Writer output) {
+        super.setOutputWriter(output);
+        this.outputWriter = output;
+    }
+
+    /**
+     * Runs the script body in a thread created by this factory (the module thread waits for it),
+     * typically an {@link ExecutionBudget} which accounts for the threads of the script
+     */
+    public void setScriptThreadFactory(ThreadFactory factory) {
+        this.scriptThreadFactory = factory;
+    }
+
+    @Override
+    public Object getReturnValue() {
+        return returnValue;
+    }
+
+    @Override
+    public void run() {
+        for (ModuleItem<?> item : getInfo().inputs()) {
+            binding.setVariable(item.getName(), getInput(item.getName()));
+        }
+
+        if (outputWriter != null) {
+            binding.setVariable("out", new PrintWriter(outputWriter, true));
+        }
+
+        if (scriptThreadFactory == null) {
+            runScript();
+        } else {
+            Throwable[] failure = new Throwable[1];
+            Thread worker = scriptThreadFactory.newThread(() -> {
+                try {
+                    runScript();
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            });
+            worker.start();
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                // Module cancelled
+                worker.interrupt();
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+            if (failure[0] instanceof Error) throw (Error) failure[0];
+            if (failure[0] != null) throw new RuntimeException(failure[0]);
+        }
+
+        for (ModuleItem<?> item : getInfo().outputs()) {
+            String name = item.getName();
+            if (isResolved(name)) continue;
+            Object value;
+            if (binding.hasVariable(name)) {
+                value = binding.getVariable(name);
+            } else if (ScriptModule.RETURN_VALUE.equals(name)) {
+                value = returnValue;
+            } else {
+                value = null;
+            }
+            setOutput(name, value);
+            setResolved(name, true);
+        }
+    }
+
+    void runScript() {
+        try {
+            Script script = InvokerHelper.createScript(scriptClass, binding);
+            returnValue = script.run();
+        } catch (Throwable t) {
+            if (errorWriter == null) throw t;
+            PrintWriter pw = new PrintWriter(errorWriter);
+            t.printStackTrace(pw);
+            pw.flush();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package sc.fiji.tools;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Output stream writing into a growable direct buffer, reused by the successive encodings of a thread
+ * so that encoding a response does not allocate once the buffer is large enough.
+ */
+public class DirectBufferOutput extends OutputStream {
+
+    public static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Larger buffers are not kept for the next encodings of the thread
+     */
+    public static final int MAX_RETAINED_CAPACITY = 16 * 1024 * 1024;
+
+    static final ThreadLocal<DirectBufferOutput> reused = ThreadLocal.withInitial(DirectBufferOutput::new);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * @return the empty output of the current thread: the buffer returned by its previous
+     * {@link #toBuffer()} is overwritten
+     */
+    public static DirectBufferOutput reused() {
+        DirectBufferOutput output = reused.get();
+        if (output.buffer.capacity() > MAX_RETAINED_CAPACITY) {
+            output.buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        output.buffer.clear();
+        return output;
+    }
+
+    void ensureRemaining(long n) {
+        if (buffer.remaining() >= n) return;
+        long needed = buffer.position() + n;
+        if (needed > Integer.MAX_VALUE - 8) throw new IllegalStateException("Response larger than 2 GB");
+        int capacity = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, 2L * buffer.capacity()));
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureRemaining(1);
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int off, int len) {
+        ensureRemaining(len);
+        buffer.put(bytes, off, len);
+    }
+
+    void writeShort(short v) {
+        ensureRemaining(2);
+        buffer.order(ByteOrder.BIG_ENDIAN).putShort(v).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void writeInt(int v) {
+        ensureRemaining(4);
+        buffer.order(ByteOrder.BIG_ENDIAN).putInt(v).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    void writeLong(long v) {
+        ensureRemaining(8);
+        buffer.order(ByteOrder.BIG_ENDIAN).putLong(v).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Copies the first elements of a primitive array in little endian order, with bulk copies
+     * @return the number of bytes written
+     */
+    long writeLittleEndian(Object array, int length) {
+        int size = elementSize(array);
+        ensureRemaining((long) length * size);
+        int position = buffer.position();
+        if (array instanceof byte[]) {
+            buffer.put((byte[]) array, 0, length);
+        } else if (array instanceof short[]) {
+            buffer.asShortBuffer().put((short[]) array, 0, length);
+        } else if (array instanceof char[]) {
+            buffer.asCharBuffer().put((char[]) array, 0, length);
+        } else if (array instanceof int[]) {
+            buffer.asIntBuffer().put((int[]) array, 0, length);
+        } else if (array instanceof long[]) {
+            buffer.asLongBuffer().put((long[]) array, 0, length);
+        } else if (array instanceof float[]) {
+            buffer.asFloatBuffer().put((float[]) array, 0, length);
+        } else if (array instanceof double[]) {
+            buffer.asDoubleBuffer().put((double[]) array, 0, length);
+        } else {
+            throw new IllegalArgumentException("Not an array of primitive numbers: " + array.getClass().getName());
+        }
+        buffer.position(position + length * size);
+        return (long) length * size;
+    }
+
+    static int elementSize(Object array) {
+        if (array instanceof byte[]) return 1;
+        if ((array instanceof short[]) || (array instanceof char[])) return 2;
+        if ((array instanceof int[]) || (array instanceof float[])) return 4;
+        if ((array instanceof long[]) || (array instanceof double[])) return 8;
+        return 0;
+    }
+
+    public int size() {
+        return buffer.position();
+    }
+
+    /**
+     * @return a view of what was written, valid until the next call to {@link #reused()} on this thread
+     */
+    public ByteBuffer toBuffer() {
+        ByteBuffer written = buffer.duplicate();
+        written.flip();
+        return written.slice();
+    }
+}
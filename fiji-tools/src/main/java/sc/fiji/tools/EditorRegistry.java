@@ -0,0 +1,174 @@
+package sc.fiji.tools;
+
+import org.scijava.ui.swing.script.EditorPane;
+import org.scijava.ui.swing.script.TextEditor;
+
+import javax.swing.JTabbedPane;
+import javax.swing.SwingUtilities;
+import java.awt.event.ContainerEvent;
+import java.awt.event.ContainerListener;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Registry of the documents opened in a {@link TextEditor}, by title.
+ *
+ * The title to pane map is rebuilt on the EDT whenever tabs are added, removed or renamed, and
+ * published as an immutable snapshot which can be read from any thread. Writes are queued,
+ * coalesced per title (only the last text of a title is applied) and applied in a batch on the EDT.
+ * Texts are read on the EDT too.
+ */
+public class EditorRegistry {
+
+    static final MethodHandle FALLBACK_BASE_NAME = findFallBackBaseName();
+
+    private static MethodHandle findFallBackBaseName() {
+        try {
+            Field f = EditorPane.class.getDeclaredField("fallBackBaseName");
+            f.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(f);
+        } catch (NoSuchFieldException | IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    final TextEditor textEditor;
+
+    volatile Map<String, EditorPane> snapshot = Collections.emptyMap();
+
+    final Map<String, String[]> pendingWrites = new LinkedHashMap<>(); // key -> {title, text}
+
+    final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    public EditorRegistry(TextEditor textEditor) {
+        this.textEditor = textEditor;
+        SwingUtilities.invokeLater(() -> {
+            JTabbedPane tabs = textEditor.getTabbedPane();
+            tabs.addContainerListener(new ContainerListener() {
+                @Override
+                public void componentAdded(ContainerEvent e) {
+                    rebuild();
+                }
+
+                @Override
+                public void componentRemoved(ContainerEvent e) {
+                    rebuild();
+                }
+            });
+            tabs.addChangeListener(e -> rebuild());
+            tabs.addPropertyChangeListener("indexForTitle", e -> rebuild());
+            rebuild();
+        });
+    }
+
+    static String key(String title) {
+        return title.replace(".groovy", "");
+    }
+
+    /**
+     * Rebuilds the snapshot from the editor tabs, must be called on the EDT
+     */
+    void rebuild() {
+        Map<String, EditorPane> panes = new HashMap<>();
+        int nTabs = textEditor.getTabbedPane().getTabCount();
+        for (int index = 0; index < nTabs; index++) {
+            try {
+                EditorPane pane = textEditor.getEditorPane(index);
+                String title = getTitle(pane);
+                if (title != null) panes.putIfAbsent(key(title), pane);
+            } catch (RuntimeException e) {
+                // Tab without editor pane
+            }
+        }
+        snapshot = Collections.unmodifiableMap(panes);
+    }
+
+    static String getTitle(EditorPane pane) {
+        if (FALLBACK_BASE_NAME == null) return pane.getFileName();
+        try {
+            return (String) FALLBACK_BASE_NAME.invoke(pane);
+        } catch (Throwable t) {
+            return pane.getFileName();
+        }
+    }
+
+    /**
+     * Queues the text of a document: the document is created if no document with this title
+     * exists, otherwise its text is replaced. Returns immediately.
+     */
+    public void write(String title, String text) {
+        synchronized (pendingWrites) {
+            pendingWrites.remove(key(title)); // keeps the order of the last writes
+            pendingWrites.put(key(title), new String[]{title, text});
+        }
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(this::flush);
+        }
+    }
+
+    void flush() {
+        flushScheduled.set(false);
+        Map<String, String[]> batch;
+        synchronized (pendingWrites) {
+            batch = new LinkedHashMap<>(pendingWrites);
+        }
+        boolean created = false;
+        for (Map.Entry<String, String[]> write : batch.entrySet()) {
+            EditorPane pane = snapshot.get(write.getKey());
+            if (pane == null) {
+                textEditor.createNewDocument(write.getValue()[0], write.getValue()[1]);
+                created = true;
+            } else {
+                pane.setText(write.getValue()[1]);
+            }
+        }
+        synchronized (pendingWrites) {
+            // Writes which arrived during the flush are kept for the next flush
+            batch.forEach(pendingWrites::remove);
+        }
+        if (created) rebuild();
+    }
+
+    /**
+     * @return the text of the document, including writes not yet applied, or null if there is no such document
+     */
+    public String read(String title) {
+        synchronized (pendingWrites) {
+            String[] pending = pendingWrites.get(key(title));
+            if (pending != null) return pending[1];
+        }
+        // Swing documents are read on the EDT, where the user edits them
+        String[] text = new String[1];
+        runOnEdt(() -> {
+            EditorPane pane = snapshot.get(key(title));
+            if (pane == null) {
+                // The snapshot may be late on a rename: rebuild it once before giving up
+                rebuild();
+                pane = snapshot.get(key(title));
+            }
+            text[0] = pane == null ? null : pane.getText();
+        });
+        return text[0];
+    }
+
+    static void runOnEdt(Runnable r) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            r.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+}
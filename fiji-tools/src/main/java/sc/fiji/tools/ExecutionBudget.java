@@ -0,0 +1,274 @@
+package sc.fiji.tools;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall clock time, CPU time and allocation limits of a script execution.
+ *
+ * The script runs in threads of a dedicated {@link ThreadGroup} (see {@link #newThread(Runnable)}),
+ * so that the threads it starts itself are accounted for too. A watchdog samples the CPU time and the
+ * allocated bytes of these threads with the {@link ThreadMXBean}. When a limit is reached, the threads
+ * are interrupted and the module is cancelled; threads still running after a grace period are stopped
+ * (see {@link #stopRunawayThreads(long)}), where Thread.stop is still supported.
+ */
+public class ExecutionBudget implements ThreadFactory {
+
+    public static final String TIMEOUT = "timeout";
+    public static final String CPU_TIME = "cpu_time";
+    public static final String ALLOCATED_BYTES = "allocated_bytes";
+
+    static final long CHECK_INTERVAL_MS = 50;
+
+    static final long STOP_GRACE_PERIOD_MS = 2000;
+
+    /**
+     * Limits of an execution, 0 meaning no limit
+     */
+    public static class Limits {
+        public static final Limits NONE = new Limits(0, 0, 0);
+
+        public final long timeoutMs;
+        public final long cpuTimeMs;
+        public final long allocatedBytes;
+
+        public Limits(long timeoutMs, long cpuTimeMs, long allocatedBytes) {
+            this.timeoutMs = timeoutMs;
+            this.cpuTimeMs = cpuTimeMs;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public boolean isUnlimited() {
+            return (timeoutMs <= 0) && (cpuTimeMs <= 0) && (allocatedBytes <= 0);
+        }
+    }
+
+    static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fiji-tools-script-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static final AtomicLong groupCounter = new AtomicLong();
+
+    static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    static {
+        try {
+            if (threads.isThreadCpuTimeSupported() && !threads.isThreadCpuTimeEnabled()) {
+                threads.setThreadCpuTimeEnabled(true);
+            }
+        } catch (UnsupportedOperationException | SecurityException e) {
+            // CPU time is then not measured
+        }
+    }
+
+    final Limits limits;
+
+    final ThreadGroup group;
+
+    final AtomicLong threadCounter = new AtomicLong();
+
+    /**
+     * Threads created by {@link #newThread(Runnable)} which have not ended yet
+     */
+    final AtomicLong running = new AtomicLong();
+
+    /**
+     * Last CPU time (ns) and allocated bytes seen for each thread of the group, kept after the thread ends
+     */
+    final Map<Long, long[]> usage = new HashMap<>();
+
+    long startNanos;
+
+    volatile String exceededLimit;
+
+    volatile ScheduledFuture<?> check;
+
+    volatile boolean released;
+
+    @SuppressWarnings("removal")
+    public ExecutionBudget(Limits limits) {
+        this.limits = limits;
+        this.group = new ThreadGroup("fiji-script-" + groupCounter.incrementAndGet());
+        // Destroyed with its last thread, so that the groups of past executions are not kept by their
+        // parent. Deprecated for removal since Java 16 and a no-op since Java 19, where a parent does
+        // not keep its groups anymore: still needed on the older runtimes this code targets.
+        this.group.setDaemon(true);
+    }
+
+    /**
+     * Creates a thread of the script, which records its usage when it ends
+     */
+    @Override
+    public Thread newThread(Runnable r) {
+        Thread thread = new Thread(group, () -> {
+            try {
+                r.run();
+            } finally {
+                sample(Thread.currentThread());
+                running.decrementAndGet();
+            }
+        }, group.getName() + "-" + threadCounter.incrementAndGet());
+        thread.setDaemon(true);
+        running.incrementAndGet();
+        return thread;
+    }
+
+    /**
+     * Starts watching the script threads
+     * @param module the running module, cancelled if a limit is reached
+     */
+    public void start(Future<?> module) {
+        startNanos = System.nanoTime();
+        if (limits.isUnlimited()) return;
+        check = watchdog.scheduleWithFixedDelay(() -> check(module), CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (check != null) check.cancel(false);
+        sampleGroup();
+    }
+
+    /**
+     * Stops watching once the script threads have ended: a script which was cancelled but ignores
+     * its interruption stays subject to the limits until it actually ends
+     */
+    public void release() {
+        released = true;
+        if (running.get() == 0) stop();
+        else sampleGroup();
+    }
+
+    /**
+     * Interrupts the threads of the script, when its execution is cancelled
+     */
+    public void interrupt() {
+        group.interrupt();
+    }
+
+    void check(Future<?> module) {
+        if (exceededLimit != null) return;
+        if (released && (running.get() == 0)) {
+            stop();
+            return;
+        }
+        sampleGroup();
+        String exceeded = null;
+        if ((limits.timeoutMs > 0) && (System.nanoTime() - startNanos > limits.timeoutMs * 1_000_000)) {
+            exceeded = TIMEOUT;
+        } else if ((limits.cpuTimeMs > 0) && (getCpuTimeNs() > limits.cpuTimeMs * 1_000_000)) {
+            exceeded = CPU_TIME;
+        } else if ((limits.allocatedBytes > 0) && (getAllocatedBytes() > limits.allocatedBytes)) {
+            exceeded = ALLOCATED_BYTES;
+        }
+        if (exceeded == null) return;
+        exceededLimit = exceeded;
+        check.cancel(false);
+        group.interrupt();
+        module.cancel(true);
+    }
+
+    /**
+     * Waits for the script threads to end after their interruption, then stops the threads which
+     * ignore it (a busy loop for instance) with Thread.stop, as a last resort.
+     * @param gracePeriodMs how long the threads have to end by themselves
+     * @return the names of the threads which could not be stopped (Thread.stop throws since Java 20):
+     * they keep running
+     */
+    @SuppressWarnings({"deprecation", "removal"})
+    public List<String> stopRunawayThreads(long gracePeriodMs) {
+        long deadline = System.nanoTime() + gracePeriodMs * 1_000_000;
+        boolean interrupted = false;
+        for (Thread thread : getThreads()) {
+            long remainingMs = (deadline - System.nanoTime()) / 1_000_000;
+            if (remainingMs <= 0 || interrupted) break;
+            try {
+                thread.join(remainingMs);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        List<String> unstopped = new ArrayList<>();
+        for (Thread thread : getThreads()) {
+            try {
+                System.err.println("Stopping script thread " + thread.getName() + " which ignored its interruption");
+                thread.stop();
+            } catch (UnsupportedOperationException | SecurityException e) {
+                System.err.println("Could not stop " + thread.getName() + ": " + e.getMessage());
+                unstopped.add(thread.getName());
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return unstopped;
+    }
+
+    Thread[] getThreads() {
+        Thread[] list = new Thread[group.activeCount() + 8];
+        int n = group.enumerate(list, true);
+        Thread[] alive = new Thread[n];
+        System.arraycopy(list, 0, alive, 0, n);
+        return alive;
+    }
+
+    void sampleGroup() {
+        for (Thread thread : getThreads()) sample(thread);
+    }
+
+    synchronized void sample(Thread thread) {
+        long id = thread.getId();
+        long cpu = threads.isThreadCpuTimeEnabled() ? threads.getThreadCpuTime(id) : -1;
+        long allocated = allocatedBytes(id);
+        long[] previous = usage.computeIfAbsent(id, k -> new long[2]);
+        // -1 when the thread is dead: the previous values are kept
+        previous[0] = Math.max(previous[0], cpu);
+        previous[1] = Math.max(previous[1], allocated);
+    }
+
+    static long allocatedBytes(long threadId) {
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if (sunThreads.isThreadAllocatedMemorySupported() && sunThreads.isThreadAllocatedMemoryEnabled()) {
+                return sunThreads.getThreadAllocatedBytes(threadId);
+            }
+        }
+        return -1;
+    }
+
+    public synchronized long getCpuTimeNs() {
+        long total = 0;
+        for (long[] u : usage.values()) total += u[0];
+        return total;
+    }
+
+    public synchronized long getAllocatedBytes() {
+        long total = 0;
+        for (long[] u : usage.values()) total += u[1];
+        return total;
+    }
+
+    /**
+     * @return the limit which was reached ({@link #TIMEOUT}, {@link #CPU_TIME} or {@link #ALLOCATED_BYTES}), or null
+     */
+    public String getExceededLimit() {
+        return exceededLimit;
+    }
+
+    public String describeExceededLimit() {
+        if (TIMEOUT.equals(exceededLimit)) return "the time limit of " + limits.timeoutMs + " ms was reached";
+        if (CPU_TIME.equals(exceededLimit)) return "the CPU time limit of " + limits.cpuTimeMs + " ms was reached";
+        if (ALLOCATED_BYTES.equals(exceededLimit)) return "the allocation limit of " + limits.allocatedBytes + " bytes was reached";
+        return null;
+    }
+}
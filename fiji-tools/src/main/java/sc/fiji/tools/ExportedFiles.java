@@ -0,0 +1,87 @@
+package sc.fiji.tools;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Files written in a directory for another process, deleted when released or, at the latest, when the JVM exits.
+ *
+ * Unlike {@link java.io.File#deleteOnExit()}, which keeps every path it was given until the JVM exits,
+ * a released file is forgotten.
+ */
+public class ExportedFiles {
+
+    final Path directory;
+
+    final Set<Path> files = ConcurrentHashMap.newKeySet();
+
+    Thread shutdownHook;
+
+    public ExportedFiles(Path directory) {
+        this.directory = directory.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Creates an empty file in the directory, deleted when the JVM exits unless released before
+     */
+    public Path create(String prefix, String suffix) throws IOException {
+        Files.createDirectories(directory);
+        Path file = Files.createTempFile(directory, prefix, suffix).toAbsolutePath().normalize();
+        files.add(file);
+        addShutdownHook();
+        return file;
+    }
+
+    synchronized void addShutdownHook() {
+        if (shutdownHook != null) return;
+        shutdownHook = new Thread(this::deleteAll, "fiji-tools-exported-files-cleanup");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Deletes a file, only if it was created by this instance and not released yet: other files of
+     * the directory, such as those of another exporter or process, are left alone
+     * @return true if the file was deleted
+     */
+    public boolean release(String path) throws IOException {
+        Path file = Paths.get(path).toAbsolutePath().normalize();
+        if (!file.startsWith(directory) || !files.remove(file)) return false;
+        return Files.deleteIfExists(file);
+    }
+
+    /**
+     * @return the number of files created and not released yet
+     */
+    public int size() {
+        return files.size();
+    }
+
+    /**
+     * Deletes all the files not released yet, and stops deleting them when the JVM exits
+     */
+    public synchronized void dispose() {
+        deleteAll();
+        if (shutdownHook == null) return;
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // The JVM is already shutting down, the hook runs anyway
+        }
+        shutdownHook = null;
+    }
+
+    void deleteAll() {
+        for (Path file : files) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Still mapped by another process on some systems, it stays in the temporary directory
+            }
+            files.remove(file);
+        }
+    }
+}
@@ -1,60 +1,371 @@
 package sc.fiji.tools;
 
-import com.google.gson.GsonBuilder;
-import ij.IJ;
+import com.google.gson.JsonObject;
+import groovy.lang.Binding;
+import groovy.lang.Script;
 import ij.ImagePlus;
 import ij.WindowManager;
 import net.imagej.ImageJ;
+import org.codehaus.groovy.control.CompilationFailedException;
 import org.scijava.module.ModuleService;
 import org.scijava.script.ScriptInfo;
 import org.scijava.script.ScriptModule;
-import org.scijava.ui.swing.script.EditorPane;
 import org.scijava.ui.swing.script.TextEditor;
 
+import javax.swing.SwingUtilities;
+import java.awt.GraphicsEnvironment;
+import java.awt.Rectangle;
+import java.io.IOException;
 import java.io.StringReader;
-import java.io.StringWriter;
-import java.lang.reflect.Field;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 public class FijiTools {
     TextEditor textEditor;
 
+    EditorRegistry editorRegistry;
+
+    final ImageStateTracker imageStateTracker;
+
+    final PixelExporter pixelExporter = new PixelExporter(PixelExporter.DEFAULT_DIRECTORY);
+
+    final TableExporter tableExporter = new TableExporter(TableExporter.DEFAULT_DIRECTORY);
+
+    final ScriptCache scriptCache;
+
+    final ScriptSessions scriptSessions;
+
+    final Metrics metrics = Metrics.getDefault();
+
+    volatile ResultSerializer resultSerializer = new ResultSerializer();
+
+    /**
+     * Encodings of the methods returning bytes, by name
+     */
+    final Map<String, ResponseEncoder> encoders = new ConcurrentHashMap<>();
+
+    /**
+     * Limits applied to executions which do not specify their own
+     */
+    volatile ExecutionBudget.Limits executionLimits = ExecutionBudget.Limits.NONE;
+
+    final HandleStore handleStore = new HandleStore();
+
+    final ResultMemo resultMemo = new ResultMemo();
+
+    /**
+     * If true, executions which do not say otherwise are memoized, see {@link #setMemoization(boolean)}
+     */
+    volatile boolean memoization = false;
+
+    final ScriptJobs scriptJobs = new ScriptJobs(this::runGroovy);
+
+    CommandSearchIndex commandSearchIndex;
+
+    List<CommandDescriptor> indexedCommands;
+
+    /**
+     * If true, no UI is created at startup: the script editor is created on first use, or never
+     * if there is no display
+     */
+    final boolean headless;
+
+    /**
+     * Duration of each startup phase, in ms, in order
+     */
+    final Map<String, Double> startupTimings = Collections.synchronizedMap(new LinkedHashMap<>());
+
     public FijiTools(ImageJ ij) {
+        this(ij, false);
+    }
+
+    /**
+     * @param ij the ImageJ instance where scripts are executed
+     * @param headless if true, the script editor is only created when a script is shown or read,
+     *                 and never without a display. Otherwise it is shown right away.
+     */
+    public FijiTools(ImageJ ij, boolean headless) {
         this.ij = ij;
-        textEditor = new TextEditor(ij.context());
-        textEditor.setVisible(true);
+        this.headless = headless;
+        long start = System.nanoTime();
+        imageStateTracker = new ImageStateTracker();
+        recordStartupPhaseSince("image_state", start);
+
+        start = System.nanoTime();
+        scriptCache = new ScriptCache(ij.context().getClass().getClassLoader(), ScriptCache.DEFAULT_CAPACITY);
+        scriptSessions = new ScriptSessions(ij.context().getClass().getClassLoader());
+        recordStartupPhaseSince("script_cache", start);
+
+        if (!headless) getEditorRegistry();
+        warmUpGroovy();
+
+        metrics.gauge("script_cache.size", scriptCache::size);
+        metrics.gauge("script_cache.hits", scriptCache::getHits);
+        metrics.gauge("script_cache.misses", scriptCache::getMisses);
+        metrics.gauge("script_cache.hit_rate", () -> hitRate(scriptCache.getHits(), scriptCache.getMisses()));
+        metrics.gauge("handles.count", handleStore::size);
+        metrics.gauge("handles.kept_bytes", handleStore::getKeptBytes);
+        metrics.gauge("memo.size", resultMemo::size);
+        metrics.gauge("memo.hits", resultMemo::getHits);
+        metrics.gauge("memo.misses", resultMemo::getMisses);
+
+        registerEncoder(ResponseEncoder.JSON);
+        registerEncoder(ResponseEncoder.COMPACT_JSON);
+        registerEncoder(ResponseEncoder.CBOR);
+    }
+
+    /**
+     * Creates the script editor on first call
+     * @return the editor registry, or null if there is no display
+     */
+    synchronized EditorRegistry getEditorRegistry() {
+        if ((editorRegistry == null) && !GraphicsEnvironment.isHeadless()) {
+            long start = System.nanoTime();
+            textEditor = new TextEditor(ij.context());
+            textEditor.setVisible(true);
+            editorRegistry = new EditorRegistry(textEditor);
+            recordStartupPhaseSince("editor", start);
+        }
+        return editorRegistry;
+    }
+
+    /**
+     * Removes the ImageJ listeners, closes the script sessions, cancels the script jobs, deletes the
+     * exported files which were not released and closes the script editor. The instance must not be used afterwards.
+     */
+    public synchronized void dispose() {
+        imageStateTracker.dispose();
+        resultMemo.dispose();
+        scriptSessions.dispose();
+        scriptJobs.shutdown();
+        pixelExporter.dispose();
+        tableExporter.dispose();
+        if (textEditor != null) {
+            TextEditor editor = textEditor;
+            SwingUtilities.invokeLater(editor::dispose);
+            textEditor = null;
+            editorRegistry = null;
+        }
+    }
+
+    /**
+     * Compiles a first script in the background, so that Groovy classes are loaded and
+     * initialized before the first script is executed. The script is not cached, so that it
+     * does not count as a miss in the script cache statistics
+     */
+    void warmUpGroovy() {
+        Thread warmUp = new Thread(() -> {
+            long start = System.nanoTime();
+            try {
+                scriptCache.compile("return null\n");
+            } catch (RuntimeException e) {
+                System.err.println("Groovy warm up failed: "+e.getMessage());
+            }
+            recordStartupPhaseSince("groovy_warm_up", start);
+        }, "fiji-tools-groovy-warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+    }
+
+    /**
+     * @param start value of {@link System#nanoTime()} when the phase started
+     */
+    void recordStartupPhaseSince(String phase, long start) {
+        long duration = System.nanoTime() - start;
+        metrics.timer("startup."+phase).record(duration);
+        recordStartupPhaseDuration(phase, duration / 1e6);
+    }
+
+    /**
+     * Records the duration of a startup phase which happens outside of this class, for instance the
+     * initialization of ImageJ, so that all phases are reported together by {@link #getStartupTimings()}
+     */
+    public void recordStartupPhaseDuration(String phase, double durationMs) {
+        startupTimings.put(phase, durationMs);
+    }
+
+    /**
+     * @return the duration in ms of each startup phase, as a json object. The groovy warm up
+     * happens in the background, it is missing until it is finished
+     */
+    public String getStartupTimings() {
+        synchronized (startupTimings) {
+            return resultSerializer.getGson().toJson(startupTimings);
+        }
+    }
+
+    static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
     }
 
     final ImageJ ij;
 
     public String executeGroovy(String code) {
+        return executeGroovy(code, new OutputBuffer());
+    }
 
-        String extractedCode = extractCode(code);
+    /**
+     * Executes a groovy script, writing what it prints into the output buffer, which can be read
+     * from another thread while the script runs
+     */
+    public String executeGroovy(String code, OutputBuffer output) {
+        return executeGroovy(code, output, executionLimits);
+    }
+
+    /**
+     * Executes a groovy script with its own limits, 0 meaning no limit
+     * @param timeoutMs maximal wall clock time
+     * @param cpuTimeMs maximal CPU time, summed over the threads of the script
+     * @param maxAllocatedBytes maximal number of bytes allocated by the threads of the script
+     * @see #setExecutionLimits(long, long, long)
+     */
+    public String executeGroovy(String code, long timeoutMs, long cpuTimeMs, long maxAllocatedBytes) {
+        return executeGroovy(code, timeoutMs, cpuTimeMs, maxAllocatedBytes, memoization);
+    }
+
+    public String executeGroovy(String code, long timeoutMs, long cpuTimeMs, long maxAllocatedBytes, boolean memoize) {
+        return executeGroovy(code, new OutputBuffer(), new ExecutionBudget.Limits(timeoutMs, cpuTimeMs, maxAllocatedBytes), memoize);
+    }
+
+    /**
+     * Executes a groovy script, returning the previous result of the same script if the opened images
+     * did not change since, see {@link #setMemoization(boolean)}
+     */
+    public String executeGroovy(String code, boolean memoize) {
+        return executeGroovy(code, new OutputBuffer(), executionLimits, memoize);
+    }
+
+    public String executeGroovy(String code, OutputBuffer output, ExecutionBudget.Limits limits) {
+        return executeGroovy(code, output, limits, memoization);
+    }
+
+    public String executeGroovy(String code, OutputBuffer output, ExecutionBudget.Limits limits, boolean memoize) {
+        ExecutionResult result = memoize ? runGroovyMemoized(extractCode(code), output, limits)
+                : runGroovy(extractCode(code), new Binding(), future -> {}, output, limits);
+        return serialize(resultSerializer, result);
+    }
+
+    /**
+     * Serializes a result, recording the serialization time and the result size
+     */
+    String serialize(ResultSerializer serializer, Object result) {
+        long start = System.nanoTime();
+        String json = serializer.toJson(result);
+        metrics.timer("result.serialize").recordSince(start);
+        metrics.sizes("result.size", "chars").record(json.length());
+        return json;
+    }
+
+    ExecutionResult runGroovyMemoized(String extractedCode, OutputBuffer output, ExecutionBudget.Limits limits) {
+        long start = System.nanoTime();
+        ResultMemo.Key key = resultMemo.key(extractedCode);
+        metrics.timer("memo.key").recordSince(start);
+        ExecutionResult cached = resultMemo.get(key);
+        if (cached != null) {
+            ExecutionResult result = cached.copy();
+            result.memoized = true;
+            result.executionTimeMs = (System.nanoTime() - start) / 1_000_000;
+            return result;
+        }
+        ExecutionResult result = runGroovy(extractedCode, new Binding(), future -> {}, output, limits);
+        // Failures are not cached: they may depend on something else than the images (a file, a timeout...)
+        if (result.executionSuccess) resultMemo.put(key, result);
+        return result;
+    }
+
+    /**
+     * Enables or disables the memoization of executions which do not say otherwise. A memoized
+     * execution of a script which was already run on the same opened images (same pixels, titles
+     * and active image) returns the previous result without running the script again. It is only
+     * meant for scripts which read images: the side effects of the script are not replayed.
+     * Disabling it drops the cached results and stops listening to image events.
+     */
+    public void setMemoization(boolean enabled) {
+        memoization = enabled;
+        if (enabled) {
+            resultMemo.listen();
+        } else {
+            resultMemo.stopListening();
+        }
+    }
+
+    ExecutionResult runGroovy(String extractedCode) {
+        return runGroovy(extractedCode, future -> {}, new OutputBuffer());
+    }
+
+    ExecutionResult runGroovy(String extractedCode, Consumer<Future<?>> onModuleStarted, OutputBuffer output) {
+        return runGroovy(extractedCode, new Binding(), onModuleStarted, output);
+    }
+
+    ExecutionResult runGroovy(String extractedCode, Binding binding, Consumer<Future<?>> onModuleStarted) {
+        return runGroovy(extractedCode, binding, onModuleStarted, new OutputBuffer());
+    }
+
+    ExecutionResult runGroovy(String extractedCode, Binding binding, Consumer<Future<?>> onModuleStarted, OutputBuffer output) {
+        return runGroovy(extractedCode, binding, onModuleStarted, output, executionLimits);
+    }
+
+    ExecutionResult runGroovy(String extractedCode, Binding binding, Consumer<Future<?>> onModuleStarted, OutputBuffer output, ExecutionBudget.Limits limits) {
+        return runGroovy(extractedCode, binding, scriptCache, onModuleStarted, output, limits);
+    }
+
+    ExecutionResult runGroovy(String extractedCode, Binding binding, ScriptCache cache, Consumer<Future<?>> onModuleStarted, OutputBuffer output, ExecutionBudget.Limits limits) {
         //System.out.println("EXECUTING\n"+extractedCode);
 
-        ScriptInfo si = new ScriptInfo(ij.context(),"dummy.groovy",new StringReader(extractedCode));
+        long start = System.nanoTime();
+        ExecutionResult result = runGroovy(extractedCode, binding, cache, onModuleStarted, output, limits, new ExecutionResult());
+        result.executionTimeMs = (System.nanoTime() - start) / 1_000_000;
+        if (!output.isEmpty()) result.output = output.toString();
+        return result;
+    }
 
-        ScriptModule sm = (ScriptModule) ij.get(ModuleService.class).createModule(si);
-        StringWriter sw = new StringWriter();
-        sm.setErrorWriter(sw);
+    ExecutionResult runGroovy(String extractedCode, Binding binding, ScriptCache cache, Consumer<Future<?>> onModuleStarted, OutputBuffer output,
+                              ExecutionBudget.Limits limits, ExecutionResult result) {
 
-        ExecutionResult result = new ExecutionResult();
+        ScriptInfo si = new ScriptInfo(ij.context(),"dummy.groovy",new StringReader(extractedCode));
 
-        Object o = null;
+        Class<? extends Script> scriptClass;
+        long compileStart = System.nanoTime();
         try {
+            scriptClass = cache.getOrCompile(extractedCode);
+        } catch (CompilationFailedException ex) {
+            metrics.counter("script.compilation_errors").increment();
+            return failure(result, ex.getMessage());
+        } finally {
+            metrics.timer("script.compile").recordSince(compileStart);
+        }
 
-            o = ij.get(ModuleService.class).run(sm, true).get().getReturnValue();
+        handleStore.bind(extractedCode, binding);
+        CompiledScriptModule sm = new CompiledScriptModule(si, scriptClass, binding);
+        ij.context().inject(sm);
+        // Without limits, the script runs directly in the module thread
+        ExecutionBudget budget = limits.isUnlimited() ? null : new ExecutionBudget(limits);
+        if (budget != null) sm.setScriptThreadFactory(budget);
+        // Bounded: a script printing a lot of errors cannot fill the memory
+        OutputBuffer errors = new OutputBuffer();
+        sm.setErrorWriter(errors);
+        sm.setOutputWriter(output);
 
-            if (!sw.toString().isEmpty()) {
-                result.errorMessage = sw.toString();
-                result.executionSuccess = false;
-                result.returnedObject = null;
-                result.returnedObjectClass = "null";
-                System.out.println("RETURNED:\n"+
-                        new GsonBuilder().setPrettyPrinting().create().toJson(result));
-                return new GsonBuilder().setPrettyPrinting().create().toJson(result);
+        long runStart = System.nanoTime();
+        Future<ScriptModule> future = null;
+        try {
+            future = ij.get(ModuleService.class).run(sm, true);
+            if (budget != null) budget.start(future);
+            onModuleStarted.accept(future);
+            Object o = future.get().getReturnValue();
+
+            if (!errors.isEmpty()) {
+                metrics.counter("script.errors").increment();
+                return failure(result, errors.toString());
             }
 
             result.errorMessage = null;
@@ -65,92 +376,407 @@ public class FijiTools {
             } else {
                 result.returnedObjectClass = "null";
             }
-            System.out.println("RETURNED:\n"+
-                    new GsonBuilder().setPrettyPrinting().create().toJson(result));
-            return new GsonBuilder().setPrettyPrinting().create().toJson(result);
+            if (HandleStore.isStorable(o)) {
+                result.returnedHandle = handleStore.put(o);
+                Long size = result.returnedHandle.getSize();
+                // Would be truncated anyway: the content is read page by page with inspectHandle instead
+                if ((size != null) && (size > resultSerializer.getMaxElements())) result.returnedObject = null;
+            }
+            return result;
+        } catch (CancellationException | InterruptedException ex) {
+            if (ex instanceof InterruptedException) {
+                // The caller was cancelled (job, MCP request): the script must not keep running without it
+                if (future != null) future.cancel(true);
+                if (budget != null) budget.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            if ((budget != null) && (budget.getExceededLimit() != null)) {
+                metrics.counter("script.limits_exceeded").increment();
+                List<String> unstopped = budget.stopRunawayThreads(ExecutionBudget.STOP_GRACE_PERIOD_MS);
+                if (!unstopped.isEmpty()) {
+                    metrics.counter("script.unstopped_threads").add(unstopped.size());
+                    result.unstoppedThreads = unstopped;
+                    return failure(result, "Execution stopped: "+budget.describeExceededLimit()
+                            +", but these threads ignored their interruption and could not be stopped: "+unstopped+"\n"+errors);
+                }
+                return failure(result, "Execution stopped: "+budget.describeExceededLimit()+"\n"+errors);
+            }
+            metrics.counter("script.cancelled").increment();
+            return failure(result, "Execution cancelled\n"+errors);
         } catch (Exception ex) {
-            result.errorMessage = sw.toString();
-            result.executionSuccess = false;
-            result.returnedObject = null;
-            result.returnedObjectClass = "null";
-            System.out.println("RETURNED:\n"+
-                    new GsonBuilder().setPrettyPrinting().create().toJson(result));
-            return new GsonBuilder().setPrettyPrinting().create().toJson(result);
+            metrics.counter("script.errors").increment();
+            return failure(result, errors.toString());
+        } finally {
+            metrics.timer("script.run").recordSince(runStart);
+            if (budget != null) {
+                budget.release();
+                result.limitExceeded = budget.getExceededLimit();
+                result.cpuTimeMs = budget.getCpuTimeNs() / 1_000_000;
+                result.allocatedBytes = budget.getAllocatedBytes();
+            }
         }
     }
 
-    public void showOrUpdateScriptInEditor(String code, String scriptTitle) {
-        boolean error = false;
-        int index = 0;
-        EditorPane pane = null;
+    /**
+     * Sets the limits of the executions which do not specify their own, 0 meaning no limit.
+     * When a limit is reached, the threads of the script are interrupted, then stopped if they
+     * ignore the interruption.
+     * @param timeoutMs maximal wall clock time
+     * @param cpuTimeMs maximal CPU time, summed over the threads started by the script
+     * @param maxAllocatedBytes maximal number of bytes allocated by the threads of the script
+     */
+    public void setExecutionLimits(long timeoutMs, long cpuTimeMs, long maxAllocatedBytes) {
+        executionLimits = new ExecutionBudget.Limits(timeoutMs, cpuTimeMs, maxAllocatedBytes);
+    }
 
-        while ((!error)&&(pane == null)) {
-            try {
-                EditorPane testpane = textEditor.getEditorPane(index);
+    /**
+     * Executes several groovy scripts one after the other, stopping at the first failing script
+     * @see #executeGroovyBatch(List, boolean)
+     */
+    public String executeGroovyBatch(List<String> codes) {
+        return executeGroovyBatch(codes, true);
+    }
 
-                Field f = EditorPane.class.getDeclaredField("fallBackBaseName");
-                f.setAccessible(true);
+    /**
+     * Executes several groovy scripts one after the other, as a pipeline: the variables
+     * defined (without def) by a script can be used by the following ones.
+     * @param codes the groovy scripts to execute, in order
+     * @param stopOnError if true, the scripts following a failing script are skipped
+     * @return a compact json array with the execution result of each script
+     */
+    public String executeGroovyBatch(List<String> codes, boolean stopOnError) {
+        Binding sharedBinding = new Binding();
+        List<ExecutionResult> results = new ArrayList<>(codes.size());
+        boolean failed = false;
+        for (String code : codes) {
+            if (failed && stopOnError) {
+                results.add(failure(new ExecutionResult(), "Skipped: a previous script failed"));
+                continue;
+            }
+            ExecutionResult result = runGroovy(extractCode(code), sharedBinding, future -> {});
+            failed = failed || !result.executionSuccess;
+            results.add(result);
+        }
+        return serialize(resultSerializer.compact(), results);
+    }
 
-                String title = (String) f.get(testpane);//testpane.fallBackBaseName;
+    /**
+     * Executes a groovy script in a named session, created on first use: the variables assigned
+     * without def, the closures and the classes defined by the previous scripts of the session
+     * can be used, as in a REPL
+     * @param sessionName name of the session
+     * @param code the groovy code to execute
+     */
+    public String executeGroovyInSession(String sessionName, String code) {
+        return executeGroovyInSession(sessionName, code, new OutputBuffer());
+    }
 
-                if (title.replace(".groovy","").equals(scriptTitle.replace(".groovy", ""))) {
-                    pane = testpane;
+    public String executeGroovyInSession(String sessionName, String code, OutputBuffer output) {
+        ExecutionResult result = null;
+        while (result == null) {
+            ScriptSessions.Session session = scriptSessions.getOrCreate(sessionName);
+            // Scripts of a session share its variables: they run one at a time
+            synchronized (session) {
+                // Closed or expired while this thread was waiting for it: the next call creates a new session
+                if (session.isClosed()) continue;
+                session.busy = true;
+                try {
+                    result = runGroovy(extractCode(code), session.getBinding(), session.getScriptCache(), future -> {}, output, executionLimits);
+                    List<String> evicted = scriptSessions.afterExecution(session);
+                    if (!evicted.isEmpty()) result.evictedVariables = evicted;
+                } finally {
+                    session.busy = false;
                 }
-                index ++;
-
-            } catch (Exception e) {
-                error = true;
             }
         }
+        return serialize(resultSerializer, result);
+    }
+
+    /**
+     * @return a json array describing the opened sessions: name, number of executions, idle time,
+     * estimated memory and class of each variable
+     */
+    public String getSessions() {
+        return serialize(resultSerializer, scriptSessions.list());
+    }
+
+    /**
+     * Closes a session, forgetting its variables and classes
+     */
+    public String closeSession(String sessionName) {
+        return resultSerializer.getGson().toJson(scriptSessions.close(sessionName));
+    }
+
+    /**
+     * @param idleTimeoutMs sessions unused for longer are closed, 0 to keep them until closed explicitly
+     * @param maxBytes estimated memory budget of each session: above it, the largest variables are removed after each execution
+     */
+    public void setSessionLimits(long idleTimeoutMs, long maxBytes) {
+        scriptSessions.setLimits(idleTimeoutMs, maxBytes);
+    }
+
+    /**
+     * Starts the execution of a groovy script without waiting for its end
+     * @param code the groovy code to execute
+     * @return the id of the job, to use with {@link #getJobStatus(String)}, {@link #getJobResult(String)}
+     * and {@link #cancelJob(String)}
+     */
+    public String submitGroovy(String code) {
+        String extractedCode = extractCode(code);
+        return resultSerializer.getGson().toJson(scriptJobs.submit(extractedCode));
+    }
+
+    public String getJobStatus(String jobId) {
+        ScriptJobs.JobStatus status = scriptJobs.getStatus(jobId, false);
+        if (status == null) {
+            return error("Unknown job "+jobId+", it may have expired");
+        }
+        return resultSerializer.getGson().toJson(status);
+    }
+
+    public String getJobResult(String jobId) {
+        ScriptJobs.JobStatus status = scriptJobs.getStatus(jobId, true);
+        if (status == null) {
+            return error("Unknown job "+jobId+", it may have expired");
+        }
+        return serialize(resultSerializer, status);
+    }
+
+    /**
+     * Returns what a job printed since a position, so that its output can be followed while it runs
+     * @param jobId the id returned by {@link #submitGroovy(String)}
+     * @param fromPosition the "to" position of the previous chunk, or 0
+     * @return a json chunk: from and to positions, text, and number of characters dropped before
+     * being read (only the last {@link OutputBuffer#DEFAULT_CAPACITY} characters are kept)
+     */
+    public String getJobOutput(String jobId, long fromPosition) {
+        OutputBuffer.Chunk chunk = scriptJobs.getOutput(jobId, fromPosition);
+        if (chunk == null) {
+            return error("Unknown job "+jobId+", it may have expired");
+        }
+        return resultSerializer.getGson().toJson(chunk);
+    }
+
+    public String cancelJob(String jobId) {
+        return resultSerializer.getGson().toJson(scriptJobs.cancel(jobId));
+    }
+
+    /**
+     * Returns a page of an object returned by a previous script
+     * @param handle the handle of the object, from the returnedHandle of an execution result
+     * @param path dot separated field names, map keys or indices leading to the part to inspect, or empty for the object itself
+     * @param offset index of the first element, entry or field returned
+     * @param limit maximal number of elements, entries or fields returned
+     * @return a json page: class name, total number of elements, and items (arrays, collections)
+     * or entries (maps, fields of objects), or value for simple values
+     */
+    public String inspectHandle(String handle, String path, int offset, int limit) {
+        try {
+            return serialize(resultSerializer, handleStore.inspect(handle, path, offset, limit));
+        } catch (RuntimeException e) {
+            return error(e.getMessage());
+        }
+    }
+
+    /**
+     * Forgets an object returned by a previous script, so that it can be garbage collected
+     */
+    public String releaseHandle(String handle) {
+        return resultSerializer.getGson().toJson(handleStore.release(handle));
+    }
+
+    /**
+     * Set in the thread which built an error response, see {@link #takeError()}
+     */
+    static final ThreadLocal<Boolean> errorResponse = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * @return the text of an error response, "ERROR! " followed by the message, flagged as an error for the calling thread
+     */
+    static String errorText(String message) {
+        errorResponse.set(true);
+        return "ERROR! " + message;
+    }
+
+    /**
+     * @return the json string of an error response, flagged as an error for the calling thread
+     */
+    String error(String message) {
+        return resultSerializer.getGson().toJson(errorText(message));
+    }
+
+    /**
+     * Lets wrappers, such as {@link McpServer}, tell errors from results without parsing the responses
+     * @return true if the calling thread built an error response since the previous call
+     */
+    public static boolean takeError() {
+        boolean error = errorResponse.get();
+        errorResponse.set(false);
+        return error;
+    }
+
+    static ExecutionResult failure(ExecutionResult result, String errorMessage) {
+        result.errorMessage = errorMessage;
+        result.executionSuccess = false;
+        result.returnedObject = null;
+        result.returnedObjectClass = "null";
+        return result;
+    }
 
-        if (pane == null) {
-            //return "Couldn't get script "+scriptTitle+" maybe its title has changed or it has been closed ?";
-            textEditor.createNewDocument(scriptTitle, code);
+    /**
+     * Changes the caps applied when serializing objects returned by scripts
+     * @param maxDepth maximal nesting depth
+     * @param maxElements maximal number of elements written per array, collection or map
+     * @param maxBytes approximate maximal size of the serialized result
+     */
+    public void setSerializationLimits(int maxDepth, int maxElements, long maxBytes) {
+        resultSerializer = new ResultSerializer(maxDepth, maxElements, maxBytes, resultSerializer.isPrettyPrinting());
+    }
+
+    /**
+     * Chooses the json flavour of the methods returning strings
+     * @param encoding "json" (indented, the default) or "compact_json" (without whitespace, smaller)
+     */
+    public void setResponseEncoding(String encoding) {
+        if (ResponseEncoder.JSON.getName().equals(encoding)) {
+            resultSerializer = resultSerializer.withPrettyPrinting(true);
+        } else if (ResponseEncoder.COMPACT_JSON.getName().equals(encoding)) {
+            resultSerializer = resultSerializer.withPrettyPrinting(false);
         } else {
-            pane.setText(code);
-            //System.out.println(pane.getText());
-            //return pane.getText();
+            throw new IllegalArgumentException("Unknown text encoding "+encoding+", expected json or compact_json");
         }
     }
 
-    public String getScriptFromEditor(String scriptTitle) {
-        boolean error = false;
-        int index = 0;
-        EditorPane pane = null;
+    /**
+     * Makes an encoding available to the methods returning bytes, replacing the encoder with the same name
+     */
+    public void registerEncoder(ResponseEncoder encoder) {
+        encoders.put(encoder.getName(), encoder);
+    }
 
-        while ((!error)&&(pane == null)) {
-            try {
-                EditorPane testpane = textEditor.getEditorPane(index);
+    /**
+     * Encodes a response with the caps of the result serializer. Binary encodings are only available
+     * to Java (or JPype) callers: the MCP servers return text and only use {@link #setResponseEncoding(String)}
+     * @param encoding name of a registered encoder: json, compact_json or cbor by default
+     * @return the encoded bytes, in a direct buffer which is reused by the next encoding of the calling thread
+     */
+    public ByteBuffer encode(Object response, String encoding) {
+        ResponseEncoder encoder = encoders.get(encoding);
+        if (encoder == null) throw new IllegalArgumentException("Unknown encoding "+encoding+", available: "+encoders.keySet());
+        long start = System.nanoTime();
+        ByteBuffer encoded = encoder.encode(resultSerializer, response);
+        metrics.timer("result.encode."+encoding).recordSince(start);
+        metrics.sizes("result.encoded_size."+encoding, "bytes").record(encoded.remaining());
+        return encoded;
+    }
 
-                Field f = EditorPane.class.getDeclaredField("fallBackBaseName");
-                f.setAccessible(true);
+    /**
+     * Same as {@link #executeGroovy(String)}, with the result encoded as requested, see {@link #encode(Object, String)}
+     */
+    public ByteBuffer executeGroovyEncoded(String code, String encoding) {
+        ExecutionResult result = memoization ? runGroovyMemoized(extractCode(code), new OutputBuffer(), executionLimits)
+                : runGroovy(extractCode(code), new Binding(), future -> {}, new OutputBuffer(), executionLimits);
+        return encode(result, encoding);
+    }
 
-                String title = (String) f.get(testpane);//testpane.fallBackBaseName;
+    /**
+     * Same as {@link #getCurrentState(boolean)}, with the state encoded as requested, see {@link #encode(Object, String)}
+     */
+    public ByteBuffer getCurrentStateEncoded(boolean withStatistics, String encoding) {
+        return encode(currentState(withStatistics), encoding);
+    }
 
-                if (title.replace(".groovy","").equals(scriptTitle.replace(".groovy", ""))) {
-                    pane = testpane;
-                }
-                index ++;
+    /**
+     * Same as {@link #getStateSince(long, boolean)}, with the changes encoded as requested, see {@link #encode(Object, String)}
+     */
+    public ByteBuffer getStateSinceEncoded(long version, boolean withStatistics, String encoding) {
+        return encode(stateSince(version, withStatistics), encoding);
+    }
 
-            } catch (Exception e) {
-                error = true;
-            }
+    public String getScriptCacheStatistics() {
+        JsonObject stats = new JsonObject();
+        stats.addProperty("size", scriptCache.size());
+        stats.addProperty("capacity", scriptCache.getCapacity());
+        stats.addProperty("hits", scriptCache.getHits());
+        stats.addProperty("misses", scriptCache.getMisses());
+        return resultSerializer.getGson().toJson(stats);
+    }
+
+    /**
+     * @return latency histograms (count, mean, approximate percentiles and max), counters and gauges
+     * of the main operations, as json
+     */
+    public String getMetrics() {
+        return resultSerializer.getGson().toJson(metrics.toJson());
+    }
+
+    public void resetMetrics() {
+        metrics.reset();
+    }
+
+    public void showOrUpdateScriptInEditor(String code, String scriptTitle) {
+        long start = System.nanoTime();
+        EditorRegistry registry = getEditorRegistry();
+        if (registry == null) {
+            System.err.println("No display, the script "+scriptTitle+" cannot be shown");
+            return;
         }
+        registry.write(scriptTitle, code);
+        metrics.timer("editor.write").recordSince(start);
+    }
 
-        if (pane == null) {
-            return new GsonBuilder().setPrettyPrinting().create().toJson("ERROR! Couldn't get script "+scriptTitle+" maybe its title has changed or it has been closed ?");
+    public String getScriptFromEditor(String scriptTitle) {
+        long start = System.nanoTime();
+        EditorRegistry registry = getEditorRegistry();
+        if (registry == null) {
+            return error("No script editor: Fiji runs without display");
+        }
+        String text = registry.read(scriptTitle);
+        metrics.timer("editor.read").recordSince(start);
+        if (text == null) {
+            return error("Couldn't get script "+scriptTitle+" maybe its title has changed or it has been closed ?");
         } else {
-            return new GsonBuilder().setPrettyPrinting().create().toJson(pane.getText());
+            return resultSerializer.getGson().toJson(text);
         }
     }
 
     public String fetchSourceCodeContent(String className) {
+        long start = System.nanoTime();
         try {
             Class<?> clazz = Class.forName(className);
             return ImageJInvestigator.getSourceCode(clazz, this.ij.context());
         } catch (ClassNotFoundException e) {
-            return "ERROR! Class not found";
+            metrics.counter("investigator.errors").increment();
+            return errorText("Class not found");
+        } catch (RuntimeException e) {
+            metrics.counter("investigator.errors").increment();
+            return errorText("Could not get the source code of "+className+": "+e.getMessage());
+        } finally {
+            metrics.timer("investigator.source_code").recordSince(start);
+        }
+    }
+
+    /**
+     * Full-text search over the commands of the classpath: class names, plugin labels and
+     * descriptions, parameter names, labels and descriptions
+     * @param query words to look for
+     * @param k maximal number of commands returned
+     * @return a compact json array of the best matching commands, best first
+     */
+    public String searchCommands(String query, int k) {
+        long start = System.nanoTime();
+        String json = CommandRenderer.toCompactJson(getCommandSearchIndex().search(query, k));
+        metrics.timer("investigator.search").recordSince(start);
+        return json;
+    }
+
+    synchronized CommandSearchIndex getCommandSearchIndex() {
+        List<CommandDescriptor> commands = CommandIndex.getInstance().getAllCommands();
+        if ((commandSearchIndex == null) || (indexedCommands != commands)) {
+            commandSearchIndex = new CommandSearchIndex(commands);
+            indexedCommands = commands;
         }
+        return commandSearchIndex;
     }
 
     public static String extractCode(String code) {
@@ -169,18 +795,220 @@ public class FijiTools {
         public Object returnedObject;
         public boolean executionSuccess;
         public String errorMessage;
+        /**
+         * What the script printed, only the end if it printed a lot
+         */
+        public String output;
+        public Long executionTimeMs;
+        /**
+         * The limit which stopped the script (timeout, cpu_time or allocated_bytes), null if none was reached
+         */
+        public String limitExceeded;
+        /**
+         * CPU time and bytes allocated by the threads of the script, only measured when limits are set
+         */
+        public Long cpuTimeMs;
+        public Long allocatedBytes;
+        /**
+         * Threads of the script which ignored their interruption when a limit was reached and could
+         * not be stopped: they keep running. Null if there are none.
+         */
+        public List<String> unstoppedThreads;
+        /**
+         * Handle and summary of the returned object, which later scripts can use as a variable named after
+         * the handle. returnedObject is null if the object has more elements than the serialization limit.
+         */
+        public HandleStore.Summary returnedHandle;
+        /**
+         * Session variables removed after the execution to stay within the memory budget of the session
+         */
+        public List<String> evictedVariables;
+        /**
+         * True if the script was not run, this result being the one of a previous execution on the same images
+         */
+        public Boolean memoized;
+
+        ExecutionResult copy() {
+            ExecutionResult copy = new ExecutionResult();
+            copy.returnedObjectClass = returnedObjectClass;
+            copy.returnedObject = returnedObject;
+            copy.executionSuccess = executionSuccess;
+            copy.errorMessage = errorMessage;
+            copy.output = output;
+            copy.executionTimeMs = executionTimeMs;
+            copy.limitExceeded = limitExceeded;
+            copy.cpuTimeMs = cpuTimeMs;
+            copy.allocatedBytes = allocatedBytes;
+            copy.unstoppedThreads = unstoppedThreads;
+            copy.returnedHandle = returnedHandle;
+            copy.evictedVariables = evictedVariables;
+            copy.memoized = memoized;
+            return copy;
+        }
+    }
+
+    /**
+     * Writes the pixels of an image region to a memory-mapped file, to be mapped as a numpy array
+     * without going through json
+     * @param title title of the image
+     * @param c channel (1-based), or 0 for all channels
+     * @param z slice (1-based), or 0 for all slices
+     * @param t timepoint (1-based), or 0 for all timepoints
+     * @param roi "x,y,width,height" of the region to export in each plane, or null or empty for the full plane
+     * @return a json descriptor of the file: path, offset, dtype, shape (t, z, c, y, x), strides in bytes and byte order
+     */
+    public String exportPixels(String title, int c, int z, int t, String roi) {
+        ImagePlus imp = WindowManager.getImage(title);
+        if (imp == null) {
+            return error("Image "+title+" not found");
+        }
+        try {
+            return resultSerializer.getGson().toJson(pixelExporter.export(imp, c, z, t, parseRectangle(roi)));
+        } catch (IOException | IllegalArgumentException e) {
+            return error("Could not export the pixels of "+title+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Deletes a file written by {@link #exportPixels(String, int, int, int, String)}
+     */
+    public String releasePixels(String path) {
+        try {
+            return resultSerializer.getGson().toJson(pixelExporter.release(path));
+        } catch (IOException e) {
+            return error("Could not delete "+path+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * @return a json list of the results tables, of the ROI Manager and of the image overlays, with their
+     * kind ("results_table", "roi_manager" or "overlay"), title, number of rows and columns
+     */
+    public String listTables() {
+        return resultSerializer.getGson().toJson(tableExporter.list());
+    }
+
+    /**
+     * Writes the columns of a results table to a memory-mapped file, to be mapped column by column
+     * without going through json
+     * @param title title of the table, or null or empty for the "Results" table
+     * @param offset first exported row
+     * @param limit maximal number of rows, or 0 for all rows after offset
+     * @return a json descriptor of the file: path, total number of rows, exported rows, byte order
+     * and for each column its name, dtype, offset and length, see {@link TableExporter}
+     */
+    public String exportResultsTable(String title, int offset, int limit) {
+        long start = System.nanoTime();
+        try {
+            return resultSerializer.getGson().toJson(tableExporter.exportResultsTable(title, offset, limit));
+        } catch (IOException | IllegalArgumentException e) {
+            return error("Could not export the table "+title+": "+e.getMessage());
+        } finally {
+            metrics.timer("table.export").recordSince(start);
+        }
+    }
+
+    /**
+     * Same as {@link #exportResultsTable(String, int, int)}, for the rois of the ROI Manager or of an overlay:
+     * one row per roi with its name, type, bounds, positions and polygon vertices
+     * @param imageTitle title of the image whose overlay is exported, or null or empty for the ROI Manager
+     */
+    public String exportRois(String imageTitle, int offset, int limit) {
+        long start = System.nanoTime();
+        try {
+            return resultSerializer.getGson().toJson(tableExporter.exportRois(imageTitle, offset, limit));
+        } catch (IOException | IllegalArgumentException e) {
+            return error("Could not export the rois: "+e.getMessage());
+        } finally {
+            metrics.timer("table.export").recordSince(start);
+        }
+    }
+
+    /**
+     * Deletes a file written by {@link #exportResultsTable(String, int, int)} or {@link #exportRois(String, int, int)}
+     */
+    public String releaseTable(String path) {
+        try {
+            return resultSerializer.getGson().toJson(tableExporter.release(path));
+        } catch (IOException e) {
+            return error("Could not delete "+path+": "+e.getMessage());
+        }
+    }
+
+    static Rectangle parseRectangle(String roi) {
+        if ((roi == null) || roi.trim().isEmpty()) return null;
+        String[] values = roi.split(",");
+        if (values.length != 4) {
+            throw new IllegalArgumentException("Invalid roi "+roi+", expected x,y,width,height");
+        }
+        int[] v = new int[4];
+        for (int i = 0; i < 4; i++) {
+            v[i] = Integer.parseInt(values[i].trim());
+        }
+        return new Rectangle(v[0], v[1], v[2], v[3]);
     }
 
     public String getCurrentState() {
-        List<ImagePlusDescription> images =
-                Arrays.stream(WindowManager.getImageTitles() ).map(WindowManager::getImage)
-                        .map(FijiTools::getImageDescription).collect(Collectors.toList());
+        return getCurrentState(false);
+    }
+
+    /**
+     * @param withStatistics if true, each image description also contains its {@link ImageStatistics}
+     * (bit depth, calibration, memory footprint, and per channel min, max, mean, standard deviation and histogram)
+     */
+    public String getCurrentState(boolean withStatistics) {
+        long start = System.nanoTime();
+        String json = resultSerializer.toJson(currentState(withStatistics));
+        metrics.timer("state.current").recordSince(start);
+        return json;
+    }
+
+    List<ImagePlusDescription> currentState(boolean withStatistics) {
+        List<ImagePlusDescription> images = imageStateTracker.getState();
+        if (withStatistics) images = withStatistics(images);
+        return images;
+    }
+
+    /**
+     * Returns only what changed in the opened images since a previous call
+     * @param version the version returned by the previous call, or 0 to get all images
+     * @return a json object with the current version, the images opened or changed ("changed"),
+     * the images closed ("closed") and whether the full state was returned instead of a delta ("full")
+     */
+    public String getStateSince(long version) {
+        return getStateSince(version, false);
+    }
 
-        return new GsonBuilder().setPrettyPrinting().create().toJson(images);
+    public String getStateSince(long version, boolean withStatistics) {
+        long start = System.nanoTime();
+        String json = resultSerializer.toJson(stateSince(version, withStatistics));
+        metrics.timer("state.since").recordSince(start);
+        return json;
+    }
+
+    ImageStateTracker.StateDelta stateSince(long version, boolean withStatistics) {
+        ImageStateTracker.StateDelta delta = imageStateTracker.getStateSince(version);
+        if (withStatistics) delta.changed = withStatistics(delta.changed);
+        return delta;
+    }
+
+    /**
+     * @return copies of the descriptions, with the cached statistics of each image
+     */
+    List<ImagePlusDescription> withStatistics(List<ImagePlusDescription> descriptions) {
+        List<ImagePlusDescription> copies = new ArrayList<>(descriptions.size());
+        for (ImagePlusDescription description : descriptions) {
+            ImagePlusDescription copy = description.copy();
+            ImagePlus imp = WindowManager.getImage(description.image_id);
+            if (imp != null) copy.statistics = ImageStatistics.of(imp, imageStateTracker.getModification(imp.getID()));
+            copies.add(copy);
+        }
+        return copies;
     }
 
     public static class ImagePlusDescription {
         String title;
+        int image_id;
         boolean is_the_active_one;
         int x_size_pix;
         int y_size_pix;
@@ -190,9 +1018,52 @@ public class FijiTools {
         int current_active_channel;
         int current_active_zslice;
         int current_active_timepoint;
+        /**
+         * Only filled on request, not taken into account by equals
+         */
+        ImageStatistics statistics;
+
+        ImagePlusDescription copy() {
+            ImagePlusDescription copy = new ImagePlusDescription();
+            copy.title = title;
+            copy.image_id = image_id;
+            copy.is_the_active_one = is_the_active_one;
+            copy.x_size_pix = x_size_pix;
+            copy.y_size_pix = y_size_pix;
+            copy.z_size_pix = z_size_pix;
+            copy.n_channels = n_channels;
+            copy.n_timepoints = n_timepoints;
+            copy.current_active_channel = current_active_channel;
+            copy.current_active_zslice = current_active_zslice;
+            copy.current_active_timepoint = current_active_timepoint;
+            copy.statistics = statistics;
+            return copy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ImagePlusDescription)) return false;
+            ImagePlusDescription d = (ImagePlusDescription) o;
+            return Objects.equals(title, d.title) && (image_id == d.image_id) && (is_the_active_one == d.is_the_active_one)
+                    && (x_size_pix == d.x_size_pix) && (y_size_pix == d.y_size_pix) && (z_size_pix == d.z_size_pix)
+                    && (n_channels == d.n_channels) && (n_timepoints == d.n_timepoints)
+                    && (current_active_channel == d.current_active_channel)
+                    && (current_active_zslice == d.current_active_zslice)
+                    && (current_active_timepoint == d.current_active_timepoint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(title, image_id);
+        }
     }
 
     public static ImagePlusDescription getImageDescription(ImagePlus imp) {
+        return getImageDescription(imp, imp.equals(WindowManager.getCurrentImage()));
+    }
+
+    public static ImagePlusDescription getImageDescription(ImagePlus imp, boolean isActive) {
         ImagePlusDescription desc = new ImagePlusDescription();
         desc.x_size_pix = imp.getWidth();
         desc.y_size_pix = imp.getHeight();
@@ -200,7 +1071,8 @@ public class FijiTools {
         desc.n_channels = imp.getNChannels();
         desc.n_timepoints = imp.getNFrames();
         desc.title = imp.getTitle();
-        desc.is_the_active_one = imp.equals(IJ.getImage());
+        desc.image_id = imp.getID();
+        desc.is_the_active_one = isActive;
         desc.current_active_channel = imp.getC();
         desc.current_active_zslice = imp.getZ();
         desc.current_active_timepoint = imp.getT();
@@ -0,0 +1,389 @@
+package sc.fiji.tools;
+
+import groovy.lang.Binding;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the objects returned by scripts, so that they can be inspected page by page, or used by
+ * later scripts, without being recomputed or sent entirely.
+ *
+ * Each object gets a handle such as "_h12", which is also the name of the script variable holding
+ * it: a script using _h12 gets the object in its binding. The most recently used objects are kept
+ * strongly, up to an estimated memory size and a number of handles. Older objects are only weakly
+ * referenced: their handle stays valid as long as something else (an opened image...) keeps them.
+ */
+public class HandleStore {
+
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+    public static final int DEFAULT_MAX_HANDLES = 1000;
+
+    public static final String PREFIX = "_h";
+
+    static final Pattern HANDLE_PATTERN = Pattern.compile("\\b" + PREFIX + "\\d+\\b");
+
+    /**
+     * Small description of a stored object
+     */
+    public static class Summary {
+        String handle;
+        String class_name;
+        /**
+         * Number of elements of an array, collection or map
+         */
+        Long size;
+        /**
+         * Dimensions of an image or of a rectangular array
+         */
+        long[] shape;
+        /**
+         * Rough estimate, used to bound the memory kept by the store
+         */
+        long estimated_bytes;
+
+        public String getHandle() {
+            return handle;
+        }
+
+        public Long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Part of a stored object: elements of an array or collection (items), entries of a map or
+     * fields of an object (entries), or the value itself if it is a simple value
+     */
+    public static class Page {
+        String handle;
+        String path;
+        String class_name;
+        Long total;
+        int offset;
+        List<Object> items;
+        Map<String, Object> entries;
+        Object value;
+    }
+
+    static class HandleReference extends WeakReference<Object> {
+        final String handle;
+        final Summary summary;
+
+        HandleReference(Object o, Summary summary, ReferenceQueue<Object> queue) {
+            super(o, queue);
+            this.handle = summary.handle;
+            this.summary = summary;
+        }
+    }
+
+    final long maxBytes;
+
+    final int maxHandles;
+
+    final AtomicLong counter = new AtomicLong();
+
+    final Map<String, HandleReference> references = new HashMap<>();
+
+    final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    /**
+     * Strongly kept objects, least recently used first
+     */
+    final LinkedHashMap<String, Object> kept = new LinkedHashMap<>(16, 0.75f, true);
+
+    long keptBytes = 0;
+
+    public HandleStore() {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_HANDLES);
+    }
+
+    public HandleStore(long maxBytes, int maxHandles) {
+        this.maxBytes = maxBytes;
+        this.maxHandles = maxHandles;
+    }
+
+    /**
+     * @return true for objects worth a handle, false for simple values which are fully serialized anyway
+     */
+    public static boolean isStorable(Object o) {
+        return (o != null) && !isSimpleValue(o);
+    }
+
+    static boolean isSimpleValue(Object o) {
+        return (o instanceof CharSequence) || (o instanceof Number) || (o instanceof Boolean)
+                || (o instanceof Character) || (o instanceof Enum) || (o instanceof Class);
+    }
+
+    /**
+     * Stores the object: it is always kept strongly until the next put, even if it is larger than
+     * the memory bound, so that its handle is valid when the script result is returned
+     */
+    public synchronized Summary put(Object o) {
+        purge();
+        Summary summary = summarize(PREFIX + counter.incrementAndGet(), o);
+        references.put(summary.handle, new HandleReference(o, summary, collected));
+        kept.put(summary.handle, o);
+        keptBytes += summary.estimated_bytes;
+        Iterator<String> eldest = kept.keySet().iterator();
+        // The newest object is the last one: it is never evicted by its own put
+        while (((keptBytes > maxBytes) || (kept.size() > maxHandles)) && (kept.size() > 1)) {
+            keptBytes -= references.get(eldest.next()).summary.estimated_bytes;
+            eldest.remove();
+        }
+        return summary;
+    }
+
+    /**
+     * @return the object, or null if the handle is unknown, released or if its object was collected
+     */
+    public synchronized Object get(String handle) {
+        purge();
+        Object o = kept.get(handle); // Marks it as recently used
+        if (o != null) return o;
+        HandleReference reference = references.get(handle);
+        return reference == null ? null : reference.get();
+    }
+
+    public synchronized boolean release(String handle) {
+        HandleReference reference = references.remove(handle);
+        if (reference == null) return false;
+        if (kept.remove(handle) != null) keptBytes -= reference.summary.estimated_bytes;
+        return true;
+    }
+
+    public synchronized int size() {
+        purge();
+        return references.size();
+    }
+
+    public synchronized long getKeptBytes() {
+        return keptBytes;
+    }
+
+    void purge() {
+        HandleReference reference;
+        while ((reference = (HandleReference) collected.poll()) != null) {
+            references.remove(reference.handle, reference);
+        }
+    }
+
+    /**
+     * Puts the stored objects referenced by the code (_h12...) in the binding of the script
+     */
+    public void bind(String code, Binding binding) {
+        if (!code.contains(PREFIX)) return;
+        Matcher matcher = HANDLE_PATTERN.matcher(code);
+        while (matcher.find()) {
+            String handle = matcher.group();
+            Object o = get(handle);
+            if (o != null) binding.setVariable(handle, o);
+        }
+    }
+
+    // --------------- Summary
+
+    /**
+     * @return a rough estimate of the memory held by the object, see {@link Summary#estimated_bytes}
+     */
+    public static long estimateBytes(Object o) {
+        if (o == null) return 0;
+        if (isSimpleValue(o)) return (o instanceof CharSequence) ? 40 + 2L * ((CharSequence) o).length() : 16;
+        return summarize(null, o).estimated_bytes;
+    }
+
+    static Summary summarize(String handle, Object o) {
+        Summary summary = new Summary();
+        summary.handle = handle;
+        summary.class_name = o.getClass().getName();
+        summary.estimated_bytes = 64;
+        if (o.getClass().isArray()) {
+            int length = Array.getLength(o);
+            summary.size = (long) length;
+            summary.shape = arrayShape(o);
+            summary.estimated_bytes += arrayBytes(o);
+        } else if (o instanceof Collection) {
+            summary.size = (long) ((Collection<?>) o).size();
+            summary.estimated_bytes += 16 * summary.size;
+        } else if (o instanceof Map) {
+            summary.size = (long) ((Map<?, ?>) o).size();
+            summary.estimated_bytes += 32 * summary.size;
+        } else if (o instanceof ImagePlus) {
+            ImagePlus imp = (ImagePlus) o;
+            summary.shape = new long[]{imp.getNFrames(), imp.getNSlices(), imp.getNChannels(), imp.getHeight(), imp.getWidth()};
+            summary.estimated_bytes += (long) imp.getSizeInBytes();
+        } else if (o instanceof ImageProcessor) {
+            ImageProcessor ip = (ImageProcessor) o;
+            summary.shape = new long[]{ip.getHeight(), ip.getWidth()};
+            summary.estimated_bytes += (long) ip.getPixelCount() * Math.max(1, ip.getBitDepth() / 8);
+        } else if (o instanceof ResultsTable) {
+            ResultsTable rt = (ResultsTable) o;
+            summary.shape = new long[]{rt.size(), rt.getHeadings().length};
+            summary.estimated_bytes += 8L * rt.size() * rt.getHeadings().length;
+        } else if (o instanceof RandomAccessibleInterval) {
+            RandomAccessibleInterval<?> rai = (RandomAccessibleInterval<?>) o;
+            summary.shape = new long[rai.numDimensions()];
+            long pixels = 1;
+            for (int d = 0; d < rai.numDimensions(); d++) {
+                summary.shape[d] = rai.dimension(d);
+                pixels *= rai.dimension(d);
+            }
+            // The pixel type is unknown here: assume 4 bytes, views may not even hold their pixels
+            summary.estimated_bytes += 4 * pixels;
+        }
+        return summary;
+    }
+
+    /**
+     * @return the lengths along each dimension, following the first element of nested arrays
+     */
+    static long[] arrayShape(Object array) {
+        List<Long> lengths = new ArrayList<>();
+        Object current = array;
+        while ((current != null) && current.getClass().isArray()) {
+            int length = Array.getLength(current);
+            lengths.add((long) length);
+            current = (length > 0) && !current.getClass().getComponentType().isPrimitive() ? Array.get(current, 0) : null;
+        }
+        long[] shape = new long[lengths.size()];
+        for (int i = 0; i < shape.length; i++) shape[i] = lengths.get(i);
+        return shape;
+    }
+
+    static long arrayBytes(Object array) {
+        Class<?> component = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+        if (component == byte.class || component == boolean.class) return length;
+        if (component == short.class || component == char.class) return 2L * length;
+        if (component == int.class || component == float.class) return 4L * length;
+        if (component == long.class || component == double.class) return 8L * length;
+        long bytes = 8L * length;
+        for (int i = 0; i < length; i++) {
+            Object element = Array.get(array, i);
+            if ((element != null) && element.getClass().isArray()) bytes += arrayBytes(element);
+        }
+        return bytes;
+    }
+
+    // --------------- Inspection
+
+    /**
+     * @param path dot separated field names, map keys or indices leading to the inspected part, or empty for the object itself
+     * @param offset index of the first element or entry returned
+     * @param limit maximal number of elements or entries returned
+     * @throws IllegalArgumentException if the handle is unknown or the path invalid
+     */
+    public Page inspect(String handle, String path, int offset, int limit) {
+        Object o = get(handle);
+        if (o == null) throw new IllegalArgumentException("Unknown handle " + handle + ", it may have been released or collected");
+        if ((path != null) && !path.isEmpty()) {
+            for (String segment : path.split("\\.")) {
+                o = child(o, segment);
+            }
+        }
+        Page page = new Page();
+        page.handle = handle;
+        page.path = path;
+        page.offset = Math.max(0, offset);
+        int end = (int) Math.min((long) page.offset + Math.max(0, limit), Integer.MAX_VALUE);
+        if (o == null) return page;
+        page.class_name = o.getClass().getName();
+        if (isSimpleValue(o)) {
+            page.value = o;
+        } else if (o.getClass().isArray()) {
+            int length = Array.getLength(o);
+            page.total = (long) length;
+            page.items = new ArrayList<>();
+            for (int i = page.offset; i < Math.min(length, end); i++) page.items.add(Array.get(o, i));
+        } else if (o instanceof Map) {
+            page.total = (long) ((Map<?, ?>) o).size();
+            page.entries = new LinkedHashMap<>();
+            int i = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                if (i >= end) break;
+                if (i++ >= page.offset) page.entries.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+        } else if (o instanceof Iterable) {
+            if (o instanceof Collection) page.total = (long) ((Collection<?>) o).size();
+            page.items = new ArrayList<>();
+            int i = 0;
+            for (Object element : (Iterable<?>) o) {
+                if (i >= end) break;
+                if (i++ >= page.offset) page.items.add(element);
+            }
+        } else {
+            Field[] fields = ResultSerializer.SERIALIZABLE_FIELDS.get(o.getClass());
+            page.total = (long) fields.length;
+            page.entries = new LinkedHashMap<>();
+            for (int i = page.offset; i < Math.min(fields.length, end); i++) {
+                page.entries.put(fields[i].getName(), fieldValue(fields[i], o));
+            }
+        }
+        return page;
+    }
+
+    static Object child(Object o, String segment) {
+        if (o == null) throw new IllegalArgumentException("Cannot get " + segment + " of null");
+        if (o.getClass().isArray()) {
+            int index = index(segment, Array.getLength(o));
+            return Array.get(o, index);
+        }
+        if (o instanceof List) {
+            List<?> list = (List<?>) o;
+            return list.get(index(segment, list.size()));
+        }
+        if (o instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                if (segment.equals(String.valueOf(entry.getKey()))) return entry.getValue();
+            }
+            throw new IllegalArgumentException("No key " + segment + " in " + o.getClass().getName());
+        }
+        if (o instanceof Iterable) {
+            int index = index(segment, Integer.MAX_VALUE);
+            for (Object element : (Iterable<?>) o) {
+                if (index-- == 0) return element;
+            }
+            throw new IllegalArgumentException("Index " + segment + " out of range");
+        }
+        for (Field field : ResultSerializer.SERIALIZABLE_FIELDS.get(o.getClass())) {
+            if (field.getName().equals(segment)) return fieldValue(field, o);
+        }
+        throw new IllegalArgumentException("No field " + segment + " in " + o.getClass().getName());
+    }
+
+    static int index(String segment, int length) {
+        int index;
+        try {
+            index = Integer.parseInt(segment);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected an index instead of " + segment);
+        }
+        if ((index < 0) || (index >= length)) throw new IllegalArgumentException("Index " + index + " out of range");
+        return index;
+    }
+
+    static Object fieldValue(Field field, Object o) {
+        try {
+            return field.get(o);
+        } catch (IllegalAccessException e) {
+            throw new IllegalArgumentException("Cannot read field " + field.getName() + ": " + e.getMessage());
+        }
+    }
+}
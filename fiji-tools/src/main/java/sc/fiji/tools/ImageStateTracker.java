@@ -0,0 +1,214 @@
+package sc.fiji.tools;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.ImageWindow;
+
+import java.awt.AWTEvent;
+import java.awt.GraphicsEnvironment;
+import java.awt.Toolkit;
+import java.awt.event.AWTEventListener;
+import java.awt.event.WindowEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the description of the opened images up to date from ImageJ events, instead of rebuilding it on each query.
+ *
+ * Each change (image opened, closed, updated, or change of the active image) increments a version
+ * number, and is recorded with the version of the change, so that a client can ask only for what
+ * changed since the version it knows, see {@link #getStateSince(long)}.
+ */
+public class ImageStateTracker implements ImageListener {
+
+    /**
+     * Number of closed images remembered: clients older than the oldest of them get the full state
+     */
+    public static final int MAX_CLOSED_IMAGES = 1024;
+
+    static class Entry {
+        final ImagePlus imp;
+        FijiTools.ImagePlusDescription description;
+        long version;
+        /**
+         * Stamp of the last imageUpdated event, pixel changes included, which may leave the description unchanged
+         */
+        long modification;
+
+        Entry(ImagePlus imp) {
+            this.imp = imp;
+        }
+    }
+
+    static class Closed {
+        final int imageId;
+        final String title;
+        final long version;
+
+        Closed(int imageId, String title, long version) {
+            this.imageId = imageId;
+            this.title = title;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Changes since a version, as returned to clients
+     */
+    public static class StateDelta {
+        long version;
+        boolean full;
+        List<FijiTools.ImagePlusDescription> changed;
+        List<Closed> closed;
+    }
+
+    final Map<Integer, Entry> images = new LinkedHashMap<>(); // by image id, in opening order
+
+    final Deque<Closed> closedImages = new ArrayDeque<>();
+
+    long version = 0;
+
+    /**
+     * Shared by all trackers, so that a stamp identifies a state of an image whichever tracker gave
+     * it: {@link ImageStatistics} caches statistics per image and stamp, for all instances
+     */
+    static final AtomicLong modifications = new AtomicLong();
+
+    /**
+     * Version of the oldest change which is not recorded anymore
+     */
+    long forgottenVersion = 0;
+
+    int activeId = 0;
+
+    AWTEventListener windowListener;
+
+    public ImageStateTracker() {
+        ImagePlus.addImageListener(this);
+        if (!GraphicsEnvironment.isHeadless()) {
+            windowListener = event -> {
+                if ((event.getID() == WindowEvent.WINDOW_ACTIVATED) && (event.getSource() instanceof ImageWindow)) {
+                    updateActiveImage();
+                }
+            };
+            Toolkit.getDefaultToolkit().addAWTEventListener(windowListener, AWTEvent.WINDOW_EVENT_MASK);
+        }
+        int[] ids = WindowManager.getIDList();
+        if (ids != null) {
+            for (int id : ids) {
+                ImagePlus imp = WindowManager.getImage(id);
+                if (imp != null) imageOpened(imp);
+            }
+        }
+    }
+
+    public void dispose() {
+        ImagePlus.removeImageListener(this);
+        if (windowListener != null) {
+            Toolkit.getDefaultToolkit().removeAWTEventListener(windowListener);
+        }
+    }
+
+    @Override
+    public synchronized void imageOpened(ImagePlus imp) {
+        Entry entry = images.computeIfAbsent(imp.getID(), id -> new Entry(imp));
+        entry.modification = modifications.incrementAndGet();
+        update(entry);
+        updateActiveImage();
+    }
+
+    @Override
+    public synchronized void imageClosed(ImagePlus imp) {
+        Entry entry = images.remove(imp.getID());
+        if (entry == null) return;
+        version++;
+        closedImages.addLast(new Closed(imp.getID(), entry.description.title, version));
+        while (closedImages.size() > MAX_CLOSED_IMAGES) {
+            forgottenVersion = closedImages.removeFirst().version;
+        }
+        updateActiveImage();
+    }
+
+    @Override
+    public synchronized void imageUpdated(ImagePlus imp) {
+        Entry entry = images.get(imp.getID());
+        if (entry == null) return;
+        entry.modification = modifications.incrementAndGet();
+        update(entry);
+    }
+
+    synchronized void updateActiveImage() {
+        ImagePlus current = WindowManager.getCurrentImage();
+        int currentId = current == null ? 0 : current.getID();
+        if (currentId == activeId) return;
+        int previousId = activeId;
+        activeId = currentId;
+        Entry previous = images.get(previousId);
+        if (previous != null) update(previous);
+        Entry next = images.get(currentId);
+        if (next != null) update(next);
+    }
+
+    /**
+     * Recomputes the description of an image, and bumps the version only if it changed
+     */
+    void update(Entry entry) {
+        FijiTools.ImagePlusDescription description = FijiTools.getImageDescription(entry.imp, entry.imp.getID() == activeId);
+        if (description.equals(entry.description)) return;
+        entry.description = description;
+        entry.version = ++version;
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return a stamp which changes each time the image is updated (unlike its version, also when
+     * only its pixels change), or -1 if the image is not tracked
+     */
+    public synchronized long getModification(int imageId) {
+        Entry entry = images.get(imageId);
+        return entry == null ? -1 : entry.modification;
+    }
+
+    /**
+     * @return the description of all opened images, in opening order
+     */
+    public synchronized List<FijiTools.ImagePlusDescription> getState() {
+        updateActiveImage();
+        List<FijiTools.ImagePlusDescription> state = new ArrayList<>(images.size());
+        images.values().forEach(entry -> state.add(entry.description));
+        return state;
+    }
+
+    /**
+     * @param sinceVersion version returned by a previous call, or 0
+     * @return the images opened or changed and the images closed after this version. If the changes
+     * since this version are not all known anymore, the full state is returned instead (full = true),
+     * which the client should use to replace its state.
+     */
+    public synchronized StateDelta getStateSince(long sinceVersion) {
+        updateActiveImage();
+        StateDelta delta = new StateDelta();
+        delta.version = version;
+        delta.full = (sinceVersion < forgottenVersion) || (sinceVersion > version);
+        delta.changed = new ArrayList<>();
+        delta.closed = new ArrayList<>();
+        for (Entry entry : images.values()) {
+            if (delta.full || (entry.version > sinceVersion)) delta.changed.add(entry.description);
+        }
+        if (!delta.full) {
+            for (Closed closed : closedImages) {
+                if (closed.version > sinceVersion) delta.closed.add(closed);
+            }
+        }
+        return delta;
+    }
+}
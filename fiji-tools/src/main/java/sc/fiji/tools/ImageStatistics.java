@@ -0,0 +1,265 @@
+package sc.fiji.tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Statistics of an image: bit depth, calibration, memory footprint, and per channel min, max, mean,
+ * standard deviation and histogram over all slices and timepoints.
+ *
+ * Planes are processed in parallel (fork/join over the planes of a channel). Statistics are cached
+ * per image with {@link #of(ImagePlus, long)}, until the image changes. The mean and the variance are
+ * accumulated with Welford's algorithm, which stays accurate on large images with a large mean.
+ */
+public class ImageStatistics {
+
+    public static final int HISTOGRAM_BINS = 256;
+
+    public static class CalibrationDescription {
+        double pixel_width;
+        double pixel_height;
+        double pixel_depth;
+        String unit;
+        double frame_interval;
+        String time_unit;
+    }
+
+    public static class ChannelStatistics {
+        String channel;
+        long pixel_count;
+        double min;
+        double max;
+        double mean;
+        double std_dev;
+        /**
+         * Counts of {@link #HISTOGRAM_BINS} bins of equal width between min and max
+         */
+        long[] histogram;
+    }
+
+    int bit_depth;
+    CalibrationDescription calibration;
+    long memory_bytes;
+    boolean virtual_stack;
+    /**
+     * Not computed for virtual stacks, which would have to be read entirely
+     */
+    List<ChannelStatistics> channels;
+
+    // --------------- Cache
+
+    static class Cached {
+        final long modification;
+        final ImageStatistics statistics;
+
+        Cached(long modification, ImageStatistics statistics) {
+            this.modification = modification;
+            this.statistics = statistics;
+        }
+    }
+
+    /**
+     * Weakly keyed by image: the statistics of closed images go away with them. Shared by all the
+     * FijiTools instances, whose trackers draw their stamps from a single counter.
+     */
+    static final Map<ImagePlus, Cached> cache = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /**
+     * @param modification stamp of the last change of this image (see {@link ImageStateTracker#getModification(int)}),
+     * read before the call, or a negative value if unknown, in which case the statistics are not cached
+     * @return the statistics of the image, computed on the first call after each change of the image
+     */
+    public static ImageStatistics of(ImagePlus imp, long modification) {
+        Cached cached = cache.get(imp);
+        if ((cached != null) && (cached.modification == modification)) return cached.statistics;
+        ImageStatistics statistics = compute(imp);
+        // A change during the computation comes with a new stamp: these statistics will not be returned for it
+        if (modification >= 0) cache.put(imp, new Cached(modification, statistics));
+        return statistics;
+    }
+
+    // --------------- Computation
+
+    public static ImageStatistics compute(ImagePlus imp) {
+        ImageStatistics statistics = new ImageStatistics();
+        statistics.bit_depth = imp.getBitDepth();
+        statistics.memory_bytes = (long) imp.getSizeInBytes();
+        statistics.calibration = describe(imp.getCalibration());
+        ImageStack stack = imp.getStack();
+        statistics.virtual_stack = stack.isVirtual();
+        if (statistics.virtual_stack) return statistics;
+
+        statistics.channels = new ArrayList<>();
+        if (imp.getType() == ImagePlus.COLOR_RGB) {
+            String[] names = {"red", "green", "blue"};
+            for (int component = 0; component < 3; component++) {
+                statistics.channels.add(compute(imp, 0, component, names[component]));
+            }
+        } else {
+            for (int c = 1; c <= imp.getNChannels(); c++) {
+                statistics.channels.add(compute(imp, c, 0, Integer.toString(c)));
+            }
+        }
+        return statistics;
+    }
+
+    static CalibrationDescription describe(Calibration cal) {
+        CalibrationDescription description = new CalibrationDescription();
+        description.pixel_width = cal.pixelWidth;
+        description.pixel_height = cal.pixelHeight;
+        description.pixel_depth = cal.pixelDepth;
+        description.unit = cal.getUnit();
+        description.frame_interval = cal.frameInterval;
+        description.time_unit = cal.getTimeUnit();
+        return description;
+    }
+
+    /**
+     * @param c channel, or 0 for all planes (RGB images)
+     * @param component color component of RGB pixels (0 = red, 1 = green, 2 = blue)
+     */
+    static ChannelStatistics compute(ImagePlus imp, int c, int component, String name) {
+        List<Object> planes = new ArrayList<>();
+        ImageStack stack = imp.getStack();
+        for (int t = 1; t <= imp.getNFrames(); t++) {
+            for (int z = 1; z <= imp.getNSlices(); z++) {
+                if (c == 0) {
+                    for (int ci = 1; ci <= imp.getNChannels(); ci++) {
+                        planes.add(stack.getPixels(imp.getStackIndex(ci, z, t)));
+                    }
+                } else {
+                    planes.add(stack.getPixels(imp.getStackIndex(c, z, t)));
+                }
+            }
+        }
+
+        Accumulator moments = ForkJoinPool.commonPool().invoke(new PlanesTask(planes, 0, planes.size(), component, null));
+        ChannelStatistics statistics = new ChannelStatistics();
+        statistics.channel = name;
+        statistics.pixel_count = moments.count;
+        if (moments.count == 0) return statistics;
+        statistics.min = moments.min;
+        statistics.max = moments.max;
+        statistics.mean = moments.mean;
+        statistics.std_dev = Math.sqrt(moments.m2 / moments.count);
+        // Second pass, once the range is known
+        Accumulator histogram = ForkJoinPool.commonPool().invoke(new PlanesTask(planes, 0, planes.size(), component, moments));
+        statistics.histogram = histogram.histogram;
+        return statistics;
+    }
+
+    /**
+     * Moments of a set of pixels, or their histogram if a range is given
+     */
+    static class Accumulator {
+        long count;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double mean;
+        /**
+         * Sum of the squared differences to the mean
+         */
+        double m2;
+
+        final double histogramMin;
+        final double binsPerUnit;
+        final long[] histogram;
+
+        Accumulator(Accumulator range) {
+            if (range == null) {
+                histogramMin = 0;
+                binsPerUnit = 0;
+                histogram = null;
+            } else {
+                histogramMin = range.min;
+                binsPerUnit = range.max > range.min ? HISTOGRAM_BINS / (range.max - range.min) : 0;
+                histogram = new long[HISTOGRAM_BINS];
+            }
+        }
+
+        void add(double v) {
+            if (histogram != null) {
+                int bin = (int) ((v - histogramMin) * binsPerUnit);
+                histogram[Math.min(HISTOGRAM_BINS - 1, Math.max(0, bin))]++;
+                return;
+            }
+            count++;
+            if (v < min) min = v;
+            if (v > max) max = v;
+            double delta = v - mean;
+            mean += delta / count;
+            m2 += delta * (v - mean);
+        }
+
+        Accumulator merge(Accumulator other) {
+            if (histogram != null) {
+                for (int i = 0; i < HISTOGRAM_BINS; i++) histogram[i] += other.histogram[i];
+                return this;
+            }
+            if (other.count == 0) return this;
+            // Parallel form of Welford's algorithm (Chan et al.)
+            long n = count + other.count;
+            double delta = other.mean - mean;
+            mean += delta * other.count / n;
+            m2 += other.m2 + delta * delta * ((double) count * other.count / n);
+            count = n;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            return this;
+        }
+    }
+
+    static class PlanesTask extends RecursiveTask<Accumulator> {
+        final List<Object> planes;
+        final int from;
+        final int to;
+        final int component;
+        final Accumulator range;
+
+        PlanesTask(List<Object> planes, int from, int to, int component, Accumulator range) {
+            this.planes = planes;
+            this.from = from;
+            this.to = to;
+            this.component = component;
+            this.range = range;
+        }
+
+        @Override
+        protected Accumulator compute() {
+            if (to - from <= 1) {
+                Accumulator accumulator = new Accumulator(range);
+                if (from < to) accumulate(planes.get(from), component, accumulator);
+                return accumulator;
+            }
+            int middle = (from + to) >>> 1;
+            PlanesTask left = new PlanesTask(planes, from, middle, component, range);
+            left.fork();
+            Accumulator right = new PlanesTask(planes, middle, to, component, range).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    static void accumulate(Object pixels, int component, Accumulator accumulator) {
+        if (pixels instanceof byte[]) {
+            for (byte v : (byte[]) pixels) accumulator.add(v & 0xFF);
+        } else if (pixels instanceof short[]) {
+            for (short v : (short[]) pixels) accumulator.add(v & 0xFFFF);
+        } else if (pixels instanceof float[]) {
+            for (float v : (float[]) pixels) {
+                if (Float.isFinite(v)) accumulator.add(v);
+            }
+        } else if (pixels instanceof int[]) {
+            int shift = 16 - 8 * component;
+            for (int v : (int[]) pixels) accumulator.add((v >> shift) & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,583 @@
+package sc.fiji.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import net.imagej.ImageJ;
+
+import java.awt.GraphicsEnvironment;
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * MCP server speaking JSON-RPC over stdio, exposing {@link FijiTools} methods as tools, without python.
+ *
+ * Messages are newline delimited json, read from stdin and written to stdout through NIO channels.
+ * Tool calls are executed concurrently on a thread pool; responses are written as they complete,
+ * and a request can be cancelled with a "notifications/cancelled" notification. If the client sends
+ * a progress token, what a script prints is streamed as progress notifications while it runs.
+ *
+ * Since stdout carries the protocol, System.out is redirected to System.err while the server runs.
+ */
+public class McpServer {
+
+    public static final String SERVER_NAME = "fiji-tools";
+
+    public static final String SERVER_VERSION = "0.1.0";
+
+    static final List<String> PROTOCOL_VERSIONS = Arrays.asList("2025-06-18", "2025-03-26", "2024-11-05");
+
+    // JSON-RPC error codes
+    static final int PARSE_ERROR = -32700;
+    static final int INVALID_REQUEST = -32600;
+    static final int METHOD_NOT_FOUND = -32601;
+    static final int INVALID_PARAMS = -32602;
+    static final int INTERNAL_ERROR = -32603;
+
+    /**
+     * Single line json, as required by the stdio transport. Nulls are written: the response to a
+     * message which could not be parsed must have a null id.
+     */
+    static final Gson PROTOCOL_GSON = new GsonBuilder().disableHtmlEscaping().serializeSpecialFloatingPointValues()
+            .serializeNulls().create();
+
+    /**
+     * Starts Fiji and serves MCP requests on stdin / stdout until stdin is closed.
+     * With "--headless", or without display, no UI is shown. Tool results are compact json, unless
+     * "--pretty" is given.
+     */
+    public static void main(String... args) throws IOException {
+        WritableByteChannel stdout = new FileOutputStream(FileDescriptor.out).getChannel();
+        System.setOut(System.err);
+
+        boolean headless = Arrays.asList(args).contains("--headless") || GraphicsEnvironment.isHeadless();
+        long start = System.nanoTime();
+        ImageJ ij = new ImageJ();
+        if (!headless) ij.ui().showUI();
+        FijiTools tools = new FijiTools(ij, headless);
+        // Whitespace only costs tokens to the client
+        if (!Arrays.asList(args).contains("--pretty")) tools.setResponseEncoding(ResponseEncoder.COMPACT_JSON.getName());
+        tools.recordStartupPhaseDuration("imagej_init", (System.nanoTime() - start) / 1e6);
+        System.err.println("Fiji MCP server ready, startup timings (ms): " + tools.getStartupTimings());
+
+        new McpServer(tools).serve(new FileInputStream(FileDescriptor.in).getChannel(), stdout);
+        tools.dispose();
+        System.exit(0);
+    }
+
+    static class Tool {
+        final String name;
+        final String description;
+        final JsonObject properties = new JsonObject();
+        final JsonArray required = new JsonArray();
+        Function<JsonObject, String> handler;
+        /**
+         * Optional handler of tools which print while they run, used when the client asks for progress
+         */
+        BiFunction<JsonObject, OutputBuffer, String> streamingHandler;
+
+        Tool(String name, String description) {
+            this.name = name;
+            this.description = description;
+        }
+
+        Tool param(String name, String type, String description, boolean isRequired) {
+            JsonObject property = new JsonObject();
+            property.addProperty("type", type);
+            property.addProperty("description", description);
+            if ("array".equals(type)) {
+                JsonObject items = new JsonObject();
+                items.addProperty("type", "string");
+                property.add("items", items);
+            }
+            properties.add(name, property);
+            if (isRequired) required.add(name);
+            return this;
+        }
+
+        Tool handler(Function<JsonObject, String> handler) {
+            this.handler = handler;
+            return this;
+        }
+
+        Tool streamingHandler(BiFunction<JsonObject, OutputBuffer, String> streamingHandler) {
+            this.streamingHandler = streamingHandler;
+            return this;
+        }
+
+        JsonObject toJson() {
+            JsonObject tool = new JsonObject();
+            tool.addProperty("name", name);
+            tool.addProperty("description", description);
+            JsonObject schema = new JsonObject();
+            schema.addProperty("type", "object");
+            schema.add("properties", properties);
+            schema.add("required", required);
+            tool.add("inputSchema", schema);
+            return tool;
+        }
+    }
+
+    final FijiTools fijiTools;
+
+    final Map<String, Tool> tools = new LinkedHashMap<>();
+
+    final Map<String, Future<?>> inFlight = new ConcurrentHashMap<>();
+
+    final ExecutorService executor;
+
+    final ScheduledExecutorService progressScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fiji-mcp-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Interval between two progress notifications of a running tool
+     */
+    static final long PROGRESS_INTERVAL_MS = 250;
+
+    /**
+     * How long the calls in flight have to complete once the input is closed, before they are interrupted
+     */
+    static final long SHUTDOWN_TIMEOUT_MS = 10_000;
+
+    WritableByteChannel out;
+
+    public McpServer(FijiTools fijiTools) {
+        this.fijiTools = fijiTools;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "fiji-mcp-request-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        registerTools();
+    }
+
+    void add(Tool tool) {
+        tools.put(tool.name, tool);
+    }
+
+    void registerTools() {
+        add(new Tool("get_opened_images_information",
+                "Returns the list of already opened images in Fiji and some of their properties (can be empty). " +
+                        "In a groovy script, an image can be retrieved with ij.WindowManager.getImage(title)")
+                .param("with_statistics", "boolean", "if true, also returns bit depth, calibration, memory footprint and per channel min, max, mean, standard deviation and histogram", false)
+                .handler(a -> fijiTools.getCurrentState(bool(a, "with_statistics", false))));
+        add(new Tool("get_opened_images_changes",
+                "Returns only the images opened, changed or closed since a previous call, with the new version")
+                .param("since_version", "integer", "the version returned by the previous call, or 0 to get all opened images", false)
+                .param("with_statistics", "boolean", "if true, the changed images also contain their statistics", false)
+                .handler(a -> fijiTools.getStateSince(integer(a, "since_version", 0), bool(a, "with_statistics", false))));
+        add(new Tool("execute_groovy",
+                "Execute a groovy script in the current opened Fiji instance. Returns the ExecutionResult " +
+                        "(returnedObjectClass, returnedObject, executionSuccess, errorMessage) as json")
+                .param("groovy_code", "string", "the groovy code to execute, the returned object is serialized in the result", true)
+                .param("timeout_ms", "integer", "maximal wall clock time of the script, 0 for no limit", false)
+                .param("cpu_time_ms", "integer", "maximal CPU time of the script and of the threads it starts, 0 for no limit", false)
+                .param("max_allocated_bytes", "integer", "maximal number of bytes allocated by the script and the threads it starts, 0 for no limit", false)
+                .param("memoize", "boolean", "if true and the script was already run on the same opened images, returns the previous result " +
+                        "without running it again; only for scripts which read images", false)
+                .handler(a -> fijiTools.executeGroovy(string(a, "groovy_code"), new OutputBuffer(), limits(a), bool(a, "memoize", fijiTools.memoization)))
+                .streamingHandler((a, output) -> fijiTools.executeGroovy(string(a, "groovy_code"), output, limits(a), bool(a, "memoize", fijiTools.memoization))));
+        add(new Tool("execute_groovy_batch",
+                "Execute several groovy scripts one after the other; a variable assigned without 'def' in a script can be used by the following scripts")
+                .param("groovy_codes", "array", "the groovy scripts to execute, in order", true)
+                .param("stop_on_error", "boolean", "if true, the scripts following a failing script are skipped", false)
+                .handler(a -> fijiTools.executeGroovyBatch(strings(a, "groovy_codes"), bool(a, "stop_on_error", true))));
+        add(new Tool("execute_groovy_in_session",
+                "Execute a groovy script in a named session, created on first use: variables assigned without 'def', closures " +
+                        "and classes defined by the previous scripts of the session can be used, as in a REPL")
+                .param("session", "string", "the name of the session", true)
+                .param("groovy_code", "string", "the groovy code to execute, the returned object is serialized in the result", true)
+                .handler(a -> fijiTools.executeGroovyInSession(string(a, "session"), string(a, "groovy_code")))
+                .streamingHandler((a, output) -> fijiTools.executeGroovyInSession(string(a, "session"), string(a, "groovy_code"), output)));
+        add(new Tool("list_sessions", "Lists the opened sessions with their variables, number of executions, idle time and estimated memory")
+                .handler(a -> fijiTools.getSessions()));
+        add(new Tool("close_session", "Closes a session, forgetting its variables and classes")
+                .param("session", "string", "the name of the session", true)
+                .handler(a -> fijiTools.closeSession(string(a, "session"))));
+        add(new Tool("submit_groovy",
+                "Starts the execution of a groovy script without waiting for its end, returns a job id")
+                .param("groovy_code", "string", "the groovy code to execute", true)
+                .handler(a -> fijiTools.submitGroovy(string(a, "groovy_code"))));
+        add(new Tool("get_job_status", "Returns the state of a job started with submit_groovy")
+                .param("job_id", "string", "the id returned by submit_groovy", true)
+                .handler(a -> fijiTools.getJobStatus(string(a, "job_id"))));
+        add(new Tool("get_job_result", "Returns the state of a job started with submit_groovy, with its result if it is finished")
+                .param("job_id", "string", "the id returned by submit_groovy", true)
+                .handler(a -> fijiTools.getJobResult(string(a, "job_id"))));
+        add(new Tool("get_job_output", "Returns what a job started with submit_groovy printed since a position, to follow it while it runs")
+                .param("job_id", "string", "the id returned by submit_groovy", true)
+                .param("from_position", "integer", "the 'to' position of the previous chunk, or 0", false)
+                .handler(a -> fijiTools.getJobOutput(string(a, "job_id"), integer(a, "from_position", 0))));
+        add(new Tool("cancel_job", "Cancels a job started with submit_groovy, interrupting the script if it is running")
+                .param("job_id", "string", "the id returned by submit_groovy", true)
+                .handler(a -> fijiTools.cancelJob(string(a, "job_id"))));
+        add(new Tool("inspect_handle", "Returns a page of an object returned by a previous script, from its returnedHandle; " +
+                "later scripts can also use the object as a variable named after the handle")
+                .param("handle", "string", "the handle, for instance _h12", true)
+                .param("path", "string", "dot separated field names, map keys or indices leading to the part to inspect, empty for the object itself", false)
+                .param("offset", "integer", "index of the first element, entry or field returned", false)
+                .param("limit", "integer", "maximal number of elements, entries or fields returned", false)
+                .handler(a -> fijiTools.inspectHandle(string(a, "handle"), a.has("path") ? string(a, "path") : "",
+                        (int) integer(a, "offset", 0), (int) integer(a, "limit", 100))));
+        add(new Tool("release_handle", "Forgets an object returned by a previous script, so that its memory can be reclaimed")
+                .param("handle", "string", "the handle, for instance _h12", true)
+                .handler(a -> fijiTools.releaseHandle(string(a, "handle"))));
+        add(new Tool("show_or_update_script_in_editor", "Shows a groovy script in the Fiji script editor, replacing the script with the same title")
+                .param("groovy_code", "string", "the groovy code to show", true)
+                .param("script_title", "string", "the title of the script", true)
+                .handler(a -> {
+                    fijiTools.showOrUpdateScriptInEditor(string(a, "groovy_code"), string(a, "script_title"));
+                    return "";
+                }));
+        add(new Tool("get_script_from_editor", "Returns the text of a script opened in the Fiji script editor")
+                .param("script_title", "string", "the title of the script", true)
+                .handler(a -> fijiTools.getScriptFromEditor(string(a, "script_title"))));
+        add(new Tool("search_commands", "Searches the SciJava commands available in Fiji, by class name, label, description and parameters")
+                .param("query", "string", "words describing what you are looking for, for instance \"gaussian blur\"", true)
+                .param("k", "integer", "maximal number of commands returned", false)
+                .handler(a -> fijiTools.searchCommands(string(a, "query"), (int) integer(a, "k", 10))));
+        add(new Tool("fetch_source_code", "Returns the source code of a java class available in Fiji")
+                .param("class_name", "string", "the fully qualified name of the class", true)
+                .handler(a -> fijiTools.fetchSourceCodeContent(string(a, "class_name"))));
+        add(new Tool("export_pixels", "Writes the pixels of an image (or of a region of it) to a raw file, returns its descriptor (path, offset, dtype, shape as (t, z, c, y, x), strides, byte_order)")
+                .param("image_title", "string", "title of the opened image", true)
+                .param("c", "integer", "channel (starting at 1), or 0 for all channels", false)
+                .param("z", "integer", "slice (starting at 1), or 0 for all slices", false)
+                .param("t", "integer", "timepoint (starting at 1), or 0 for all timepoints", false)
+                .param("roi", "string", "\"x,y,width,height\" of the region to export in each plane, or empty for the full plane", false)
+                .handler(a -> fijiTools.exportPixels(string(a, "image_title"), (int) integer(a, "c", 0),
+                        (int) integer(a, "z", 0), (int) integer(a, "t", 0), a.has("roi") ? string(a, "roi") : null)));
+        add(new Tool("release_pixels", "Deletes a file written by export_pixels")
+                .param("path", "string", "the path of the descriptor returned by export_pixels", true)
+                .handler(a -> fijiTools.releasePixels(string(a, "path"))));
+        add(new Tool("list_tables", "Lists the results tables, the ROI Manager and the image overlays which can be exported with export_table and export_rois")
+                .handler(a -> fijiTools.listTables()));
+        add(new Tool("export_table", "Writes the columns of a results table to a raw file, returns its descriptor (path, total, offset, rows, byte_order, and per column its name, dtype, offset, length and value_offsets for text columns)")
+                .param("title", "string", "title of the table, or empty for the \"Results\" table", false)
+                .param("offset", "integer", "first exported row", false)
+                .param("limit", "integer", "maximal number of exported rows, or 0 for all rows", false)
+                .handler(a -> fijiTools.exportResultsTable(a.has("title") ? string(a, "title") : null,
+                        (int) integer(a, "offset", 0), (int) integer(a, "limit", 0))));
+        add(new Tool("export_rois", "Writes the rois of the ROI Manager or of an image overlay to a raw file, one row per roi (name, type, bounds, positions, polygon vertices), returns its descriptor as export_table")
+                .param("image_title", "string", "title of the image whose overlay is exported, or empty for the ROI Manager", false)
+                .param("offset", "integer", "first exported roi", false)
+                .param("limit", "integer", "maximal number of exported rois, or 0 for all rois", false)
+                .handler(a -> fijiTools.exportRois(a.has("image_title") ? string(a, "image_title") : null,
+                        (int) integer(a, "offset", 0), (int) integer(a, "limit", 0))));
+        add(new Tool("release_table", "Deletes a file written by export_table or export_rois")
+                .param("path", "string", "the path of the descriptor returned by export_table or export_rois", true)
+                .handler(a -> fijiTools.releaseTable(string(a, "path"))));
+        add(new Tool("get_metrics", "Returns performance metrics of the Fiji tools: latency histograms, counters and cache statistics")
+                .handler(a -> fijiTools.getMetrics()));
+        add(new Tool("get_startup_timings", "Returns how long each phase of the startup of Fiji took, in ms")
+                .handler(a -> fijiTools.getStartupTimings()));
+    }
+
+    // --------------- Argument helpers
+
+    static String string(JsonObject args, String name) {
+        JsonElement value = args.get(name);
+        if ((value == null) || value.isJsonNull()) throw new IllegalArgumentException("Missing argument " + name);
+        return value.getAsString();
+    }
+
+    static boolean bool(JsonObject args, String name, boolean defaultValue) {
+        JsonElement value = args.get(name);
+        return (value == null) || value.isJsonNull() ? defaultValue : value.getAsBoolean();
+    }
+
+    static long integer(JsonObject args, String name, long defaultValue) {
+        JsonElement value = args.get(name);
+        return (value == null) || value.isJsonNull() ? defaultValue : value.getAsLong();
+    }
+
+    /**
+     * Execution limits given in the arguments, the default limits of fijiTools for the missing ones
+     */
+    ExecutionBudget.Limits limits(JsonObject args) {
+        ExecutionBudget.Limits defaults = fijiTools.executionLimits;
+        return new ExecutionBudget.Limits(
+                integer(args, "timeout_ms", defaults.timeoutMs),
+                integer(args, "cpu_time_ms", defaults.cpuTimeMs),
+                integer(args, "max_allocated_bytes", defaults.allocatedBytes));
+    }
+
+    static List<String> strings(JsonObject args, String name) {
+        JsonElement value = args.get(name);
+        if ((value == null) || !value.isJsonArray()) throw new IllegalArgumentException("Missing array argument " + name);
+        List<String> strings = new ArrayList<>();
+        value.getAsJsonArray().forEach(e -> strings.add(e.getAsString()));
+        return strings;
+    }
+
+    // --------------- Transport
+
+    /**
+     * Reads newline delimited messages until the end of the input, then waits (at most
+     * {@link #SHUTDOWN_TIMEOUT_MS}) for the responses of the calls in flight to be written
+     */
+    public void serve(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+        this.out = out;
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (in.read(buffer) >= 0) {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    handleLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+                    line.reset();
+                } else {
+                    line.write(b);
+                }
+            }
+            buffer.clear();
+        }
+        if (line.size() > 0) handleLine(new String(line.toByteArray(), StandardCharsets.UTF_8));
+        executor.shutdown();
+        try {
+            // The responses of the calls in flight are still written
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) executor.shutdownNow();
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        } finally {
+            progressScheduler.shutdown();
+        }
+    }
+
+    void send(JsonObject message) {
+        byte[] bytes = (PROTOCOL_GSON.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        synchronized (this) {
+            try {
+                while (buffer.hasRemaining()) out.write(buffer);
+            } catch (IOException e) {
+                System.err.println("Could not write MCP message: " + e.getMessage());
+            }
+        }
+    }
+
+    // --------------- JSON-RPC
+
+    void handleLine(String line) {
+        if (line.trim().isEmpty()) return;
+        JsonElement message;
+        try {
+            message = JsonParser.parseString(line);
+        } catch (JsonParseException e) {
+            send(error(JsonNull.INSTANCE, PARSE_ERROR, "Parse error: " + e.getMessage()));
+            return;
+        }
+        if (message.isJsonArray()) {
+            message.getAsJsonArray().forEach(this::handleMessage);
+        } else {
+            handleMessage(message);
+        }
+    }
+
+    void handleMessage(JsonElement element) {
+        if (!element.isJsonObject() || !element.getAsJsonObject().has("method")) {
+            // Responses from the client (we send no requests) or invalid messages
+            if (element.isJsonObject() && element.getAsJsonObject().has("id") && !element.getAsJsonObject().has("result")
+                    && !element.getAsJsonObject().has("error")) {
+                send(error(element.getAsJsonObject().get("id"), INVALID_REQUEST, "Invalid request"));
+            }
+            return;
+        }
+        JsonObject message = element.getAsJsonObject();
+        String method = message.get("method").getAsString();
+        JsonElement id = message.get("id");
+        JsonObject params = message.has("params") && message.get("params").isJsonObject()
+                ? message.getAsJsonObject("params") : new JsonObject();
+
+        if (id == null) {
+            handleNotification(method, params);
+            return;
+        }
+        switch (method) {
+            case "initialize":
+                send(result(id, initialize(params)));
+                break;
+            case "ping":
+                send(result(id, new JsonObject()));
+                break;
+            case "tools/list":
+                JsonObject list = new JsonObject();
+                JsonArray array = new JsonArray();
+                tools.values().forEach(tool -> array.add(tool.toJson()));
+                list.add("tools", array);
+                send(result(id, list));
+                break;
+            case "tools/call":
+                String key = id.toString();
+                FutureTask<Void> call = new FutureTask<>(() -> {
+                    try {
+                        JsonObject response = callTool(id, params);
+                        // Removed by the cancellation: the client expects no response anymore
+                        if (inFlight.remove(key) != null) send(response);
+                    } finally {
+                        inFlight.remove(key);
+                    }
+                }, null);
+                inFlight.put(key, call); // before execution, so that the task always removes it
+                executor.execute(call);
+                break;
+            default:
+                send(error(id, METHOD_NOT_FOUND, "Method not found: " + method));
+        }
+    }
+
+    void handleNotification(String method, JsonObject params) {
+        if ("notifications/cancelled".equals(method) && params.has("requestId")) {
+            Future<?> running = inFlight.remove(params.get("requestId").toString());
+            // Interrupts the request thread: a script it waits for is cancelled with it, see FijiTools#runGroovy
+            if (running != null) running.cancel(true);
+        }
+        // notifications/initialized and others need no action
+    }
+
+    JsonObject initialize(JsonObject params) {
+        String requested = params.has("protocolVersion") ? params.get("protocolVersion").getAsString() : null;
+        JsonObject result = new JsonObject();
+        result.addProperty("protocolVersion", PROTOCOL_VERSIONS.contains(requested) ? requested : PROTOCOL_VERSIONS.get(0));
+        JsonObject capabilities = new JsonObject();
+        JsonObject toolsCapability = new JsonObject();
+        toolsCapability.addProperty("listChanged", false);
+        capabilities.add("tools", toolsCapability);
+        result.add("capabilities", capabilities);
+        JsonObject serverInfo = new JsonObject();
+        serverInfo.addProperty("name", SERVER_NAME);
+        serverInfo.addProperty("version", SERVER_VERSION);
+        result.add("serverInfo", serverInfo);
+        return result;
+    }
+
+    JsonObject callTool(JsonElement id, JsonObject params) {
+        String name = params.has("name") ? params.get("name").getAsString() : null;
+        Tool tool = tools.get(name);
+        if (tool == null) return error(id, INVALID_PARAMS, "Unknown tool: " + name);
+        JsonObject args = params.has("arguments") && params.get("arguments").isJsonObject()
+                ? params.getAsJsonObject("arguments") : new JsonObject();
+        JsonElement progressToken = params.has("_meta") && params.get("_meta").isJsonObject()
+                ? params.getAsJsonObject("_meta").get("progressToken") : null;
+        long start = System.nanoTime();
+        String text;
+        boolean isError;
+        // A flag left by a previous call of this pool thread
+        FijiTools.takeError();
+        try {
+            if ((progressToken != null) && (tool.streamingHandler != null)) {
+                text = callStreaming(tool, args, progressToken);
+            } else {
+                text = tool.handler.apply(args);
+            }
+            isError = FijiTools.takeError();
+        } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException e) {
+            text = "ERROR! Invalid arguments for " + name + ": " + e.getMessage();
+            isError = true;
+        } catch (RuntimeException e) {
+            return error(id, INTERNAL_ERROR, e.getClass().getSimpleName() + ": " + e.getMessage());
+        } finally {
+            Metrics.getDefault().timer("mcp.tools." + name).recordSince(start);
+        }
+        JsonObject content = new JsonObject();
+        content.addProperty("type", "text");
+        content.addProperty("text", text == null ? "" : text);
+        JsonArray contents = new JsonArray();
+        contents.add(content);
+        JsonObject result = new JsonObject();
+        result.add("content", contents);
+        result.addProperty("isError", isError);
+        return result(id, result);
+    }
+
+    /**
+     * Calls the tool while sending what it prints as progress notifications, at most every {@link #PROGRESS_INTERVAL_MS}
+     */
+    String callStreaming(Tool tool, JsonObject args, JsonElement progressToken) {
+        OutputBuffer output = new OutputBuffer();
+        AtomicLong position = new AtomicLong();
+        Runnable sendNewOutput = () -> {
+            synchronized (position) {
+                OutputBuffer.Chunk chunk = output.read(position.get());
+                if (chunk.to == position.get()) return;
+                position.set(chunk.to);
+                sendProgress(progressToken, chunk);
+            }
+        };
+        ScheduledFuture<?> poller = progressScheduler.scheduleWithFixedDelay(sendNewOutput,
+                PROGRESS_INTERVAL_MS, PROGRESS_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        try {
+            return tool.streamingHandler.apply(args, output);
+        } finally {
+            poller.cancel(false);
+            if (!Thread.currentThread().isInterrupted()) sendNewOutput.run();
+        }
+    }
+
+    void sendProgress(JsonElement progressToken, OutputBuffer.Chunk chunk) {
+        JsonObject params = new JsonObject();
+        params.add("progressToken", progressToken);
+        params.addProperty("progress", chunk.to);
+        params.addProperty("message", chunk.dropped > 0
+                ? "[... " + chunk.dropped + " characters truncated ...]\n" + chunk.text : chunk.text);
+        JsonObject notification = new JsonObject();
+        notification.addProperty("jsonrpc", "2.0");
+        notification.addProperty("method", "notifications/progress");
+        notification.add("params", params);
+        send(notification);
+    }
+
+    static JsonObject result(JsonElement id, JsonElement result) {
+        JsonObject response = new JsonObject();
+        response.addProperty("jsonrpc", "2.0");
+        response.add("id", id);
+        response.add("result", result);
+        return response;
+    }
+
+    static JsonObject error(JsonElement id, int code, String message) {
+        JsonObject error = new JsonObject();
+        error.addProperty("code", code);
+        error.addProperty("message", message);
+        JsonObject response = new JsonObject();
+        response.addProperty("jsonrpc", "2.0");
+        response.add("id", id);
+        response.add("error", error);
+        return response;
+    }
+}
@@ -0,0 +1,191 @@
+package sc.fiji.tools;
+
+import com.google.gson.JsonObject;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of low overhead metrics: histograms (latencies, sizes), counters and gauges.
+ *
+ * Histograms use power of two buckets, so recording a value is a few atomic increments and
+ * percentiles are approximate (within a factor of two). Metrics can be read as json with
+ * {@link #toJson()}, and through JMX once {@link #registerMBean()} has been called.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final String OBJECT_NAME = "sc.fiji.tools:type=Metrics";
+
+    /**
+     * If this system property is "true", the default registry is published through JMX
+     */
+    public static final String JMX_PROPERTY = "fiji.tools.jmx";
+
+    private static Metrics defaultMetrics;
+
+    public static synchronized Metrics getDefault() {
+        if (defaultMetrics == null) {
+            defaultMetrics = new Metrics();
+            if (Boolean.getBoolean(JMX_PROPERTY)) defaultMetrics.registerMBean();
+        }
+        return defaultMetrics;
+    }
+
+    public static class Histogram {
+        final String unit;
+        final double scale; // divides recorded values when reported
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final AtomicLong max = new AtomicLong();
+        final AtomicLongArray buckets = new AtomicLongArray(64); // bucket i: values < 2^i
+
+        Histogram(String unit, double scale) {
+            this.unit = unit;
+            this.scale = scale;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            count.increment();
+            sum.add(value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            long currentMax = max.get();
+            while ((value > currentMax) && !max.compareAndSet(currentMax, value)) {
+                currentMax = max.get();
+            }
+        }
+
+        /**
+         * Records the time elapsed since start, start being a {@link System#nanoTime()} value
+         */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        /**
+         * @return the upper bound of the bucket containing the quantile, capped by the maximum
+         */
+        long quantile(double q) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = (long) Math.ceil(q * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(max.get(), i == 63 ? Long.MAX_VALUE : (1L << i));
+            }
+            return max.get();
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            long n = count.sum();
+            json.addProperty("unit", unit);
+            json.addProperty("count", n);
+            json.addProperty("mean", n == 0 ? 0 : sum.sum() / scale / n);
+            json.addProperty("p50", quantile(0.5) / scale);
+            json.addProperty("p95", quantile(0.95) / scale);
+            json.addProperty("p99", quantile(0.99) / scale);
+            json.addProperty("max", max.get() / scale);
+            return json;
+        }
+
+        void reset() {
+            count.reset();
+            sum.reset();
+            max.set(0);
+            for (int i = 0; i < 64; i++) buckets.set(i, 0);
+        }
+    }
+
+    final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    final Map<String, Supplier<Number>> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @return the histogram of durations with this name, values are recorded in nanoseconds and reported in milliseconds
+     */
+    public Histogram timer(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram("ms", 1e6));
+    }
+
+    /**
+     * @return the histogram of sizes with this name
+     */
+    public Histogram sizes(String name, String unit) {
+        return histograms.computeIfAbsent(name, n -> new Histogram(unit, 1));
+    }
+
+    public LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers a value read when the metrics are reported, replacing any gauge with the same name
+     */
+    public void gauge(String name, Supplier<Number> value) {
+        gauges.put(name, value);
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        JsonObject h = new JsonObject();
+        new TreeMap<>(histograms).forEach((name, histogram) -> h.add(name, histogram.toJson()));
+        json.add("histograms", h);
+        JsonObject c = new JsonObject();
+        new TreeMap<>(counters).forEach((name, counter) -> c.addProperty(name, counter.sum()));
+        json.add("counters", c);
+        JsonObject g = new JsonObject();
+        new TreeMap<>(gauges).forEach((name, gauge) -> {
+            try {
+                g.addProperty(name, gauge.get());
+            } catch (RuntimeException e) {
+                g.addProperty(name, "ERROR! " + e.getMessage());
+            }
+        });
+        json.add("gauges", g);
+        return json;
+    }
+
+    @Override
+    public String getMetricsJson() {
+        return ResultSerializer.GSON.toJson(toJson());
+    }
+
+    /**
+     * Resets histograms and counters, gauges are not affected
+     */
+    @Override
+    public void reset() {
+        histograms.values().forEach(Histogram::reset);
+        counters.values().forEach(LongAdder::reset);
+    }
+
+    /**
+     * Publishes these metrics through JMX, under {@link #OBJECT_NAME}
+     * @return true if registered, false if already registered or if JMX is not available
+     */
+    public boolean registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) return false;
+            server.registerMBean(this, name);
+            return true;
+        } catch (JMException | RuntimeException e) {
+            System.err.println("Could not register metrics in JMX: " + e.getMessage());
+            return false;
+        }
+    }
+}
@@ -0,0 +1,11 @@
+package sc.fiji.tools;
+
+/**
+ * JMX view of {@link Metrics}
+ */
+public interface MetricsMXBean {
+
+    String getMetricsJson();
+
+    void reset();
+}
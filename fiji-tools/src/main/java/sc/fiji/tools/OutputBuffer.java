@@ -0,0 +1,109 @@
+package sc.fiji.tools;
+
+import java.io.Writer;
+
+/**
+ * Bounded ring buffer of characters, written by a running script and read incrementally by clients.
+ *
+ * Only the last {@link #getCapacity()} characters are kept. Characters are numbered from the start
+ * of the execution, so that a client can ask for what was written since the last position it read,
+ * and know how many characters it missed if they were dropped meanwhile.
+ */
+public class OutputBuffer extends Writer {
+
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    /**
+     * Characters from position from (included) to position to (excluded)
+     */
+    public static class Chunk {
+        public long from;
+        public long to;
+        /**
+         * Number of requested characters which were dropped before being read
+         */
+        public long dropped;
+        public String text;
+    }
+
+    final char[] ring;
+
+    /**
+     * Total number of characters written since the creation of the buffer
+     */
+    long written = 0;
+
+    public OutputBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public OutputBuffer(int capacity) {
+        ring = new char[capacity];
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public synchronized long getPosition() {
+        return written;
+    }
+
+    @Override
+    public synchronized void write(char[] chars, int off, int len) {
+        if (len > ring.length) {
+            // Only the end can be kept
+            written += len - ring.length;
+            off += len - ring.length;
+            len = ring.length;
+        }
+        int start = (int) (written % ring.length);
+        int first = Math.min(len, ring.length - start);
+        System.arraycopy(chars, off, ring, start, first);
+        System.arraycopy(chars, off + first, ring, 0, len - first);
+        written += len;
+    }
+
+    /**
+     * @param from position of the first character wanted, typically the "to" of the previous chunk
+     * @return the characters written since this position which are still in the buffer
+     */
+    public synchronized Chunk read(long from) {
+        Chunk chunk = new Chunk();
+        long oldest = Math.max(0, written - ring.length);
+        from = Math.max(0, Math.min(from, written));
+        chunk.dropped = Math.max(0, oldest - from);
+        chunk.from = Math.max(from, oldest);
+        chunk.to = written;
+        int len = (int) (chunk.to - chunk.from);
+        char[] chars = new char[len];
+        int start = (int) (chunk.from % ring.length);
+        int first = Math.min(len, ring.length - start);
+        System.arraycopy(ring, start, chars, 0, first);
+        System.arraycopy(ring, 0, chars, first, len - first);
+        chunk.text = new String(chars);
+        return chunk;
+    }
+
+    public synchronized boolean isEmpty() {
+        return written == 0;
+    }
+
+    /**
+     * @return the content kept, preceded by the number of dropped characters if some were dropped
+     */
+    @Override
+    public synchronized String toString() {
+        Chunk chunk = read(0);
+        if (chunk.dropped == 0) return chunk.text;
+        return "[... " + chunk.dropped + " characters truncated ...]\n" + chunk.text;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
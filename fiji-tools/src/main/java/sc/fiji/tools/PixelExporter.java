@@ -0,0 +1,195 @@
+package sc.fiji.tools;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Exports the pixels of an image region to a memory-mapped file, so that another process
+ * (typically NumPy on the python side) can map them without copying nor parsing.
+ *
+ * The region is written as a C-ordered array of shape (t, z, c, y, x), in native byte order.
+ * 8-bit, 16-bit and 32-bit images are exported as uint8, uint16 and float32, RGB images as uint32 (packed ARGB).
+ */
+public class PixelExporter {
+
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "fiji-tools-pixels");
+
+    /**
+     * Maximal size of a single mapping, planes are written by chunks of at most this size (or one plane)
+     */
+    static final long CHUNK_BYTES = 1L << 28;
+
+    /**
+     * Describes the exported array, enough to map it with numpy
+     */
+    public static class PixelsDescriptor {
+        String path;
+        long offset;
+        String dtype;
+        long[] shape;
+        long[] strides;
+        String byte_order;
+        String title;
+    }
+
+    final ExportedFiles files;
+
+    public PixelExporter(Path directory) {
+        this.files = new ExportedFiles(directory);
+    }
+
+    /**
+     * @param imp image to export
+     * @param c channel, 1-based, or 0 for all channels
+     * @param z slice, 1-based, or 0 for all slices
+     * @param t timepoint, 1-based, or 0 for all timepoints
+     * @param roi region exported in each plane, or null for the full plane
+     * @return the descriptor of the written file
+     */
+    public PixelsDescriptor export(ImagePlus imp, int c, int z, int t, Rectangle roi) throws IOException {
+        int[] cRange = range(c, imp.getNChannels(), "channel");
+        int[] zRange = range(z, imp.getNSlices(), "slice");
+        int[] tRange = range(t, imp.getNFrames(), "timepoint");
+        Rectangle bounds = new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        if (roi == null) roi = bounds;
+        roi = roi.intersection(bounds);
+        if (roi.isEmpty()) throw new IllegalArgumentException("The roi does not intersect the image");
+
+        int bytesPerPixel;
+        String dtype;
+        switch (imp.getType()) {
+            case ImagePlus.GRAY8:
+            case ImagePlus.COLOR_256:
+                bytesPerPixel = 1;
+                dtype = "uint8";
+                break;
+            case ImagePlus.GRAY16:
+                bytesPerPixel = 2;
+                dtype = "uint16";
+                break;
+            case ImagePlus.GRAY32:
+                bytesPerPixel = 4;
+                dtype = "float32";
+                break;
+            case ImagePlus.COLOR_RGB:
+                bytesPerPixel = 4;
+                dtype = "uint32";
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported image type " + imp.getType());
+        }
+
+        int nc = cRange[1] - cRange[0] + 1;
+        int nz = zRange[1] - zRange[0] + 1;
+        int nt = tRange[1] - tRange[0] + 1;
+        long planeBytes = (long) roi.width * roi.height * bytesPerPixel;
+        long nPlanes = (long) nc * nz * nt;
+
+        Path file = files.create("pixels-", ".raw");
+
+        ImageStack stack = imp.getStack();
+        int planesPerChunk = (int) Math.max(1, Math.min(nPlanes, CHUNK_BYTES / Math.max(1, planeBytes)));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long plane = 0;
+            MappedByteBuffer chunk = null;
+            for (int ti = tRange[0]; ti <= tRange[1]; ti++) {
+                for (int zi = zRange[0]; zi <= zRange[1]; zi++) {
+                    for (int ci = cRange[0]; ci <= cRange[1]; ci++) {
+                        if (plane % planesPerChunk == 0) {
+                            long chunkPlanes = Math.min(planesPerChunk, nPlanes - plane);
+                            chunk = channel.map(FileChannel.MapMode.READ_WRITE, plane * planeBytes, chunkPlanes * planeBytes);
+                            chunk.order(ByteOrder.nativeOrder());
+                        }
+                        int position = (int) ((plane % planesPerChunk) * planeBytes);
+                        Object pixels = stack.getPixels(imp.getStackIndex(ci, zi, ti));
+                        writePlane(chunk, position, pixels, imp.getWidth(), roi);
+                        plane++;
+                    }
+                }
+            }
+        }
+
+        PixelsDescriptor descriptor = new PixelsDescriptor();
+        descriptor.path = file.toAbsolutePath().toString();
+        descriptor.offset = 0;
+        descriptor.dtype = dtype;
+        descriptor.shape = new long[]{nt, nz, nc, roi.height, roi.width};
+        long rowBytes = (long) roi.width * bytesPerPixel;
+        descriptor.strides = new long[]{nz * nc * planeBytes, nc * planeBytes, planeBytes, rowBytes, bytesPerPixel};
+        descriptor.byte_order = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "little" : "big";
+        descriptor.title = imp.getTitle();
+        return descriptor;
+    }
+
+    static int[] range(int index, int size, String name) {
+        if (index == 0) return new int[]{1, size};
+        if ((index < 0) || (index > size)) {
+            throw new IllegalArgumentException("Invalid " + name + " " + index + ", the image has " + size);
+        }
+        return new int[]{index, index};
+    }
+
+    /**
+     * Copies the rows of the roi with bulk puts, through a typed view of the mapped buffer
+     */
+    static void writePlane(MappedByteBuffer chunk, int position, Object pixels, int width, Rectangle roi) {
+        ByteBuffer plane = chunk.duplicate();
+        plane.position(position);
+        plane = plane.slice().order(ByteOrder.nativeOrder());
+        int row = roi.width;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int y = roi.y; y < roi.y + roi.height; y++) {
+                plane.put(p, y * width + roi.x, row);
+            }
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            ShortBuffer view = plane.asShortBuffer();
+            for (int y = roi.y; y < roi.y + roi.height; y++) {
+                view.put(p, y * width + roi.x, row);
+            }
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            FloatBuffer view = plane.asFloatBuffer();
+            for (int y = roi.y; y < roi.y + roi.height; y++) {
+                view.put(p, y * width + roi.x, row);
+            }
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            IntBuffer view = plane.asIntBuffer();
+            for (int y = roi.y; y < roi.y + roi.height; y++) {
+                view.put(p, y * width + roi.x, row);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported pixel array " + pixels);
+        }
+    }
+
+    /**
+     * Deletes an exported file, only if it is in the export directory
+     * @return true if the file was deleted
+     */
+    public boolean release(String path) throws IOException {
+        return files.release(path);
+    }
+
+    /**
+     * Deletes the exported files which were not released
+     */
+    public void dispose() {
+        files.dispose();
+    }
+}
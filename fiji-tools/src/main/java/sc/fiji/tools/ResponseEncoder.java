@@ -0,0 +1,93 @@
+package sc.fiji.tools;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes responses into bytes, with the caps of a {@link ResultSerializer}.
+ *
+ * Encoders write into the {@link DirectBufferOutput} of the calling thread: the returned buffer
+ * is only valid until the next encoding on the same thread, callers copy it if they keep it.
+ * Other encodings can be added with {@link FijiTools#registerEncoder(ResponseEncoder)}.
+ */
+public interface ResponseEncoder {
+
+    ResponseEncoder JSON = new Json("json", true);
+
+    ResponseEncoder COMPACT_JSON = new Json("compact_json", false);
+
+    ResponseEncoder CBOR = new Cbor();
+
+    /**
+     * @return the name used to request this encoding
+     */
+    String getName();
+
+    String getMediaType();
+
+    ByteBuffer encode(ResultSerializer serializer, Object response);
+
+    /**
+     * UTF-8 JSON, indented or not
+     */
+    class Json implements ResponseEncoder {
+
+        final String name;
+
+        final boolean prettyPrinting;
+
+        public Json(String name, boolean prettyPrinting) {
+            this.name = name;
+            this.prettyPrinting = prettyPrinting;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getMediaType() {
+            return "application/json";
+        }
+
+        @Override
+        public ByteBuffer encode(ResultSerializer serializer, Object response) {
+            DirectBufferOutput output = DirectBufferOutput.reused();
+            Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+            serializer.withPrettyPrinting(prettyPrinting).write(response, writer);
+            try {
+                writer.flush();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return output.toBuffer();
+        }
+    }
+
+    /**
+     * CBOR, with arrays of primitive numbers as typed arrays, see {@link CborWriter}
+     */
+    class Cbor implements ResponseEncoder {
+
+        @Override
+        public String getName() {
+            return "cbor";
+        }
+
+        @Override
+        public String getMediaType() {
+            return "application/cbor";
+        }
+
+        @Override
+        public ByteBuffer encode(ResultSerializer serializer, Object response) {
+            DirectBufferOutput output = DirectBufferOutput.reused();
+            serializer.write(response, new CborWriter(output));
+            return output.toBuffer();
+        }
+    }
+}
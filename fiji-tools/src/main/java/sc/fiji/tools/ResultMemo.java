@@ -0,0 +1,347 @@
+package sc.fiji.tools;
+
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.WindowManager;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.FloatPolygon;
+
+import java.awt.geom.Rectangle2D;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Cache of script results, keyed by the hash of the code and by content fingerprints of the opened
+ * images, for scripts which only read images: running the same script on unchanged images returns
+ * the previous result.
+ *
+ * All opened images are fingerprinted, since a script can reach any of them. Fingerprints are computed
+ * in parallel over segments of the pixel arrays, and cached per image until it is updated or closed.
+ * Results are softly referenced, so that they are dropped under memory pressure, and removed when
+ * one of the images they were computed on changes. The image listener is only registered from the
+ * first key until {@link #stopListening()}, so that an unused memo costs nothing on image events.
+ *
+ * The key also contains what a script can read without it being in the pixels: the current channel,
+ * slice and frame, the calibration and the roi of each image. These are read on every call.
+ * Pixels modified in place without {@link ImagePlus#updateAndDraw()} (or another call notifying the
+ * image listeners) are not detected: the cached fingerprint of the image is then used, and a
+ * previous result may be returned.
+ */
+public class ResultMemo {
+
+    public static final int DEFAULT_MAX_ENTRIES = 256;
+
+    /**
+     * Number of pixels hashed by one task
+     */
+    static final int SEGMENT_LENGTH = 1 << 20;
+
+    /**
+     * Identifies a script execution on a state of the images
+     */
+    public static class Key {
+        final String key;
+        final int[] imageIds;
+        /**
+         * Generation of the images when the key was computed: results computed while images changed are not cached
+         */
+        final long generation;
+
+        Key(String key, int[] imageIds, long generation) {
+            this.key = key;
+            this.imageIds = imageIds;
+            this.generation = generation;
+        }
+    }
+
+    static class Memo {
+        final SoftReference<FijiTools.ExecutionResult> result;
+        final int[] imageIds;
+
+        Memo(FijiTools.ExecutionResult result, int[] imageIds) {
+            this.result = new SoftReference<>(result);
+            this.imageIds = imageIds;
+        }
+    }
+
+    final int maxEntries;
+
+    final Map<String, Memo> entries;
+
+    final Map<Integer, Long> fingerprints = new ConcurrentHashMap<>();
+
+    final AtomicLong generation = new AtomicLong();
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    boolean listening;
+
+    final ImageListener invalidator = new ImageListener() {
+        @Override
+        public void imageOpened(ImagePlus imp) {
+            generation.incrementAndGet();
+        }
+
+        @Override
+        public void imageClosed(ImagePlus imp) {
+            invalidate(imp);
+        }
+
+        @Override
+        public void imageUpdated(ImagePlus imp) {
+            invalidate(imp);
+        }
+    };
+
+    public ResultMemo() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public ResultMemo(int maxEntries) {
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Memo>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Memo> eldest) {
+                return size() > ResultMemo.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Registers the image listener invalidating the results, if not done yet
+     */
+    public synchronized void listen() {
+        if (listening) return;
+        ImagePlus.addImageListener(invalidator);
+        listening = true;
+    }
+
+    /**
+     * Removes the image listener and drops the results and fingerprints, which cannot be invalidated anymore
+     */
+    public synchronized void stopListening() {
+        if (listening) {
+            ImagePlus.removeImageListener(invalidator);
+            listening = false;
+        }
+        generation.incrementAndGet();
+        clear();
+    }
+
+    public void dispose() {
+        stopListening();
+    }
+
+    void invalidate(ImagePlus imp) {
+        int id = imp.getID();
+        generation.incrementAndGet();
+        fingerprints.remove(id);
+        synchronized (entries) {
+            entries.values().removeIf(entry -> Arrays.stream(entry.imageIds).anyMatch(i -> i == id));
+        }
+    }
+
+    /**
+     * Fingerprints the opened images (or takes their cached fingerprints) and combines them with the code
+     */
+    public Key key(String code) {
+        listen();
+        long currentGeneration = generation.get();
+        int[] ids = WindowManager.getIDList();
+        if (ids == null) ids = new int[0];
+        ids = ids.clone();
+        Arrays.sort(ids);
+        StringBuilder key = new StringBuilder(ScriptCache.hash(code));
+        ImagePlus active = WindowManager.getCurrentImage();
+        key.append(";active=").append(active == null ? 0 : active.getID());
+        for (int id : ids) {
+            ImagePlus imp = WindowManager.getImage(id);
+            if (imp == null) continue;
+            key.append(';').append(id).append('=').append(Long.toHexString(fingerprint(imp)))
+                    .append('/').append(Long.toHexString(viewFingerprint(imp)))
+                    .append(':').append(imp.getTitle());
+        }
+        return new Key(key.toString(), ids, currentGeneration);
+    }
+
+    /**
+     * @return the result of a previous execution with the same key, or null
+     */
+    public FijiTools.ExecutionResult get(Key key) {
+        Memo entry;
+        synchronized (entries) {
+            entry = entries.get(key.key);
+        }
+        FijiTools.ExecutionResult result = entry == null ? null : entry.result.get();
+        if (result == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return result;
+    }
+
+    /**
+     * Caches a result, unless an image changed since the key was computed
+     */
+    public void put(Key key, FijiTools.ExecutionResult result) {
+        synchronized (entries) {
+            if (generation.get() != key.generation) return;
+            purge();
+            entries.put(key.key, new Memo(result, key.imageIds));
+        }
+    }
+
+    /**
+     * Removes the entries whose result was collected
+     */
+    void purge() {
+        Iterator<Memo> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().result.get() == null) iterator.remove();
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+        fingerprints.clear();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // --------------- Fingerprints
+
+    /**
+     * @return the fingerprint of the image, computed on the first call after each change of the image
+     */
+    long fingerprint(ImagePlus imp) {
+        Long cached = fingerprints.get(imp.getID());
+        if (cached != null) return cached;
+        long before = generation.get();
+        long fingerprint = computeFingerprint(imp);
+        if (generation.get() == before) fingerprints.put(imp.getID(), fingerprint);
+        return fingerprint;
+    }
+
+    /**
+     * @return a hash of the current position, calibration and roi of the image, which change without
+     * any imageUpdated event and are not cached
+     */
+    static long viewFingerprint(ImagePlus imp) {
+        long h = mix(0x9E3779B97F4A7C15L, imp.getChannel());
+        h = mix(h, imp.getSlice());
+        h = mix(h, imp.getFrame());
+        Calibration cal = imp.getCalibration();
+        if (cal != null) {
+            h = mix(h, Double.doubleToLongBits(cal.pixelWidth));
+            h = mix(h, Double.doubleToLongBits(cal.pixelHeight));
+            h = mix(h, Double.doubleToLongBits(cal.pixelDepth));
+            h = mix(h, Double.doubleToLongBits(cal.xOrigin));
+            h = mix(h, Double.doubleToLongBits(cal.yOrigin));
+            h = mix(h, Double.doubleToLongBits(cal.zOrigin));
+            h = mix(h, Double.doubleToLongBits(cal.frameInterval));
+            h = mix(h, cal.getUnit().hashCode());
+            h = mix(h, cal.getFunction());
+            h = mix(h, Arrays.hashCode(cal.getCoefficients()));
+        }
+        Roi roi = imp.getRoi();
+        if (roi == null) return h;
+        h = mix(h, roi.getType());
+        h = mix(h, roi.getPosition());
+        Rectangle2D.Double bounds = roi.getFloatBounds();
+        h = mix(h, Double.doubleToLongBits(bounds.x));
+        h = mix(h, Double.doubleToLongBits(bounds.y));
+        h = mix(h, Double.doubleToLongBits(bounds.width));
+        h = mix(h, Double.doubleToLongBits(bounds.height));
+        FloatPolygon polygon = roi.getFloatPolygon();
+        if (polygon != null) {
+            for (int i = 0; i < polygon.npoints; i++) {
+                h = mix(h, Float.floatToRawIntBits(polygon.xpoints[i]));
+                h = mix(h, Float.floatToRawIntBits(polygon.ypoints[i]));
+            }
+        }
+        return h;
+    }
+
+    static long computeFingerprint(ImagePlus imp) {
+        long h = mix(0x9E3779B97F4A7C15L, imp.getWidth());
+        h = mix(h, imp.getHeight());
+        h = mix(h, imp.getNChannels());
+        h = mix(h, imp.getNSlices());
+        h = mix(h, imp.getNFrames());
+        h = mix(h, imp.getBitDepth());
+        ImageStack stack = imp.getStack();
+        if (stack.isVirtual()) {
+            // Reading a whole virtual stack is too slow: its planes are assumed to be unchanged on disk
+            return mix(h, System.identityHashCode(stack));
+        }
+        List<long[]> segments = new ArrayList<>(); // {plane index, from, to}
+        List<Object> planes = new ArrayList<>();
+        for (int i = 1; i <= stack.getSize(); i++) {
+            Object pixels = stack.getPixels(i);
+            int length = pixels == null ? 0 : Array.getLength(pixels);
+            for (int from = 0; from < Math.max(1, length); from += SEGMENT_LENGTH) {
+                segments.add(new long[]{planes.size(), from, Math.min(length, from + SEGMENT_LENGTH)});
+            }
+            planes.add(pixels);
+        }
+        long[] hashes = IntStream.range(0, segments.size()).parallel()
+                .mapToLong(i -> {
+                    long[] segment = segments.get(i);
+                    return hash(planes.get((int) segment[0]), (int) segment[1], (int) segment[2]);
+                }).toArray();
+        for (long segmentHash : hashes) h = mix(h, segmentHash);
+        return h;
+    }
+
+    static long hash(Object pixels, int from, int to) {
+        long h = 0xCBF29CE484222325L;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = from; i < to; i++) h = (h ^ p[i]) * 0x100000001B3L;
+        } else if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = from; i < to; i++) h = (h ^ p[i]) * 0x100000001B3L;
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = from; i < to; i++) h = (h ^ Float.floatToRawIntBits(p[i])) * 0x100000001B3L;
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            for (int i = from; i < to; i++) h = (h ^ p[i]) * 0x100000001B3L;
+        }
+        return h;
+    }
+
+    static long mix(long h, long v) {
+        h ^= v + 0x9E3779B97F4A7C15L + (h << 6) + (h >>> 2);
+        h *= 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,616 @@
+package sc.fiji.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSerializationContext;
+import com.google.gson.JsonSerializer;
+import com.google.gson.stream.JsonWriter;
+import ij.ImagePlus;
+import ij.measure.ResultsTable;
+import ij.process.ImageProcessor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.util.Util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Streams objects returned by scripts as JSON, with caps on nesting depth, on the number of
+ * elements written per array / collection / map and on the total output size (in UTF-8 bytes).
+ *
+ * Whenever a cap is reached the output stays valid JSON: the skipped part is replaced by a
+ * marker object such as {"_truncated": "maxElements", "total": 1048576}. So that markers cannot be
+ * confused with data, map keys and field names made of underscores followed by "truncated"
+ * ("_truncated", "__truncated"...) are written with one more leading underscore.
+ * Images, processors, results tables and ImgLib2 intervals are written with compact
+ * descriptions instead of their content.
+ *
+ * The output is JSON by default, or any {@link StructuredWriter}, for instance CBOR with
+ * {@link #write(Object, StructuredWriter)}. Writers supporting it get arrays of primitive numbers
+ * as packed blocks instead of lists of numbers.
+ *
+ * Instances are immutable and can be shared between threads.
+ */
+public class ResultSerializer {
+
+    public static final int DEFAULT_MAX_DEPTH = 8;
+
+    public static final int DEFAULT_MAX_ELEMENTS = 1000;
+
+    public static final long DEFAULT_MAX_BYTES = 1_000_000;
+
+    public static final String TRUNCATION_KEY = "_truncated";
+
+    /**
+     * Keys escaped by {@link #escapeKey(String)}
+     */
+    static final Pattern MARKER_LIKE_KEY = Pattern.compile("_+truncated");
+
+    /**
+     * Writes a compact description of an object
+     */
+    interface CompactWriter<T> {
+        void write(StructuredWriter out, T value) throws IOException;
+    }
+
+    static final Map<Class<?>, CompactWriter<?>> COMPACT_ADAPTERS = new LinkedHashMap<>();
+
+    static {
+        COMPACT_ADAPTERS.put(ImagePlus.class, new ImagePlusAdapter());
+        COMPACT_ADAPTERS.put(ImageProcessor.class, new ImageProcessorAdapter());
+        COMPACT_ADAPTERS.put(ResultsTable.class, new ResultsTableAdapter());
+        COMPACT_ADAPTERS.put(RandomAccessibleInterval.class, new RandomAccessibleIntervalAdapter());
+    }
+
+    /**
+     * Shared, thread-safe Gson instance, aware of the compact adapters
+     */
+    public static final Gson GSON = createGson();
+
+    /**
+     * Same as {@link #GSON}, without whitespace
+     */
+    public static final Gson COMPACT_GSON = createGson(false);
+
+    private static Gson createGson() {
+        return createGson(true);
+    }
+
+    private static Gson createGson(boolean prettyPrinting) {
+        GsonBuilder builder = new GsonBuilder();
+        if (prettyPrinting) builder.setPrettyPrinting();
+        // As the compact writers, which write NaN pixel values
+        builder.serializeSpecialFloatingPointValues();
+        COMPACT_ADAPTERS.forEach((type, writer) -> builder.registerTypeHierarchyAdapter(type, new GsonAdapter<>(writer)));
+        return builder.create();
+    }
+
+    static final ClassValue<Field[]> SERIALIZABLE_FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> fields = new ArrayList<>();
+            for (Class<?> c = type; (c != null) && (c != Object.class); c = c.getSuperclass()) {
+                for (Field f : c.getDeclaredFields()) {
+                    int modifiers = f.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || f.isSynthetic()) continue;
+                    f.setAccessible(true);
+                    fields.add(f);
+                }
+            }
+            return fields.toArray(new Field[0]);
+        }
+    };
+
+    final int maxDepth;
+
+    final int maxElements;
+
+    final long maxBytes;
+
+    final boolean prettyPrinting;
+
+    public ResultSerializer() {
+        this(DEFAULT_MAX_DEPTH, DEFAULT_MAX_ELEMENTS, DEFAULT_MAX_BYTES);
+    }
+
+    public ResultSerializer(int maxDepth, int maxElements, long maxBytes) {
+        this(maxDepth, maxElements, maxBytes, true);
+    }
+
+    public ResultSerializer(int maxDepth, int maxElements, long maxBytes, boolean prettyPrinting) {
+        this.maxDepth = maxDepth;
+        this.maxElements = maxElements;
+        this.maxBytes = maxBytes;
+        this.prettyPrinting = prettyPrinting;
+    }
+
+    /**
+     * @return a serializer with the same caps, which writes JSON without any whitespace
+     */
+    public ResultSerializer compact() {
+        return withPrettyPrinting(false);
+    }
+
+    public ResultSerializer withPrettyPrinting(boolean prettyPrinting) {
+        return this.prettyPrinting == prettyPrinting ? this : new ResultSerializer(maxDepth, maxElements, maxBytes, prettyPrinting);
+    }
+
+    public boolean isPrettyPrinting() {
+        return prettyPrinting;
+    }
+
+    /**
+     * @return the shared Gson instance writing the same json flavour as this serializer, for small, unbounded responses
+     */
+    public Gson getGson() {
+        return prettyPrinting ? GSON : COMPACT_GSON;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxElements() {
+        return maxElements;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public String toJson(Object o) {
+        StringWriter sw = new StringWriter();
+        write(o, sw);
+        return sw.toString();
+    }
+
+    /**
+     * Writes the bounded JSON representation of o into the writer
+     * @return true if some part of the object was truncated
+     */
+    public boolean write(Object o, Writer writer) {
+        CountingWriter counter = new CountingWriter(writer);
+        JsonWriter out = new JsonWriter(counter);
+        if (prettyPrinting) out.setIndent("  ");
+        out.setLenient(true); // NaN and infinite values are common in pixel data
+        return write(o, new StructuredWriter.Json(out, counter));
+    }
+
+    /**
+     * Writes the bounded representation of o with the writer, the byte budget applying to what the writer writes
+     * @return true if some part of the object was truncated
+     */
+    public boolean write(Object o, StructuredWriter writer) {
+        try {
+            Session session = new Session(writer);
+            session.writeValue(o, 0);
+            session.out.flush();
+            return session.truncated;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    class Session {
+
+        final StructuredWriter out;
+
+        final Map<Object, Boolean> path = new IdentityHashMap<>();
+
+        boolean truncated = false;
+
+        Session(StructuredWriter out) {
+            this.out = out;
+        }
+
+        boolean overBudget() {
+            return out.getBytesWritten() >= maxBytes;
+        }
+
+        void writeMarker(String reason, Long total, Object o) throws IOException {
+            truncated = true;
+            out.beginObject();
+            out.name(TRUNCATION_KEY).value(reason);
+            if (total != null) out.name("total").value(total);
+            if (o != null) out.name("class").value(o.getClass().getName());
+            out.endObject();
+        }
+
+        void writeString(String s) throws IOException {
+            long remaining = Math.max(0, maxBytes - out.getBytesWritten());
+            int end = utf8Prefix(s, remaining);
+            if (end < s.length()) {
+                truncated = true;
+                out.value(s.substring(0, end) + "...[" + TRUNCATION_KEY + " " + s.length() + " chars]");
+            } else {
+                out.value(s);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void writeValue(Object o, int depth) throws IOException {
+            if (o == null) {
+                out.nullValue();
+                return;
+            }
+            if (overBudget()) {
+                writeMarker("maxBytes", null, o);
+                return;
+            }
+            if (o instanceof String) {
+                writeString((String) o);
+                return;
+            }
+            if (o instanceof Number) {
+                out.value((Number) o);
+                return;
+            }
+            if (o instanceof Boolean) {
+                out.value((Boolean) o);
+                return;
+            }
+            if ((o instanceof Character) || (o instanceof CharSequence)) {
+                writeString(o.toString());
+                return;
+            }
+            if (o instanceof Enum) {
+                out.value(((Enum<?>) o).name());
+                return;
+            }
+            if (o instanceof Class) {
+                out.value(((Class<?>) o).getName());
+                return;
+            }
+            if (o instanceof JsonElement) {
+                writeJsonElement((JsonElement) o);
+                return;
+            }
+            for (Map.Entry<Class<?>, CompactWriter<?>> entry : COMPACT_ADAPTERS.entrySet()) {
+                if (entry.getKey().isInstance(o)) {
+                    ((CompactWriter<Object>) entry.getValue()).write(out, o);
+                    return;
+                }
+            }
+            if (depth >= maxDepth) {
+                writeMarker("maxDepth", null, o);
+                return;
+            }
+            if (path.containsKey(o)) {
+                writeMarker("cycle", null, o);
+                return;
+            }
+            path.put(o, Boolean.TRUE);
+            try {
+                if (o.getClass().isArray()) {
+                    writeArray(o, depth);
+                } else if (o instanceof Map) {
+                    writeMap((Map<?, ?>) o, depth);
+                } else if (o instanceof Iterable) {
+                    writeIterable((Iterable<?>) o, depth);
+                } else if (isPlatformClass(o.getClass())) {
+                    writeString(String.valueOf(o));
+                } else {
+                    writeFields(o, depth);
+                }
+            } finally {
+                path.remove(o);
+            }
+        }
+
+        /**
+         * Json trees built by this library, written without caps
+         */
+        void writeJsonElement(JsonElement element) throws IOException {
+            if (element.isJsonNull()) {
+                out.nullValue();
+            } else if (element.isJsonPrimitive()) {
+                JsonPrimitive primitive = element.getAsJsonPrimitive();
+                if (primitive.isBoolean()) {
+                    out.value(primitive.getAsBoolean());
+                } else if (primitive.isNumber()) {
+                    out.value(primitive.getAsNumber());
+                } else {
+                    out.value(primitive.getAsString());
+                }
+            } else if (element.isJsonArray()) {
+                out.beginArray();
+                for (JsonElement e : element.getAsJsonArray()) writeJsonElement(e);
+                out.endArray();
+            } else {
+                out.beginObject();
+                for (Map.Entry<String, JsonElement> e : element.getAsJsonObject().entrySet()) {
+                    out.name(escapeKey(e.getKey()));
+                    writeJsonElement(e.getValue());
+                }
+                out.endObject();
+            }
+        }
+
+        void writeArray(Object array, int depth) throws IOException {
+            int length = Array.getLength(array);
+            if (out.writesPackedArrays() && (DirectBufferOutput.elementSize(array) > 0)) {
+                writePackedArray(array, length);
+                return;
+            }
+            out.beginArray();
+            int i = 0;
+            while ((i < length) && (i < maxElements) && (!overBudget())) {
+                writeValue(Array.get(array, i), depth + 1);
+                i++;
+            }
+            if (i < length) {
+                writeMarker(overBudget() ? "maxBytes" : "maxElements", (long) length, null);
+            }
+            out.endArray();
+        }
+
+        /**
+         * Writes the elements as a single block; if some are dropped, the block and the marker are wrapped in an array
+         */
+        void writePackedArray(Object array, int length) throws IOException {
+            long remaining = Math.max(0, maxBytes - out.getBytesWritten());
+            int n = (int) Math.min(Math.min(length, maxElements), remaining / DirectBufferOutput.elementSize(array));
+            if (n == length) {
+                out.packedArray(array, n);
+                return;
+            }
+            out.beginArray();
+            out.packedArray(array, n);
+            writeMarker(n < Math.min(length, maxElements) ? "maxBytes" : "maxElements", (long) length, null);
+            out.endArray();
+        }
+
+        void writeIterable(Iterable<?> iterable, int depth) throws IOException {
+            out.beginArray();
+            Iterator<?> iterator = iterable.iterator();
+            int i = 0;
+            while ((iterator.hasNext()) && (i < maxElements) && (!overBudget())) {
+                writeValue(iterator.next(), depth + 1);
+                i++;
+            }
+            if (iterator.hasNext()) {
+                Long total = (iterable instanceof Collection) ? (long) ((Collection<?>) iterable).size() : null;
+                writeMarker(overBudget() ? "maxBytes" : "maxElements", total, null);
+            }
+            out.endArray();
+        }
+
+        void writeMap(Map<?, ?> map, int depth) throws IOException {
+            out.beginObject();
+            Iterator<? extends Map.Entry<?, ?>> iterator = map.entrySet().iterator();
+            int i = 0;
+            while ((iterator.hasNext()) && (i < maxElements) && (!overBudget())) {
+                Map.Entry<?, ?> entry = iterator.next();
+                out.name(escapeKey(String.valueOf(entry.getKey())));
+                writeValue(entry.getValue(), depth + 1);
+                i++;
+            }
+            if (iterator.hasNext()) {
+                out.name(TRUNCATION_KEY);
+                writeMarker(overBudget() ? "maxBytes" : "maxElements", (long) map.size(), null);
+            }
+            out.endObject();
+        }
+
+        void writeFields(Object o, int depth) throws IOException {
+            Field[] fields;
+            try {
+                fields = SERIALIZABLE_FIELDS.get(o.getClass());
+            } catch (RuntimeException e) {
+                // Inaccessible fields (module encapsulation): fall back to the string representation
+                writeString(String.valueOf(o));
+                return;
+            }
+            out.beginObject();
+            for (Field f : fields) {
+                if (overBudget()) {
+                    out.name(TRUNCATION_KEY);
+                    writeMarker("maxBytes", null, null);
+                    break;
+                }
+                Object value;
+                try {
+                    value = f.get(o);
+                } catch (IllegalAccessException e) {
+                    continue;
+                }
+                if (value == null) continue; // Same as Gson defaults: null fields are omitted
+                out.name(escapeKey(f.getName()));
+                writeValue(value, depth + 1);
+            }
+            out.endObject();
+        }
+    }
+
+    /**
+     * @return the key, with one more leading underscore if it could be taken for the truncation marker
+     */
+    static String escapeKey(String key) {
+        return MARKER_LIKE_KEY.matcher(key).matches() ? "_" + key : key;
+    }
+
+    /**
+     * @return the length of the longest prefix of s whose UTF-8 encoding fits in maxBytes, without splitting surrogate pairs
+     */
+    static int utf8Prefix(String s, long maxBytes) {
+        long bytes = 0;
+        int i = 0;
+        while (i < s.length()) {
+            char c = s.charAt(i);
+            int chars = 1;
+            int size;
+            if (c < 0x80) {
+                size = 1;
+            } else if (c < 0x800) {
+                size = 2;
+            } else if (Character.isHighSurrogate(c) && (i + 1 < s.length()) && Character.isLowSurrogate(s.charAt(i + 1))) {
+                chars = 2;
+                size = 4;
+            } else {
+                size = 3;
+            }
+            if (bytes + size > maxBytes) return i;
+            bytes += size;
+            i += chars;
+        }
+        return i;
+    }
+
+    static boolean isPlatformClass(Class<?> c) {
+        String name = c.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("jdk.");
+    }
+
+    /**
+     * Counts the UTF-8 encoded size of what is written
+     */
+    static class CountingWriter extends Writer {
+
+        final Writer writer;
+
+        long bytes = 0;
+
+        CountingWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                bytes += (c < 0x80) ? 1 : ((c < 0x800) || Character.isSurrogate(c)) ? 2 : 3;
+            }
+            writer.write(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    /**
+     * Makes a compact writer usable by Gson. A serializer rather than a TypeAdapter, since these
+     * types are only written: Gson then reports a missing deserializer instead of failing inside read
+     */
+    static class GsonAdapter<T> implements JsonSerializer<T> {
+        final CompactWriter<T> writer;
+
+        GsonAdapter(CompactWriter<T> writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public JsonElement serialize(T value, Type type, JsonSerializationContext context) {
+            StructuredWriter.Tree tree = new StructuredWriter.Tree();
+            try {
+                writer.write(tree, value);
+            } catch (IOException e) {
+                throw new JsonIOException(e);
+            }
+            return tree.get();
+        }
+    }
+
+    static class ImagePlusAdapter implements CompactWriter<ImagePlus> {
+        @Override
+        public void write(StructuredWriter out, ImagePlus imp) throws IOException {
+            if (imp == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("class").value(imp.getClass().getName());
+            out.name("title").value(imp.getTitle());
+            out.name("width").value(imp.getWidth());
+            out.name("height").value(imp.getHeight());
+            out.name("nChannels").value(imp.getNChannels());
+            out.name("nSlices").value(imp.getNSlices());
+            out.name("nFrames").value(imp.getNFrames());
+            out.name("bitDepth").value(imp.getBitDepth());
+            out.endObject();
+        }
+    }
+
+    static class ImageProcessorAdapter implements CompactWriter<ImageProcessor> {
+        @Override
+        public void write(StructuredWriter out, ImageProcessor ip) throws IOException {
+            if (ip == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("class").value(ip.getClass().getName());
+            out.name("width").value(ip.getWidth());
+            out.name("height").value(ip.getHeight());
+            out.name("bitDepth").value(ip.getBitDepth());
+            out.name("displayMin").value(ip.getMin());
+            out.name("displayMax").value(ip.getMax());
+            out.endObject();
+        }
+    }
+
+    static class ResultsTableAdapter implements CompactWriter<ResultsTable> {
+        @Override
+        public void write(StructuredWriter out, ResultsTable rt) throws IOException {
+            if (rt == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("class").value(rt.getClass().getName());
+            if (rt.getTitle() != null) out.name("title").value(rt.getTitle());
+            out.name("rows").value(rt.size());
+            out.name("columns").beginArray();
+            for (String heading : rt.getHeadings()) {
+                out.value(heading);
+            }
+            out.endArray();
+            out.endObject();
+        }
+    }
+
+    static class RandomAccessibleIntervalAdapter implements CompactWriter<RandomAccessibleInterval> {
+        @Override
+        public void write(StructuredWriter out, RandomAccessibleInterval rai) throws IOException {
+            if (rai == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("class").value(rai.getClass().getName());
+            out.name("dimensions").beginArray();
+            for (int d = 0; d < rai.numDimensions(); d++) {
+                out.value(rai.dimension(d));
+            }
+            out.endArray();
+            try {
+                out.name("type").value(Util.getTypeFromInterval(rai).getClass().getSimpleName());
+            } catch (RuntimeException e) {
+                out.nullValue();
+            }
+            out.endObject();
+        }
+    }
+}
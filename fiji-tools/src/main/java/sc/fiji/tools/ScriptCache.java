@@ -0,0 +1,143 @@
+package sc.fiji.tools;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of compiled Groovy script classes, keyed by the SHA-256 hash
+ * of the script code (as returned by {@link FijiTools#extractCode(String)}).
+ *
+ * Each entry is compiled by its own {@link GroovyClassLoader}, so evicting an entry
+ * lets the generated classes be garbage collected. A cache can instead compile all its
+ * entries with a shared loader, so that the classes defined by a script can be used by the
+ * following ones (see {@link ScriptSessions}).
+ */
+public class ScriptCache {
+
+    public static final int DEFAULT_CAPACITY = 256;
+
+    final int capacity;
+
+    final ClassLoader parentClassLoader;
+
+    /**
+     * If not null, compiles all the scripts: its classes are only collected with the cache
+     */
+    final GroovyClassLoader sharedLoader;
+
+    final AtomicLong hits = new AtomicLong();
+
+    final AtomicLong misses = new AtomicLong();
+
+    final Map<String, Class<? extends Script>> compiledScripts;
+
+    public ScriptCache(ClassLoader parentClassLoader, int capacity) {
+        this(parentClassLoader, null, capacity);
+    }
+
+    public ScriptCache(GroovyClassLoader sharedLoader, int capacity) {
+        this(sharedLoader, sharedLoader, capacity);
+    }
+
+    ScriptCache(ClassLoader parentClassLoader, GroovyClassLoader sharedLoader, int capacity) {
+        this.parentClassLoader = parentClassLoader;
+        this.sharedLoader = sharedLoader;
+        this.capacity = capacity;
+        this.compiledScripts = new LinkedHashMap<String, Class<? extends Script>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Class<? extends Script>> eldest) {
+                return size() > ScriptCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * @param code groovy code, possibly containing SciJava script parameters (#@ lines)
+     * @return the compiled script class, taken from the cache when the same code was compiled before
+     */
+    public Class<? extends Script> getOrCompile(String code) {
+        String key = hash(code);
+        synchronized (compiledScripts) {
+            Class<? extends Script> cached = compiledScripts.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached;
+            }
+        }
+        misses.incrementAndGet();
+        Class<? extends Script> compiled = compile(code);
+        synchronized (compiledScripts) {
+            compiledScripts.put(key, compiled);
+        }
+        return compiled;
+    }
+
+    @SuppressWarnings("unchecked")
+    Class<? extends Script> compile(String code) {
+        GroovyClassLoader loader = sharedLoader != null ? sharedLoader : new GroovyClassLoader(parentClassLoader);
+        return (Class<? extends Script>) loader.parseClass(stripScriptParameters(code));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public int size() {
+        synchronized (compiledScripts) {
+            return compiledScripts.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void clear() {
+        synchronized (compiledScripts) {
+            compiledScripts.clear();
+        }
+    }
+
+    /**
+     * SciJava script parameters (#@ lines) are not valid groovy: they are consumed by
+     * the {@link org.scijava.script.ScriptInfo} and blanked here, keeping line numbers intact
+     */
+    static String stripScriptParameters(String code) {
+        String[] lines = code.split("\n", -1);
+        StringBuilder stripped = new StringBuilder(code.length());
+        for (int i = 0; i < lines.length; i++) {
+            if (!lines[i].trim().startsWith("#@")) {
+                stripped.append(lines[i]);
+            }
+            if (i < lines.length - 1) {
+                stripped.append("\n");
+            }
+        }
+        return stripped.toString();
+    }
+
+    public static String hash(String code) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(code.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+                hex.append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
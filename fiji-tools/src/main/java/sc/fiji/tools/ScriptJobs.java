@@ -0,0 +1,207 @@
+package sc.fiji.tools;
+
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Table of asynchronously executed scripts.
+ *
+ * Each submitted script gets an id which can be used to poll its state, fetch its result
+ * or cancel it. Finished jobs are kept for a bounded time, and the table never holds
+ * more than a bounded number of finished jobs.
+ */
+public class ScriptJobs {
+
+    public static final long DEFAULT_RETENTION_MS = 10 * 60 * 1000;
+
+    public static final int DEFAULT_MAX_FINISHED_JOBS = 256;
+
+    public enum State {
+        QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED;
+
+        public boolean isFinished() {
+            return (this == SUCCEEDED) || (this == FAILED) || (this == CANCELLED);
+        }
+    }
+
+    /**
+     * Runs a script, and hands the future of the running module to the consumer as soon as it is started
+     */
+    public interface ScriptRunner {
+        FijiTools.ExecutionResult run(String code, Consumer<Future<?>> onModuleStarted, OutputBuffer output);
+    }
+
+    static class Job {
+        final String id;
+        final long submittedAt = System.currentTimeMillis();
+        volatile long startedAt = -1;
+        volatile long finishedAt = -1;
+        volatile State state = State.QUEUED;
+        volatile Future<?> task;
+        volatile Future<?> moduleFuture;
+        volatile FijiTools.ExecutionResult result;
+        final OutputBuffer output = new OutputBuffer();
+
+        Job(String id) {
+            this.id = id;
+        }
+    }
+
+    public static class JobStatus {
+        public String id;
+        public State state;
+        public String submittedAt;
+        public String startedAt;
+        public String finishedAt;
+        public Long durationMs;
+        /**
+         * Number of characters printed so far, see {@link #getOutput(String, long)}
+         */
+        public long outputLength;
+        public FijiTools.ExecutionResult result;
+    }
+
+    final ScriptRunner runner;
+
+    final long retentionMs;
+
+    final int maxFinishedJobs;
+
+    final AtomicLong idCounter = new AtomicLong();
+
+    final Map<String, Job> jobs = new ConcurrentHashMap<>();
+
+    final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "fiji-tools-job");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public ScriptJobs(ScriptRunner runner) {
+        this(runner, DEFAULT_RETENTION_MS, DEFAULT_MAX_FINISHED_JOBS);
+    }
+
+    public ScriptJobs(ScriptRunner runner, long retentionMs, int maxFinishedJobs) {
+        this.runner = runner;
+        this.retentionMs = retentionMs;
+        this.maxFinishedJobs = maxFinishedJobs;
+    }
+
+    /**
+     * @param code the script to run
+     * @return the id of the job
+     */
+    public String submit(String code) {
+        purge();
+        Job job = new Job("job-" + idCounter.incrementAndGet());
+        jobs.put(job.id, job);
+        job.task = executor.submit(() -> execute(job, code));
+        return job.id;
+    }
+
+    void execute(Job job, String code) {
+        synchronized (job) {
+            if (job.state != State.QUEUED) return;
+            job.state = State.RUNNING;
+            job.startedAt = System.currentTimeMillis();
+        }
+        FijiTools.ExecutionResult result = null;
+        try {
+            result = runner.run(code, future -> {
+                job.moduleFuture = future;
+                if (job.state == State.CANCELLED) future.cancel(true);
+            }, job.output);
+        } catch (Throwable t) {
+            // Nobody reads the future of the task: the job would stay RUNNING forever
+            result = FijiTools.failure(new FijiTools.ExecutionResult(), "The job failed: " + t);
+        } finally {
+            synchronized (job) {
+                if (job.state != State.CANCELLED) {
+                    job.result = result;
+                    job.state = (result != null) && result.executionSuccess ? State.SUCCEEDED : State.FAILED;
+                    job.finishedAt = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the job was still queued or running and is now cancelled
+     */
+    public boolean cancel(String id) {
+        Job job = jobs.get(id);
+        if (job == null) return false;
+        synchronized (job) {
+            if (job.state.isFinished()) return false;
+            job.state = State.CANCELLED;
+            job.finishedAt = System.currentTimeMillis();
+        }
+        Future<?> moduleFuture = job.moduleFuture;
+        if (moduleFuture != null) moduleFuture.cancel(true);
+        if (job.task != null) job.task.cancel(true);
+        return true;
+    }
+
+    /**
+     * @return the status of the job, with its result if withResult is true and the job is finished,
+     * or null if no such job is known (never submitted, or already purged)
+     */
+    public JobStatus getStatus(String id, boolean withResult) {
+        purge();
+        Job job = jobs.get(id);
+        if (job == null) return null;
+        JobStatus status = new JobStatus();
+        synchronized (job) {
+            status.id = job.id;
+            status.state = job.state;
+            status.submittedAt = Instant.ofEpochMilli(job.submittedAt).toString();
+            if (job.startedAt >= 0) status.startedAt = Instant.ofEpochMilli(job.startedAt).toString();
+            if (job.finishedAt >= 0) status.finishedAt = Instant.ofEpochMilli(job.finishedAt).toString();
+            if ((job.startedAt >= 0) && (job.finishedAt >= 0)) status.durationMs = job.finishedAt - job.startedAt;
+            if (withResult) status.result = job.result;
+            status.outputLength = job.output.getPosition();
+        }
+        return status;
+    }
+
+    /**
+     * @return what the job printed since the position, or null if no such job is known
+     */
+    public OutputBuffer.Chunk getOutput(String id, long from) {
+        Job job = jobs.get(id);
+        if (job == null) return null;
+        return job.output.read(from);
+    }
+
+    /**
+     * Removes finished jobs older than the retention time, and the oldest finished jobs
+     * above the maximal number of finished jobs
+     */
+    void purge() {
+        long now = System.currentTimeMillis();
+        jobs.values().removeIf(job -> job.state.isFinished() && (now - job.finishedAt > retentionMs));
+        long nFinished = jobs.values().stream().filter(job -> job.state.isFinished()).count();
+        if (nFinished > maxFinishedJobs) {
+            Iterator<Job> oldest = jobs.values().stream()
+                    .filter(job -> job.state.isFinished())
+                    .sorted((a, b) -> Long.compare(a.finishedAt, b.finishedAt))
+                    .limit(nFinished - maxFinishedJobs)
+                    .iterator();
+            while (oldest.hasNext()) {
+                jobs.remove(oldest.next().id);
+            }
+        }
+    }
+
+    public void shutdown() {
+        jobs.keySet().forEach(this::cancel);
+        executor.shutdownNow();
+    }
+}
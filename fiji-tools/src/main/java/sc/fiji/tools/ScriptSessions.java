@@ -0,0 +1,282 @@
+package sc.fiji.tools;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Named scripting sessions, in which successive scripts share their variables, like in a REPL.
+ *
+ * A session keeps the {@link Binding} of its scripts (variables assigned without def, closures...)
+ * and compiles them with a shared class loader, so that the classes defined by a script can be used
+ * by the following ones. Sessions unused for longer than the idle timeout are closed, also when no
+ * client calls, by a periodic sweep. After each execution, the largest variables of a session are
+ * removed until its estimated memory is within budget.
+ *
+ * A session can be closed while a thread waits to execute in it: executions check
+ * {@link Session#isClosed()} once they hold the session, and get a new session if it was closed.
+ */
+public class ScriptSessions {
+
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 60 * 1000;
+
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    public static final int SCRIPT_CACHE_CAPACITY = 64;
+
+    static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "fiji-tools-session-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Binding variables which are set for each execution and not owned by the session
+     */
+    static final String OUTPUT_VARIABLE = "out";
+
+    public static class Session {
+        final String name;
+        final Binding binding = new Binding();
+        final GroovyClassLoader loader;
+        final ScriptCache scriptCache;
+        volatile long lastUsed = System.currentTimeMillis();
+        volatile boolean busy = false;
+        /**
+         * Set when the session is removed, before its variables are released
+         */
+        volatile boolean closed = false;
+        long executions = 0;
+
+        Session(String name, ClassLoader parentClassLoader) {
+            this.name = name;
+            this.loader = new GroovyClassLoader(parentClassLoader);
+            this.scriptCache = new ScriptCache(loader, SCRIPT_CACHE_CAPACITY);
+        }
+
+        public Binding getBinding() {
+            return binding;
+        }
+
+        public ScriptCache getScriptCache() {
+            return scriptCache;
+        }
+
+        /**
+         * @return true if the session was closed or expired, for instance while the calling thread
+         * was waiting for it: it must not be used anymore
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Releases the variables, classes and compiled scripts, with the lock of the session held
+         */
+        void release() {
+            binding.getVariables().clear();
+            scriptCache.clear();
+            try {
+                loader.close();
+            } catch (IOException e) {
+                System.err.println("Could not close the class loader of session " + name + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static class SessionInfo {
+        String name;
+        long executions;
+        long idle_ms;
+        long estimated_bytes;
+        /**
+         * Class name of each variable
+         */
+        Map<String, String> variables;
+    }
+
+    final ClassLoader parentClassLoader;
+
+    final Map<String, Session> sessions = new LinkedHashMap<>();
+
+    volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+
+    volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+    final ScheduledFuture<?> sweep;
+
+    public ScriptSessions(ClassLoader parentClassLoader) {
+        this.parentClassLoader = parentClassLoader;
+        this.sweep = sweeper.scheduleWithFixedDelay(this::expireIdleSessions, SWEEP_INTERVAL_MS, SWEEP_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the sweep and closes all sessions
+     */
+    public void dispose() {
+        sweep.cancel(false);
+        List<Session> closed;
+        synchronized (this) {
+            closed = new ArrayList<>(sessions.values());
+            sessions.clear();
+            closed.forEach(session -> session.closed = true);
+        }
+        release(closed);
+    }
+
+    /**
+     * @param idleTimeoutMs sessions unused for longer are closed, 0 to keep them until closed explicitly
+     * @param maxBytes estimated memory budget of each session
+     */
+    public void setLimits(long idleTimeoutMs, long maxBytes) {
+        this.idleTimeoutMs = idleTimeoutMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return the session with this name, created if it does not exist or expired, and marked as used.
+     * Executions in a session should synchronize on it: they share its variables.
+     */
+    public Session getOrCreate(String name) {
+        List<Session> expired;
+        Session session;
+        synchronized (this) {
+            expired = removeExpired();
+            session = sessions.computeIfAbsent(name, n -> new Session(n, parentClassLoader));
+            session.lastUsed = System.currentTimeMillis();
+        }
+        release(expired);
+        return session;
+    }
+
+    public boolean close(String name) {
+        Session session;
+        synchronized (this) {
+            session = sessions.remove(name);
+            if (session == null) return false;
+            session.closed = true;
+        }
+        release(Collections.singletonList(session));
+        return true;
+    }
+
+    public List<SessionInfo> list() {
+        List<Session> expired;
+        List<SessionInfo> infos;
+        synchronized (this) {
+            expired = removeExpired();
+            infos = describe();
+        }
+        release(expired);
+        return infos;
+    }
+
+    List<SessionInfo> describe() {
+        List<SessionInfo> infos = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Session session : sessions.values()) {
+            SessionInfo info = new SessionInfo();
+            info.name = session.name;
+            info.executions = session.executions;
+            info.idle_ms = now - session.lastUsed;
+            info.variables = new TreeMap<>();
+            for (Map.Entry<String, Object> variable : variables(session).entrySet()) {
+                Object value = variable.getValue();
+                info.variables.put(variable.getKey(), value == null ? "null" : value.getClass().getName());
+                info.estimated_bytes += HandleStore.estimateBytes(value);
+            }
+            infos.add(info);
+        }
+        return infos;
+    }
+
+    /**
+     * Records an execution in the session, then removes its largest variables while its estimated
+     * memory is above the budget. To be called by the thread executing in the session.
+     * @return the names of the removed variables
+     */
+    public List<String> afterExecution(Session session) {
+        session.executions++;
+        session.lastUsed = System.currentTimeMillis();
+        List<String> evicted = new ArrayList<>();
+        Map<String, Long> sizes = new LinkedHashMap<>();
+        long total = 0;
+        for (Map.Entry<String, Object> variable : variables(session).entrySet()) {
+            long size = HandleStore.estimateBytes(variable.getValue());
+            sizes.put(variable.getKey(), size);
+            total += size;
+        }
+        while ((total > maxBytes) && !sizes.isEmpty()) {
+            Map.Entry<String, Long> largest = null;
+            for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                if ((largest == null) || (entry.getValue() > largest.getValue())) largest = entry;
+            }
+            sizes.remove(largest.getKey());
+            session.binding.getVariables().remove(largest.getKey());
+            total -= largest.getValue();
+            evicted.add(largest.getKey());
+        }
+        return evicted;
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> variables(Session session) {
+        Map<String, Object> variables = new LinkedHashMap<>((Map<String, Object>) session.binding.getVariables());
+        variables.remove(OUTPUT_VARIABLE);
+        return variables;
+    }
+
+    void expireIdleSessions() {
+        List<Session> expired;
+        synchronized (this) {
+            expired = removeExpired();
+        }
+        release(expired);
+    }
+
+    /**
+     * Removes the sessions unused for longer than the idle timeout, and marks them as closed.
+     * To be called with the lock of this object held, their release being done after
+     */
+    List<Session> removeExpired() {
+        if (idleTimeoutMs <= 0) return Collections.emptyList();
+        List<Session> expired = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        Iterator<Session> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            Session session = iterator.next();
+            if (!session.busy && (now - session.lastUsed > idleTimeoutMs)) {
+                iterator.remove();
+                session.closed = true;
+                expired.add(session);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Releases removed sessions, each with its lock held: waits for the end of a running execution.
+     * Called without the lock of this object, so that other sessions are not blocked meanwhile
+     */
+    static void release(List<Session> removed) {
+        for (Session session : removed) {
+            synchronized (session) {
+                session.release();
+            }
+        }
+    }
+}
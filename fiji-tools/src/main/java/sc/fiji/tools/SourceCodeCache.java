@@ -0,0 +1,252 @@
+package sc.fiji.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Two tier cache of source files: an in-memory LRU, backed by a content-addressed store on disk.
+ *
+ * On disk, each source file is stored once under the hash of its content ("objects" folder), and
+ * each key (class name and artifact version) points to a content hash ("refs" folder). Once filled,
+ * the disk store serves sources without any network access.
+ *
+ * Concurrent requests for the same key share a single fetch. The fetcher is pluggable, the default
+ * one uses HTTP with timeouts and a few retries.
+ *
+ * Keys of SNAPSHOT versions are not cached: the same version can be published again with other sources.
+ */
+public class SourceCodeCache {
+
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".fiji-tools", "sources");
+
+    public static final int DEFAULT_MEMORY_CAPACITY = 64;
+
+    public interface Fetcher {
+        String fetch(URL url) throws IOException;
+    }
+
+    /**
+     * Retries on network errors and server errors, not on client errors (4xx), which are reported
+     * at once as {@link FileNotFoundException}
+     */
+    public static class HttpFetcher implements Fetcher {
+
+        final int connectTimeoutMs;
+        final int readTimeoutMs;
+        final int retries;
+
+        public HttpFetcher() {
+            this(5000, 15000, 2);
+        }
+
+        public HttpFetcher(int connectTimeoutMs, int readTimeoutMs, int retries) {
+            this.connectTimeoutMs = connectTimeoutMs;
+            this.readTimeoutMs = readTimeoutMs;
+            this.retries = retries;
+        }
+
+        @Override
+        public String fetch(URL url) throws IOException {
+            IOException lastError = null;
+            for (int attempt = 0; attempt <= retries; attempt++) {
+                try {
+                    return read(url);
+                } catch (FileNotFoundException e) {
+                    throw e;
+                } catch (IOException e) {
+                    lastError = e;
+                    if (attempt == retries) break;
+                    try {
+                        Thread.sleep(250L << attempt);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            throw lastError;
+        }
+
+        String read(URL url) throws IOException {
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(connectTimeoutMs);
+            connection.setReadTimeout(readTimeoutMs);
+            if (connection instanceof HttpURLConnection) {
+                int code = ((HttpURLConnection) connection).getResponseCode();
+                if ((code >= 400) && (code < 500)) {
+                    throw new FileNotFoundException("HTTP " + code + " for " + url);
+                }
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("HTTP " + code + " for " + url);
+                }
+            }
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                in.transferTo(out);
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }
+        }
+    }
+
+    private static SourceCodeCache defaultCache;
+
+    public static synchronized SourceCodeCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new SourceCodeCache(DEFAULT_DIRECTORY, DEFAULT_MEMORY_CAPACITY, new HttpFetcher());
+        }
+        return defaultCache;
+    }
+
+    final Path directory;
+
+    final int memoryCapacity;
+
+    volatile Fetcher fetcher;
+
+    final Map<String, String> memory;
+
+    final ConcurrentHashMap<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+
+    public SourceCodeCache(Path directory, int memoryCapacity, Fetcher fetcher) {
+        this.directory = directory;
+        this.memoryCapacity = memoryCapacity;
+        this.fetcher = fetcher;
+        this.memory = new LinkedHashMap<String, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > SourceCodeCache.this.memoryCapacity;
+            }
+        };
+    }
+
+    public void setFetcher(Fetcher fetcher) {
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * @param key identifies the source, for instance class name and artifact version
+     * @param location called only if the source is neither in memory nor on disk
+     * @return the source code
+     * @throws IOException if the source is not cached and could not be fetched
+     */
+    public String get(String key, Callable<URL> location) throws IOException {
+        String cached = getFromMemory(key);
+        if (cached != null) return cached;
+
+        String stored = isCacheable(key) ? readFromDisk(key) : null;
+        if (stored != null) {
+            Metrics.getDefault().counter("source_cache.disk_hits").increment();
+            remember(key, stored);
+            return stored;
+        }
+
+        CompletableFuture<String> fetch = new CompletableFuture<>();
+        CompletableFuture<String> running = inFlight.putIfAbsent(key, fetch);
+        if (running != null) {
+            return await(running);
+        }
+        Metrics.getDefault().counter("source_cache.fetches").increment();
+        long start = System.nanoTime();
+        try {
+            String content = fetcher.fetch(location.call());
+            if (isCacheable(key)) writeToDisk(key, content);
+            remember(key, content);
+            fetch.complete(content);
+            return content;
+        } catch (Exception e) {
+            fetch.completeExceptionally(e);
+            if (e instanceof IOException) throw (IOException) e;
+            throw new IOException(e);
+        } finally {
+            Metrics.getDefault().timer("source_cache.fetch").recordSince(start);
+            inFlight.remove(key, fetch);
+        }
+    }
+
+    /**
+     * @return the source if it is in the memory tier, null otherwise (the disk is not read)
+     */
+    public String getFromMemory(String key) {
+        synchronized (memory) {
+            String cached = memory.get(key);
+            if (cached != null) Metrics.getDefault().counter("source_cache.memory_hits").increment();
+            return cached;
+        }
+    }
+
+    static String await(CompletableFuture<String> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return false for SNAPSHOT versions, whose sources can change
+     */
+    static boolean isCacheable(String key) {
+        return !key.contains("-SNAPSHOT");
+    }
+
+    void remember(String key, String content) {
+        if (!isCacheable(key)) return;
+        synchronized (memory) {
+            memory.put(key, content);
+        }
+    }
+
+    String readFromDisk(String key) {
+        try {
+            Path ref = directory.resolve("refs").resolve(ScriptCache.hash(key));
+            if (!Files.exists(ref)) return null;
+            String contentHash = new String(Files.readAllBytes(ref), StandardCharsets.UTF_8).trim();
+            Path object = directory.resolve("objects").resolve(contentHash);
+            if (!Files.exists(object)) return null;
+            return new String(Files.readAllBytes(object), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    void writeToDisk(String key, String content) {
+        try {
+            String contentHash = ScriptCache.hash(content);
+            Path object = directory.resolve("objects").resolve(contentHash);
+            if (!Files.exists(object)) {
+                writeAtomically(object, content);
+            }
+            writeAtomically(directory.resolve("refs").resolve(ScriptCache.hash(key)), contentHash);
+        } catch (IOException e) {
+            // The disk tier is best effort: the source is still returned and kept in memory
+            System.err.println("Could not store source " + key + " in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    static void writeAtomically(Path target, String content) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
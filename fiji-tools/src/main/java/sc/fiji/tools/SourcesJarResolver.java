@@ -0,0 +1,273 @@
+package sc.fiji.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Finds the source code of a class in a local *-sources.jar, without any network access.
+ *
+ * The sources jar matching the artifact of a class is looked for next to the class jar, in the
+ * local maven repository, and in the folders listed in the system property {@link #SOURCES_PATH_PROPERTY}.
+ * Sources jars are memory mapped: only their central directory is parsed (once per jar, keeping the
+ * offsets of the .java entries), then only the needed entry is read and inflated.
+ */
+public class SourcesJarResolver {
+
+    public static final String SOURCES_PATH_PROPERTY = "fiji.tools.sources.path";
+
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    private static final SourcesJarResolver DEFAULT = new SourcesJarResolver();
+
+    public static SourcesJarResolver getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Location of an entry in a zip file
+     */
+    static class EntryLocation {
+        final long localHeaderOffset;
+        final long compressedSize;
+        final long size;
+        final int method;
+
+        EntryLocation(long localHeaderOffset, long compressedSize, long size, int method) {
+            this.localHeaderOffset = localHeaderOffset;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.method = method;
+        }
+    }
+
+    static class JarIndex {
+        final long lastModified;
+        final MappedByteBuffer buffer;
+        final Map<String, EntryLocation> entries;
+
+        JarIndex(long lastModified, MappedByteBuffer buffer, Map<String, EntryLocation> entries) {
+            this.lastModified = lastModified;
+            this.buffer = buffer;
+            this.entries = entries;
+        }
+    }
+
+    final Map<Path, JarIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Maven coordinates of the class jars, read once per jar (empty if the jar has no pom.properties)
+     */
+    static final Map<Path, Properties> coordinates = new ConcurrentHashMap<>();
+
+    /**
+     * @return the source code of the (top level) class, or null if no local sources jar contains it
+     */
+    public String find(Class<?> c) {
+        String entryName = c.getName().replaceAll("\\$.*", "").replace('.', '/') + ".java";
+        for (Path sourcesJar : getCandidateSourcesJars(c)) {
+            try {
+                String source = read(sourcesJar, entryName);
+                if (source != null) return source;
+            } catch (IOException | RuntimeException e) {
+                // Unreadable sources jar, try the next one
+            }
+        }
+        return null;
+    }
+
+    static List<Path> getCandidateSourcesJars(Class<?> c) {
+        List<Path> candidates = new ArrayList<>();
+        Path jar;
+        try {
+            jar = Paths.get(c.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            return candidates;
+        }
+        if (!Files.isRegularFile(jar)) return candidates;
+
+        String jarName = jar.getFileName().toString();
+        String sourcesName = jarName.replaceAll("\\.jar$", "") + "-sources.jar";
+        candidates.add(jar.resolveSibling(sourcesName));
+
+        Properties pom = coordinates.computeIfAbsent(jar, j -> {
+            Properties properties = readPomProperties(j, jarName);
+            return properties == null ? new Properties() : properties;
+        });
+        if (!pom.isEmpty()) {
+            String groupId = pom.getProperty("groupId");
+            String artifactId = pom.getProperty("artifactId");
+            String version = pom.getProperty("version");
+            if ((groupId != null) && (artifactId != null) && (version != null)) {
+                sourcesName = artifactId + "-" + version + "-sources.jar";
+                candidates.add(getLocalMavenRepository()
+                        .resolve(groupId.replace('.', File.separatorChar))
+                        .resolve(artifactId).resolve(version).resolve(sourcesName));
+            }
+        }
+
+        String sourcesPath = System.getProperty(SOURCES_PATH_PROPERTY);
+        if (sourcesPath != null) {
+            for (String folder : sourcesPath.split(File.pathSeparator)) {
+                if (!folder.isEmpty()) candidates.add(Paths.get(folder).resolve(sourcesName));
+            }
+        }
+        candidates.removeIf(p -> !Files.isRegularFile(p));
+        return candidates;
+    }
+
+    static Path getLocalMavenRepository() {
+        String repo = System.getProperty("maven.repo.local");
+        if (repo != null) return Paths.get(repo);
+        return Paths.get(System.getProperty("user.home"), ".m2", "repository");
+    }
+
+    /**
+     * @return the maven coordinates of the jar, preferring the pom matching the jar name for shaded jars
+     */
+    static Properties readPomProperties(Path jar, String jarName) {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            Properties first = null;
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.getName().startsWith("META-INF/maven/") || !entry.getName().endsWith("/pom.properties")) continue;
+                Properties properties = new Properties();
+                try (InputStream in = zip.getInputStream(entry)) {
+                    properties.load(in);
+                }
+                String artifactId = properties.getProperty("artifactId", "");
+                if (!artifactId.isEmpty() && jarName.startsWith(artifactId)) return properties;
+                if (first == null) first = properties;
+            }
+            return first;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    String read(Path sourcesJar, String entryName) throws IOException {
+        JarIndex index = getIndex(sourcesJar);
+        EntryLocation location = index.entries.get(entryName);
+        if (location == null) return null;
+        return new String(extract(index.buffer, location), StandardCharsets.UTF_8);
+    }
+
+    JarIndex getIndex(Path sourcesJar) throws IOException {
+        long lastModified = Files.getLastModifiedTime(sourcesJar).toMillis();
+        JarIndex index = indexes.get(sourcesJar);
+        if ((index == null) || (index.lastModified != lastModified)) {
+            index = buildIndex(sourcesJar, lastModified);
+            indexes.put(sourcesJar, index);
+        }
+        return index;
+    }
+
+    static JarIndex buildIndex(Path sourcesJar, long lastModified) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(sourcesJar, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) throw new IOException("Sources jar too large: " + sourcesJar);
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buf = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        // The end of central directory record is at the end of the file, followed by a comment of at most 65535 bytes
+        int eocd = -1;
+        for (int i = buf.limit() - 22; i >= Math.max(0, buf.limit() - 22 - 65535); i--) {
+            if (buf.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new IOException("Not a zip file: " + sourcesJar);
+        int count = buf.getShort(eocd + 10) & 0xFFFF;
+        long centralDirectoryOffset = buf.getInt(eocd + 16) & 0xFFFFFFFFL;
+        if ((count == 0xFFFF) || (centralDirectoryOffset == 0xFFFFFFFFL)) {
+            throw new IOException("Zip64 sources jars are not supported: " + sourcesJar);
+        }
+
+        Map<String, EntryLocation> entries = new HashMap<>();
+        int pos = (int) centralDirectoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (buf.getInt(pos) != CENTRAL_HEADER_SIGNATURE) throw new IOException("Corrupted central directory: " + sourcesJar);
+            int method = buf.getShort(pos + 10) & 0xFFFF;
+            long compressedSize = buf.getInt(pos + 20) & 0xFFFFFFFFL;
+            long size = buf.getInt(pos + 24) & 0xFFFFFFFFL;
+            int nameLength = buf.getShort(pos + 28) & 0xFFFF;
+            int extraLength = buf.getShort(pos + 30) & 0xFFFF;
+            int commentLength = buf.getShort(pos + 32) & 0xFFFF;
+            long localHeaderOffset = buf.getInt(pos + 42) & 0xFFFFFFFFL;
+            byte[] name = new byte[nameLength];
+            ByteBuffer nameBuffer = buf.duplicate();
+            nameBuffer.position(pos + 46);
+            nameBuffer.get(name);
+            String entryName = new String(name, StandardCharsets.UTF_8);
+            if (entryName.endsWith(".java")) {
+                entries.put(entryName, new EntryLocation(localHeaderOffset, compressedSize, size, method));
+            }
+            pos += 46 + nameLength + extraLength + commentLength;
+        }
+        return new JarIndex(lastModified, mapped, Collections.unmodifiableMap(entries));
+    }
+
+    static byte[] extract(MappedByteBuffer mapped, EntryLocation location) throws IOException {
+        ByteBuffer buf = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int header = (int) location.localHeaderOffset;
+        if (buf.getInt(header) != LOCAL_HEADER_SIGNATURE) throw new IOException("Corrupted local header");
+        int nameLength = buf.getShort(header + 26) & 0xFFFF;
+        int extraLength = buf.getShort(header + 28) & 0xFFFF;
+        ByteBuffer data = buf.duplicate();
+        data.position(header + 30 + nameLength + extraLength);
+        data.limit(data.position() + (int) location.compressedSize);
+
+        byte[] content = new byte[(int) location.size];
+        if (location.method == ZipEntry.STORED) {
+            data.get(content);
+            return content;
+        }
+        if (location.method != ZipEntry.DEFLATED) throw new IOException("Unsupported compression method " + location.method);
+        byte[] compressed = new byte[(int) location.compressedSize];
+        data.get(compressed);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            int n = 0;
+            while ((n < content.length) && !inflater.finished()) {
+                int inflated = inflater.inflate(content, n, content.length - n);
+                if ((inflated == 0) && (inflater.needsInput() || inflater.needsDictionary())) break;
+                n += inflated;
+            }
+            if (n != content.length) {
+                throw new IOException("Truncated entry: " + n + " bytes inflated instead of " + content.length);
+            }
+            return content;
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package sc.fiji.tools;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Output of the {@link ResultSerializer}: objects, arrays and simple values, written as JSON
+ * ({@link Json}) or in a binary format ({@link CborWriter}).
+ *
+ * Names and values can be chained as with a {@link JsonWriter}: {@code out.name("width").value(512)}.
+ */
+public interface StructuredWriter extends Flushable {
+
+    StructuredWriter beginObject() throws IOException;
+
+    StructuredWriter endObject() throws IOException;
+
+    StructuredWriter beginArray() throws IOException;
+
+    StructuredWriter endArray() throws IOException;
+
+    StructuredWriter name(String name) throws IOException;
+
+    StructuredWriter value(String value) throws IOException;
+
+    StructuredWriter value(Number value) throws IOException;
+
+    StructuredWriter value(boolean value) throws IOException;
+
+    StructuredWriter nullValue() throws IOException;
+
+    /**
+     * @return true if arrays of primitive numbers can be written as a single packed block, see {@link #packedArray(Object, int)}
+     */
+    boolean writesPackedArrays();
+
+    /**
+     * Writes the first elements of an array of primitive numbers (byte[], short[], char[], int[], long[], float[] or double[])
+     */
+    StructuredWriter packedArray(Object array, int length) throws IOException;
+
+    /**
+     * @return the number of bytes written so far, used to bound the size of the output
+     */
+    long getBytesWritten();
+
+    /**
+     * Writes JSON through a {@link JsonWriter}
+     */
+    class Json implements StructuredWriter {
+
+        final JsonWriter out;
+
+        final ResultSerializer.CountingWriter counter;
+
+        /**
+         * @param counter the writer under the json writer, which counts the bytes written, or null if they are not counted
+         */
+        public Json(JsonWriter out, ResultSerializer.CountingWriter counter) {
+            this.out = out;
+            this.counter = counter;
+        }
+
+        @Override
+        public StructuredWriter beginObject() throws IOException {
+            out.beginObject();
+            return this;
+        }
+
+        @Override
+        public StructuredWriter endObject() throws IOException {
+            out.endObject();
+            return this;
+        }
+
+        @Override
+        public StructuredWriter beginArray() throws IOException {
+            out.beginArray();
+            return this;
+        }
+
+        @Override
+        public StructuredWriter endArray() throws IOException {
+            out.endArray();
+            return this;
+        }
+
+        @Override
+        public StructuredWriter name(String name) throws IOException {
+            out.name(name);
+            return this;
+        }
+
+        @Override
+        public StructuredWriter value(String value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public StructuredWriter value(Number value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public StructuredWriter value(boolean value) throws IOException {
+            out.value(value);
+            return this;
+        }
+
+        @Override
+        public StructuredWriter nullValue() throws IOException {
+            out.nullValue();
+            return this;
+        }
+
+        @Override
+        public boolean writesPackedArrays() {
+            return false;
+        }
+
+        @Override
+        public StructuredWriter packedArray(Object array, int length) {
+            throw new UnsupportedOperationException("JSON has no packed arrays");
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return counter == null ? 0 : counter.bytes;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * Builds a Gson tree, for the Gson serializers of {@link ResultSerializer#GSON}
+     */
+    class Tree implements StructuredWriter {
+
+        final Deque<JsonElement> parents = new ArrayDeque<>();
+
+        String pendingName;
+
+        JsonElement root = JsonNull.INSTANCE;
+
+        void add(JsonElement element) {
+            JsonElement parent = parents.peek();
+            if (parent == null) {
+                root = element;
+            } else if (parent.isJsonArray()) {
+                parent.getAsJsonArray().add(element);
+            } else {
+                parent.getAsJsonObject().add(pendingName, element);
+                pendingName = null;
+            }
+        }
+
+        @Override
+        public StructuredWriter beginObject() {
+            JsonObject object = new JsonObject();
+            add(object);
+            parents.push(object);
+            return this;
+        }
+
+        @Override
+        public StructuredWriter endObject() {
+            parents.pop();
+            return this;
+        }
+
+        @Override
+        public StructuredWriter beginArray() {
+            JsonArray array = new JsonArray();
+            add(array);
+            parents.push(array);
+            return this;
+        }
+
+        @Override
+        public StructuredWriter endArray() {
+            parents.pop();
+            return this;
+        }
+
+        @Override
+        public StructuredWriter name(String name) {
+            pendingName = name;
+            return this;
+        }
+
+        @Override
+        public StructuredWriter value(String value) {
+            add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+            return this;
+        }
+
+        @Override
+        public StructuredWriter value(Number value) {
+            add(value == null ? JsonNull.INSTANCE : new JsonPrimitive(value));
+            return this;
+        }
+
+        @Override
+        public StructuredWriter value(boolean value) {
+            add(new JsonPrimitive(value));
+            return this;
+        }
+
+        @Override
+        public StructuredWriter nullValue() {
+            add(JsonNull.INSTANCE);
+            return this;
+        }
+
+        @Override
+        public boolean writesPackedArrays() {
+            return false;
+        }
+
+        @Override
+        public StructuredWriter packedArray(Object array, int length) {
+            throw new UnsupportedOperationException("JSON has no packed arrays");
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return 0;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * @return what was written
+         */
+        public JsonElement get() {
+            return root;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package sc.fiji.tools;
+
+import ij.ImagePlus;
+import ij.WindowManager;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import ij.plugin.frame.RoiManager;
+import ij.process.FloatPolygon;
+import ij.text.TextWindow;
+
+import java.awt.Frame;
+import java.awt.geom.Rectangle2D;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Exports results tables and ROI sets (ROI Manager, image overlays) column by column to a
+ * memory-mapped file, so that another process (typically NumPy / pandas on the python side) can
+ * map each column without parsing rows.
+ *
+ * Each column is a contiguous array in native byte order, aligned on 8 bytes. Variable length
+ * columns (text, polygon vertices) are stored as in Arrow: the values of all rows in one array,
+ * plus an int32 array of rows + 1 offsets, row i spanning values[offsets[i]:offsets[i + 1]].
+ * Text columns have the dtype "utf8", their values are UTF-8 bytes.
+ */
+public class TableExporter {
+
+    public static final String RESULTS_TABLE = "results_table";
+
+    public static final String ROI_MANAGER = "roi_manager";
+
+    public static final String OVERLAY = "overlay";
+
+    static final int ALIGNMENT = 8;
+
+    /**
+     * A table or ROI set which can be exported
+     */
+    public static class TableInfo {
+        String kind;
+        String title;
+        int rows;
+        List<String> columns;
+    }
+
+    public static class ColumnDescriptor {
+        String name;
+        String dtype;
+        /**
+         * Position of the values in the file, in bytes
+         */
+        long offset;
+        /**
+         * Number of values, equal to the number of rows unless the column has value_offsets
+         */
+        long length;
+        /**
+         * Position of the int32 offsets of variable length columns, null otherwise
+         */
+        Long value_offsets;
+    }
+
+    /**
+     * Describes the exported columns, enough to map them with numpy
+     */
+    public static class TableDescriptor {
+        String path;
+        String kind;
+        String title;
+        /**
+         * Number of rows of the table, the file contains rows [offset, offset + rows)
+         */
+        long total;
+        long offset;
+        long rows;
+        String byte_order;
+        List<ColumnDescriptor> columns;
+    }
+
+    static final List<String> ROI_COLUMNS = Collections.unmodifiableList(Arrays.asList(
+            "name", "type", "x", "y", "width", "height", "position", "channel", "slice", "frame",
+            "vertices_x", "vertices_y"));
+
+    /**
+     * Values of a column: the first length elements of a primitive array
+     */
+    static class Column {
+        final String name;
+        final String dtype;
+        final Object values;
+        final int length;
+        final int[] valueOffsets;
+
+        Column(String name, String dtype, Object values, int length, int[] valueOffsets) {
+            this.name = name;
+            this.dtype = dtype;
+            this.values = values;
+            this.length = length;
+            this.valueOffsets = valueOffsets;
+        }
+    }
+
+    public static final Path DEFAULT_DIRECTORY = Paths.get(System.getProperty("java.io.tmpdir"), "fiji-tools-tables");
+
+    final ExportedFiles files;
+
+    public TableExporter(Path directory) {
+        this.files = new ExportedFiles(directory);
+    }
+
+    /**
+     * @return the results tables (shown in a window, or the system "Results" table), the ROI Manager and the image overlays
+     */
+    public List<TableInfo> list() {
+        List<TableInfo> tables = new ArrayList<>();
+        resultsTables().forEach((title, rt) -> {
+            TableInfo info = new TableInfo();
+            info.kind = RESULTS_TABLE;
+            info.title = title;
+            info.rows = rt.size();
+            info.columns = Arrays.asList(rt.getHeadings());
+            tables.add(info);
+        });
+        RoiManager rm = RoiManager.getInstance();
+        if (rm != null) {
+            tables.add(roiSet(ROI_MANAGER, rm.getTitle(), rm.getCount()));
+        }
+        int[] ids = WindowManager.getIDList();
+        if (ids != null) {
+            for (int id : ids) {
+                ImagePlus imp = WindowManager.getImage(id);
+                if ((imp == null) || (imp.getOverlay() == null) || (imp.getOverlay().size() == 0)) continue;
+                tables.add(roiSet(OVERLAY, imp.getTitle(), imp.getOverlay().size()));
+            }
+        }
+        return tables;
+    }
+
+    static TableInfo roiSet(String kind, String title, int rows) {
+        TableInfo info = new TableInfo();
+        info.kind = kind;
+        info.title = title;
+        info.rows = rows;
+        info.columns = ROI_COLUMNS;
+        return info;
+    }
+
+    /**
+     * Tables by title, in window order; the system table last, if not shown
+     */
+    static Map<String, ResultsTable> resultsTables() {
+        Map<String, ResultsTable> tables = new LinkedHashMap<>();
+        Set<ResultsTable> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Frame[] windows = WindowManager.getNonImageWindows();
+        if (windows != null) {
+            for (Frame window : windows) {
+                if (!(window instanceof TextWindow)) continue;
+                ResultsTable rt = ((TextWindow) window).getResultsTable();
+                if ((rt == null) || (!seen.add(rt))) continue;
+                tables.putIfAbsent(window.getTitle(), rt);
+            }
+        }
+        ResultsTable system = ResultsTable.getResultsTable();
+        if ((system != null) && (system.size() > 0) && seen.add(system)) {
+            tables.putIfAbsent("Results", system);
+        }
+        return tables;
+    }
+
+    /**
+     * @param title title of the table, or null or empty for the system "Results" table
+     * @param offset first exported row
+     * @param limit maximal number of exported rows, or 0 or less for all rows after offset
+     */
+    public TableDescriptor exportResultsTable(String title, int offset, int limit) throws IOException {
+        ResultsTable rt = ((title == null) || title.trim().isEmpty())
+                ? ResultsTable.getResultsTable()
+                : resultsTables().get(title);
+        if (rt == null) throw new IllegalArgumentException("Table " + title + " not found");
+        int total = rt.size();
+        int[] rows = page(offset, limit, total);
+        List<Column> columns = new ArrayList<>();
+        for (String heading : rt.getHeadings()) {
+            columns.add(resultsColumn(rt, heading, rows[0], rows[1]));
+        }
+        return write(RESULTS_TABLE, rt.getTitle() == null ? title : rt.getTitle(), total, rows, columns);
+    }
+
+    /**
+     * @param imageTitle title of the image whose overlay is exported, or null or empty for the ROI Manager
+     * @param offset first exported roi
+     * @param limit maximal number of exported rois, or 0 or less for all rois after offset
+     */
+    public TableDescriptor exportRois(String imageTitle, int offset, int limit) throws IOException {
+        Roi[] rois;
+        String kind;
+        String title;
+        if ((imageTitle == null) || imageTitle.trim().isEmpty()) {
+            RoiManager rm = RoiManager.getInstance();
+            if (rm == null) throw new IllegalArgumentException("The ROI Manager is not opened");
+            rois = rm.getRoisAsArray();
+            kind = ROI_MANAGER;
+            title = rm.getTitle();
+        } else {
+            ImagePlus imp = WindowManager.getImage(imageTitle);
+            if (imp == null) throw new IllegalArgumentException("Image " + imageTitle + " not found");
+            Overlay overlay = imp.getOverlay();
+            rois = overlay == null ? new Roi[0] : overlay.toArray();
+            kind = OVERLAY;
+            title = imp.getTitle();
+        }
+        int[] rows = page(offset, limit, rois.length);
+        return write(kind, title, rois.length, rows, roiColumns(rois, rows[0], rows[1]));
+    }
+
+    /**
+     * @return {first row, number of rows}
+     */
+    static int[] page(int offset, int limit, int total) {
+        if ((offset < 0) || (offset > total)) {
+            throw new IllegalArgumentException("Invalid offset " + offset + ", the table has " + total + " rows");
+        }
+        int n = total - offset;
+        if (limit > 0) n = Math.min(n, limit);
+        return new int[]{offset, n};
+    }
+
+    /**
+     * Numeric columns are exported as float64, columns containing text (and the labels) as utf8
+     */
+    static Column resultsColumn(ResultsTable rt, String heading, int from, int n) {
+        if ("Label".equals(heading)) {
+            String[] labels = new String[n];
+            for (int i = 0; i < n; i++) labels[i] = rt.getLabel(from + i);
+            return strings(heading, labels);
+        }
+        int index = rt.getColumnIndex(heading);
+        double[] values = new double[n];
+        if ((index == ResultsTable.COLUMN_NOT_FOUND) || !rt.columnExists(index)) {
+            Arrays.fill(values, Double.NaN);
+            return new Column(heading, "float64", values, n, null);
+        }
+        // Only the exported rows: getColumnAsDoubles would copy the whole column for each page
+        for (int i = 0; i < n; i++) values[i] = rt.getValueAsDouble(index, from + i);
+        for (int i = 0; i < n; i++) {
+            if (!Double.isNaN(values[i])) continue;
+            // Text cells are stored as NaN
+            String text = rt.getStringValue(index, from + i);
+            if ((text != null) && (!"NaN".equals(text))) {
+                String[] texts = new String[n];
+                for (int j = 0; j < n; j++) texts[j] = rt.getStringValue(index, from + j);
+                return strings(heading, texts);
+            }
+        }
+        return new Column(heading, "float64", values, n, null);
+    }
+
+    static List<Column> roiColumns(Roi[] rois, int from, int n) {
+        String[] names = new String[n];
+        String[] types = new String[n];
+        double[] x = new double[n];
+        double[] y = new double[n];
+        double[] width = new double[n];
+        double[] height = new double[n];
+        int[] position = new int[n];
+        int[] channel = new int[n];
+        int[] slice = new int[n];
+        int[] frame = new int[n];
+        int[] vertexOffsets = new int[n + 1];
+        float[][] polygons = new float[2 * n][];
+        for (int i = 0; i < n; i++) {
+            Roi roi = rois[from + i];
+            names[i] = roi.getName();
+            types[i] = roi.getTypeAsString();
+            Rectangle2D.Double bounds = roi.getFloatBounds();
+            x[i] = bounds.x;
+            y[i] = bounds.y;
+            width[i] = bounds.width;
+            height[i] = bounds.height;
+            position[i] = roi.getPosition();
+            channel[i] = roi.getCPosition();
+            slice[i] = roi.getZPosition();
+            frame[i] = roi.getTPosition();
+            FloatPolygon polygon = roi.getFloatPolygon();
+            int nPoints = polygon == null ? 0 : polygon.npoints;
+            polygons[2 * i] = nPoints == 0 ? new float[0] : polygon.xpoints;
+            polygons[2 * i + 1] = nPoints == 0 ? new float[0] : polygon.ypoints;
+            vertexOffsets[i + 1] = Math.addExact(vertexOffsets[i], nPoints);
+        }
+        float[] verticesX = new float[vertexOffsets[n]];
+        float[] verticesY = new float[vertexOffsets[n]];
+        for (int i = 0; i < n; i++) {
+            int nPoints = vertexOffsets[i + 1] - vertexOffsets[i];
+            System.arraycopy(polygons[2 * i], 0, verticesX, vertexOffsets[i], nPoints);
+            System.arraycopy(polygons[2 * i + 1], 0, verticesY, vertexOffsets[i], nPoints);
+        }
+        List<Column> columns = new ArrayList<>();
+        columns.add(strings("name", names));
+        columns.add(strings("type", types));
+        columns.add(new Column("x", "float64", x, n, null));
+        columns.add(new Column("y", "float64", y, n, null));
+        columns.add(new Column("width", "float64", width, n, null));
+        columns.add(new Column("height", "float64", height, n, null));
+        columns.add(new Column("position", "int32", position, n, null));
+        columns.add(new Column("channel", "int32", channel, n, null));
+        columns.add(new Column("slice", "int32", slice, n, null));
+        columns.add(new Column("frame", "int32", frame, n, null));
+        // Both vertex columns share the same offsets, written once
+        columns.add(new Column("vertices_x", "float32", verticesX, verticesX.length, vertexOffsets));
+        columns.add(new Column("vertices_y", "float32", verticesY, verticesY.length, vertexOffsets));
+        return columns;
+    }
+
+    /**
+     * Null values are written as empty strings
+     */
+    static Column strings(String name, String[] values) {
+        int[] offsets = new int[values.length + 1];
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                byte[] bytes = values[i].getBytes(StandardCharsets.UTF_8);
+                data.write(bytes, 0, bytes.length);
+            }
+            offsets[i + 1] = data.size();
+        }
+        return new Column(name, "utf8", data.toByteArray(), data.size(), offsets);
+    }
+
+    TableDescriptor write(String kind, String title, int total, int[] rows, List<Column> columns) throws IOException {
+        TableDescriptor descriptor = new TableDescriptor();
+        descriptor.kind = kind;
+        descriptor.title = title;
+        descriptor.total = total;
+        descriptor.offset = rows[0];
+        descriptor.rows = rows[1];
+        descriptor.byte_order = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "little" : "big";
+        descriptor.columns = new ArrayList<>();
+
+        // Layout first, to map the file once
+        Map<int[], Long> offsetPositions = new IdentityHashMap<>();
+        long size = 0;
+        for (Column column : columns) {
+            ColumnDescriptor c = new ColumnDescriptor();
+            c.name = column.name;
+            c.dtype = column.dtype;
+            c.length = column.length;
+            if (column.valueOffsets != null) {
+                Long position = offsetPositions.get(column.valueOffsets);
+                if (position == null) {
+                    position = size;
+                    offsetPositions.put(column.valueOffsets, position);
+                    size = align(size + 4L * column.valueOffsets.length);
+                }
+                c.value_offsets = position;
+            }
+            c.offset = size;
+            size = align(size + (long) column.length * DirectBufferOutput.elementSize(column.values));
+            descriptor.columns.add(c);
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The export would take " + size + " bytes, export fewer rows with offset and limit");
+        }
+
+        Path file = files.create("table-", ".columns");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, 1));
+            buffer.order(ByteOrder.nativeOrder());
+            for (Map.Entry<int[], Long> offsets : offsetPositions.entrySet()) {
+                put(buffer, offsets.getValue(), offsets.getKey(), offsets.getKey().length);
+            }
+            for (int i = 0; i < columns.size(); i++) {
+                Column column = columns.get(i);
+                put(buffer, descriptor.columns.get(i).offset, column.values, column.length);
+            }
+        }
+        descriptor.path = file.toAbsolutePath().toString();
+        return descriptor;
+    }
+
+    static long align(long position) {
+        return (position + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Copies the first elements of an array at a position of the file, with a bulk put through a typed view
+     */
+    static void put(MappedByteBuffer file, long position, Object array, int length) {
+        ByteBuffer target = file.duplicate();
+        target.position((int) position);
+        target = target.slice().order(ByteOrder.nativeOrder());
+        if (array instanceof byte[]) {
+            target.put((byte[]) array, 0, length);
+        } else if (array instanceof int[]) {
+            target.asIntBuffer().put((int[]) array, 0, length);
+        } else if (array instanceof float[]) {
+            target.asFloatBuffer().put((float[]) array, 0, length);
+        } else if (array instanceof double[]) {
+            target.asDoubleBuffer().put((double[]) array, 0, length);
+        } else {
+            throw new IllegalArgumentException("Unsupported column array " + array);
+        }
+    }
+
+    /**
+     * Deletes an exported file, only if it is in the export directory
+     * @return true if the file was deleted
+     */
+    public boolean release(String path) throws IOException {
+        return files.release(path);
+    }
+
+    /**
+     * Deletes the exported files which were not released
+     */
+    public void dispose() {
+        files.dispose();
+    }
+}
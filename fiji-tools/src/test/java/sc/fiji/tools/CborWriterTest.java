@@ -0,0 +1,153 @@
+package sc.fiji.tools;
+
+import com.google.gson.internal.LazilyParsedNumber;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Expected bytes are the examples of RFC 8949 appendix A, and RFC 8746 for typed arrays
+ */
+public class CborWriterTest {
+
+    DirectBufferOutput output;
+
+    CborWriter cbor;
+
+    @Before
+    public void setUp() {
+        output = DirectBufferOutput.reused();
+        cbor = new CborWriter(output);
+    }
+
+    String written() {
+        ByteBuffer buffer = output.toBuffer();
+        StringBuilder hex = new StringBuilder();
+        while (buffer.hasRemaining()) hex.append(String.format("%02x", buffer.get() & 0xFF));
+        return hex.toString();
+    }
+
+    String encoded(long value) {
+        setUp();
+        cbor.value(value);
+        return written();
+    }
+
+    @Test
+    public void unsignedIntegersUseTheShortestHead() {
+        assertEquals("00", encoded(0));
+        assertEquals("17", encoded(23));
+        assertEquals("1818", encoded(24));
+        assertEquals("1864", encoded(100));
+        assertEquals("18ff", encoded(255));
+        assertEquals("190100", encoded(256));
+        assertEquals("1903e8", encoded(1000));
+        assertEquals("1a000f4240", encoded(1000000));
+        assertEquals("1b000000e8d4a51000", encoded(1000000000000L));
+        assertEquals("1b7fffffffffffffff", encoded(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void negativeIntegersAreEncodedAsMinusOneMinusN() {
+        assertEquals("20", encoded(-1));
+        assertEquals("29", encoded(-10));
+        assertEquals("37", encoded(-24));
+        assertEquals("3818", encoded(-25));
+        assertEquals("3863", encoded(-100));
+        assertEquals("3903e7", encoded(-1000));
+        assertEquals("3b7fffffffffffffff", encoded(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void floatsKeepTheirPrecision() throws IOException {
+        cbor.value(1.1).value(100000.0f).value(-4.1).value(Double.NaN);
+        assertEquals("fb3ff199999999999a" + "fa47c35000" + "fbc010666666666666" + "fb7ff8000000000000", written());
+    }
+
+    @Test
+    public void integralNumbersOfUnknownTypeAreIntegers() throws IOException {
+        cbor.value(new LazilyParsedNumber("1000")).value(new LazilyParsedNumber("1.5"));
+        assertEquals("1903e8" + "fb3ff8000000000000", written());
+    }
+
+    @Test
+    public void simpleValues() throws IOException {
+        cbor.value(false).value(true).nullValue().value((String) null).value((Number) null);
+        assertEquals("f4f5f6f6f6", written());
+    }
+
+    @Test
+    public void textIsUtf8() throws IOException {
+        cbor.value("").value("a").value("IETF").value("ü").value("水");
+        assertEquals("60" + "6161" + "6449455446" + "62c3bc" + "63e6b0b4", written());
+    }
+
+    @Test
+    public void objectsAndArraysHaveIndefiniteLengths() throws IOException {
+        cbor.beginObject().name("a").value(1).name("b").beginArray().value(2).value(3).endArray().endObject();
+        assertEquals("bf" + "6161" + "01" + "6162" + "9f" + "02" + "03" + "ff" + "ff", written());
+    }
+
+    @Test
+    public void arraysOfNumbersAreLittleEndianTypedArrays() {
+        cbor.packedArray(new byte[]{-1, 2}, 2);
+        assertEquals("d848" + "42" + "ff02", written());
+
+        setUp();
+        cbor.packedArray(new char[]{1, 0xFFFF}, 2);
+        assertEquals("d845" + "44" + "0100ffff", written());
+
+        setUp();
+        cbor.packedArray(new short[]{-2, 5}, 2);
+        assertEquals("d84d" + "44" + "feff0500", written());
+
+        setUp();
+        cbor.packedArray(new int[]{1, 2}, 2);
+        assertEquals("d84e" + "48" + "01000000" + "02000000", written());
+
+        setUp();
+        cbor.packedArray(new long[]{-1}, 1);
+        assertEquals("d84f" + "48" + "ffffffffffffffff", written());
+
+        setUp();
+        cbor.packedArray(new float[]{1.0f}, 1);
+        assertEquals("d855" + "44" + "0000803f", written());
+
+        setUp();
+        cbor.packedArray(new double[]{1.0}, 1);
+        assertEquals("d856" + "48" + "000000000000f03f", written());
+    }
+
+    @Test
+    public void onlyTheFirstElementsArePacked() {
+        cbor.packedArray(new int[]{7, 8, 9}, 1);
+        assertEquals("d84e" + "44" + "07000000", written());
+    }
+
+    @Test
+    public void longTypedArraysHaveALongerLength() {
+        cbor.packedArray(new double[100], 100);
+        String hex = written();
+        // 800 bytes: 0x59 followed by a 2 bytes length
+        assertEquals("d856" + "590320", hex.substring(0, 10));
+        assertEquals(2 + 3 + 800, hex.length() / 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void onlyArraysOfPrimitiveNumbersArePacked() {
+        cbor.packedArray(new boolean[2], 2);
+    }
+
+    @Test
+    public void bytesWrittenAreCountedFromTheWriterCreation() {
+        output.write(0);
+        CborWriter second = new CborWriter(output);
+        second.value(1000);
+        assertEquals(3, second.getBytesWritten());
+        assertEquals(4, output.size());
+    }
+}
@@ -0,0 +1,101 @@
+package sc.fiji.tools;
+
+import org.junit.Test;
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandSearchIndexTest {
+
+    @Plugin(type = Command.class, label = "Gaussian Blur", description = "Blurs an image with a gaussian kernel")
+    public static class GaussianBlur implements Command {
+        @Parameter(label = "Sigma", description = "standard deviation of the gaussian kernel")
+        double sigma;
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Plugin(type = Command.class, label = "Median Filter", description = "Removes noise from an image")
+    public static class MedianFilter implements Command {
+        @Parameter(label = "Radius", description = "radius of the median kernel")
+        int radius;
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Plugin(type = Command.class, label = "Auto Threshold", description = "Creates a mask from an image")
+    public static class AutoThreshold implements Command {
+        @Parameter(label = "Method")
+        String method;
+
+        @Override
+        public void run() {
+        }
+    }
+
+    final CommandSearchIndex index = new CommandSearchIndex(Arrays.asList(
+            CommandDescriptor.of(GaussianBlur.class),
+            CommandDescriptor.of(MedianFilter.class),
+            CommandDescriptor.of(AutoThreshold.class)));
+
+    static String first(List<CommandDescriptor> results) {
+        return results.get(0).getClassName();
+    }
+
+    @Test
+    public void tokensAreSplitOnPackagesAndCamelCase() {
+        assertEquals(Arrays.asList("ch", "epfl", "gaussian", "blur", "filter"),
+                CommandSearchIndex.tokenize("ch.epfl.GaussianBlurFilter a"));
+    }
+
+    @Test
+    public void bestMatchComesFirst() {
+        assertEquals(GaussianBlur.class.getName(), first(index.search("gaussian blur", 3)));
+        assertEquals(MedianFilter.class.getName(), first(index.search("remove noise median", 3)));
+        assertEquals(AutoThreshold.class.getName(), first(index.search("threshold mask", 3)));
+    }
+
+    @Test
+    public void parametersAreIndexed() {
+        List<CommandDescriptor> results = index.search("sigma", 3);
+        assertEquals(1, results.size());
+        assertEquals(GaussianBlur.class.getName(), first(results));
+    }
+
+    @Test
+    public void onlyMatchingCommandsAreReturned() {
+        assertEquals(2, index.search("kernel", 10).size());
+        assertTrue(index.search("watershed", 10).isEmpty());
+        assertTrue(index.search("", 10).isEmpty());
+    }
+
+    @Test
+    public void resultsAreLimitedToK() {
+        assertEquals(3, index.search("image", 10).size());
+        assertEquals(1, index.search("image", 1).size());
+        assertTrue(index.search("image", 0).isEmpty());
+    }
+
+    @Test
+    public void repeatedQueryTermsDoNotChangeTheRanking() {
+        assertEquals(GaussianBlur.class.getName(), first(index.search("gaussian median", 3)));
+        assertEquals(index.search("gaussian median", 3), index.search("gaussian median median median", 3));
+        assertEquals(index.search("kernel gaussian", 3), index.search("Kernel KERNEL gaussian", 3));
+    }
+
+    @Test
+    public void emptyIndexFindsNothing() {
+        assertTrue(new CommandSearchIndex(Collections.emptyList()).search("blur", 10).isEmpty());
+    }
+}
@@ -0,0 +1,147 @@
+package sc.fiji.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class ExecutionBudgetTest {
+
+    static final long WAIT_MS = 10_000;
+
+    /**
+     * Runs the task in a thread of the budget, and waits for the budget to reach a limit
+     */
+    static ExecutionBudget runUntilLimit(ExecutionBudget.Limits limits, Runnable task) throws InterruptedException {
+        ExecutionBudget budget = new ExecutionBudget(limits);
+        CompletableFuture<Object> module = new CompletableFuture<>();
+        Thread thread = budget.newThread(task);
+        budget.start(module);
+        thread.start();
+        thread.join(WAIT_MS);
+        assertFalse("the script thread was not interrupted", thread.isAlive());
+        awaitCancellation(module);
+        budget.release();
+        return budget;
+    }
+
+    /**
+     * The threads are interrupted just before the module is cancelled
+     */
+    static void awaitCancellation(CompletableFuture<?> module) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!module.isCancelled() && (System.currentTimeMillis() < deadline)) Thread.sleep(10);
+        assertTrue(module.isCancelled());
+    }
+
+    static void spinUntilInterrupted() {
+        long x = 0;
+        while (!Thread.currentThread().isInterrupted()) x++;
+        if (x == 42) System.out.println(x);
+    }
+
+    static void allocateUntilInterrupted() {
+        List<byte[]> kept = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            kept.add(new byte[1 << 16]);
+            if (kept.size() > 64) kept.clear();
+        }
+    }
+
+    @Test
+    public void timeoutInterruptsTheScriptThreads() throws InterruptedException {
+        ExecutionBudget budget = runUntilLimit(new ExecutionBudget.Limits(100, 0, 0), () -> {
+            try {
+                Thread.sleep(WAIT_MS);
+            } catch (InterruptedException e) {
+                // Expected
+            }
+        });
+        assertEquals(ExecutionBudget.TIMEOUT, budget.getExceededLimit());
+        assertTrue(budget.describeExceededLimit().contains("100 ms"));
+    }
+
+    @Test
+    public void cpuTimeLimitIsEnforced() throws InterruptedException {
+        assumeTrue(ExecutionBudget.threads.isThreadCpuTimeEnabled());
+        ExecutionBudget budget = runUntilLimit(new ExecutionBudget.Limits(0, 100, 0), ExecutionBudgetTest::spinUntilInterrupted);
+        assertEquals(ExecutionBudget.CPU_TIME, budget.getExceededLimit());
+        assertTrue(budget.getCpuTimeNs() > 100_000_000);
+    }
+
+    @Test
+    public void allocationLimitIsEnforced() throws InterruptedException {
+        assumeTrue(ExecutionBudget.allocatedBytes(Thread.currentThread().getId()) >= 0);
+        ExecutionBudget budget = runUntilLimit(new ExecutionBudget.Limits(0, 0, 16 << 20), ExecutionBudgetTest::allocateUntilInterrupted);
+        assertEquals(ExecutionBudget.ALLOCATED_BYTES, budget.getExceededLimit());
+        assertTrue(budget.getAllocatedBytes() > 16 << 20);
+    }
+
+    @Test
+    public void releasedBudgetWatchesThreadsUntilTheyEnd() throws InterruptedException {
+        ExecutionBudget budget = new ExecutionBudget(new ExecutionBudget.Limits(WAIT_MS, 0, 0));
+        CountDownLatch end = new CountDownLatch(1);
+        Thread thread = budget.newThread(() -> {
+            try {
+                end.await();
+            } catch (InterruptedException e) {
+                // Ends
+            }
+        });
+        budget.start(new CompletableFuture<>());
+        thread.start();
+
+        // The module ended, but a thread it started is still running
+        budget.release();
+        Thread.sleep(3 * ExecutionBudget.CHECK_INTERVAL_MS);
+        assertFalse(budget.check.isCancelled());
+        assertEquals(1, budget.running.get());
+
+        end.countDown();
+        thread.join(WAIT_MS);
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!budget.check.isCancelled() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(ExecutionBudget.CHECK_INTERVAL_MS);
+        }
+        assertTrue(budget.check.isCancelled());
+        assertEquals(0, budget.running.get());
+        assertNull(budget.getExceededLimit());
+    }
+
+    @Test
+    public void threadsIgnoringInterruptionAreStoppedOrReported() throws InterruptedException {
+        ExecutionBudget budget = new ExecutionBudget(new ExecutionBudget.Limits(50, 0, 0));
+        CompletableFuture<Object> module = new CompletableFuture<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread thread = budget.newThread(() -> {
+            while (!stop.get()) {
+                // Ignores its interruption
+            }
+        });
+        budget.start(module);
+        thread.start();
+        awaitCancellation(module);
+
+        List<String> unstopped = budget.stopRunawayThreads(100);
+        if (unstopped.isEmpty()) {
+            // Thread.stop is supported by this runtime
+            thread.join(WAIT_MS);
+            assertFalse(thread.isAlive());
+        } else {
+            assertEquals(thread.getName(), unstopped.get(0));
+            assertTrue(thread.isAlive());
+            stop.set(true);
+            thread.join(WAIT_MS);
+        }
+        budget.release();
+    }
+}
@@ -0,0 +1,81 @@
+package sc.fiji.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ExportedFilesTest {
+
+    Path directory;
+
+    ExportedFiles files;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("exported-files-test");
+        files = new ExportedFiles(directory.resolve("exports"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        files.deleteAll();
+        Files.deleteIfExists(directory.resolve("exports"));
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void releasedFilesAreDeletedAndForgotten() throws IOException {
+        Path file = files.create("test-", ".raw");
+        assertTrue(Files.exists(file));
+        assertEquals(1, files.size());
+
+        assertTrue(files.release(file.toString()));
+        assertFalse(Files.exists(file));
+        assertEquals(0, files.size());
+        assertFalse(files.release(file.toString()));
+    }
+
+    @Test
+    public void filesOutsideTheDirectoryAreNotDeleted() throws IOException {
+        Path outside = Files.createTempFile(directory, "outside-", ".raw");
+        assertFalse(files.release(outside.toString()));
+        assertFalse(files.release(directory.resolve("exports").resolve("..").resolve(outside.getFileName()).toString()));
+        assertTrue(Files.exists(outside));
+        Files.delete(outside);
+    }
+
+    @Test
+    public void filesNotCreatedByTheInstanceAreNotDeleted() throws IOException {
+        ExportedFiles other = new ExportedFiles(directory.resolve("exports"));
+        Path otherFile = other.create("other-", ".raw");
+        Path foreign = Files.createTempFile(directory.resolve("exports"), "foreign-", ".raw");
+        try {
+            assertFalse(files.release(otherFile.toString()));
+            assertFalse(files.release(foreign.toString()));
+            assertTrue(Files.exists(otherFile));
+            assertTrue(Files.exists(foreign));
+            assertTrue(other.release(otherFile.toString()));
+        } finally {
+            other.deleteAll();
+            Files.deleteIfExists(foreign);
+        }
+    }
+
+    @Test
+    public void remainingFilesAreDeletedAtExit() throws IOException {
+        Path first = files.create("test-", ".raw");
+        Path second = files.create("test-", ".raw");
+        files.release(first.toString());
+        files.deleteAll();
+        assertFalse(Files.exists(second));
+        assertEquals(0, files.size());
+    }
+}
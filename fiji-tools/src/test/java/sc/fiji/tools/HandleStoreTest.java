@@ -0,0 +1,172 @@
+package sc.fiji.tools;
+
+import groovy.lang.Binding;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HandleStoreTest {
+
+    static class Point {
+        double x = 1.5;
+        double y = -2;
+        static int ignored = 3;
+    }
+
+    static List<Integer> numbers(int n) {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < n; i++) numbers.add(i);
+        return numbers;
+    }
+
+    @Test
+    public void storedObjectIsReturnedUntilReleased() {
+        HandleStore store = new HandleStore();
+        List<Integer> list = numbers(3);
+        HandleStore.Summary summary = store.put(list);
+        assertTrue(summary.getHandle().matches("_h\\d+"));
+        assertEquals(Long.valueOf(3), summary.getSize());
+        assertSame(list, store.get(summary.getHandle()));
+        assertEquals(1, store.size());
+
+        assertTrue(store.release(summary.getHandle()));
+        assertNull(store.get(summary.getHandle()));
+        assertFalse(store.release(summary.getHandle()));
+        assertEquals(0, store.getKeptBytes());
+    }
+
+    @Test
+    public void simpleValuesAreNotStorable() {
+        assertFalse(HandleStore.isStorable(null));
+        assertFalse(HandleStore.isStorable("text"));
+        assertFalse(HandleStore.isStorable(42));
+        assertTrue(HandleStore.isStorable(new int[1]));
+        assertTrue(HandleStore.isStorable(new Point()));
+    }
+
+    @Test
+    public void leastRecentlyUsedObjectsAreNoLongerKept() {
+        HandleStore store = new HandleStore(Long.MAX_VALUE, 2);
+        Object a = numbers(1), b = numbers(2), c = numbers(3);
+        String ha = store.put(a).getHandle();
+        String hb = store.put(b).getHandle();
+        store.get(ha); // a is now more recent than b
+        String hc = store.put(c).getHandle();
+        assertTrue(store.kept.containsKey(ha));
+        assertFalse(store.kept.containsKey(hb));
+        assertTrue(store.kept.containsKey(hc));
+        // Still reachable through its weak reference, since this test holds it
+        assertSame(b, store.get(hb));
+    }
+
+    @Test
+    public void keptObjectsAreBoundedByTheirEstimatedSize() {
+        long arrayBytes = HandleStore.estimateBytes(new int[100]);
+        assertEquals(64 + 400, arrayBytes);
+        HandleStore store = new HandleStore(2 * arrayBytes, 10);
+        String first = store.put(new int[100]).getHandle();
+        store.put(new int[100]);
+        assertEquals(2 * arrayBytes, store.getKeptBytes());
+        store.put(new int[100]);
+        assertFalse(store.kept.containsKey(first));
+        assertEquals(2 * arrayBytes, store.getKeptBytes());
+    }
+
+    @Test
+    public void newestObjectIsKeptEvenIfLargerThanTheBound() {
+        HandleStore store = new HandleStore(100, 10);
+        double[] large = new double[1000];
+        String handle = store.put(large).getHandle();
+        assertTrue(store.kept.containsKey(handle));
+        assertEquals(64 + 8000, store.getKeptBytes());
+
+        String small = store.put(new byte[10]).getHandle();
+        assertFalse(store.kept.containsKey(handle));
+        assertTrue(store.kept.containsKey(small));
+    }
+
+    @Test
+    public void summaryDescribesArrays() {
+        HandleStore.Summary summary = HandleStore.summarize("_h0", new int[3][4]);
+        assertEquals(Long.valueOf(3), summary.size);
+        assertArrayEquals(new long[]{3, 4}, summary.shape);
+        assertEquals("[[I", summary.class_name);
+        assertEquals(64 + 3 * 8 + 3 * 16, summary.estimated_bytes);
+    }
+
+    @Test
+    public void listIsInspectedPageByPage() {
+        HandleStore store = new HandleStore();
+        String handle = store.put(numbers(10)).getHandle();
+        HandleStore.Page page = store.inspect(handle, "", 2, 3);
+        assertEquals(Long.valueOf(10), page.total);
+        assertEquals(2, page.offset);
+        assertEquals(Arrays.asList(2, 3, 4), page.items);
+
+        HandleStore.Page last = store.inspect(handle, null, 8, 100);
+        assertEquals(Arrays.asList(8, 9), last.items);
+    }
+
+    @Test
+    public void pathLeadsToNestedParts() {
+        HandleStore store = new HandleStore();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("points", new int[][]{{1, 2}, {3, 4}});
+        map.put("origin", new Point());
+        String handle = store.put(map).getHandle();
+
+        HandleStore.Page row = store.inspect(handle, "points.1", 0, 10);
+        assertEquals(Arrays.asList(3, 4), row.items);
+
+        HandleStore.Page value = store.inspect(handle, "points.1.0", 0, 10);
+        assertEquals(3, value.value);
+
+        HandleStore.Page fields = store.inspect(handle, "origin", 0, 10);
+        assertEquals(Long.valueOf(2), fields.total);
+        assertEquals(1.5, fields.entries.get("x"));
+        assertEquals(-2.0, fields.entries.get("y"));
+
+        HandleStore.Page entries = store.inspect(handle, "", 1, 10);
+        assertEquals(Long.valueOf(2), entries.total);
+        assertEquals(Arrays.asList("origin"), new ArrayList<>(entries.entries.keySet()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownHandleIsAnError() {
+        new HandleStore().inspect("_h12345", "", 0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void indexOutOfRangeIsAnError() {
+        HandleStore store = new HandleStore();
+        store.inspect(store.put(numbers(2)).getHandle(), "5", 0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownFieldIsAnError() {
+        HandleStore store = new HandleStore();
+        store.inspect(store.put(new Point()).getHandle(), "z", 0, 10);
+    }
+
+    @Test
+    public void handlesUsedByTheCodeAreBound() {
+        HandleStore store = new HandleStore();
+        List<Integer> list = numbers(2);
+        String handle = store.put(list).getHandle();
+        Binding binding = new Binding();
+        store.bind("return " + handle + ".size() + _h999999", binding);
+        assertSame(list, binding.getVariable(handle));
+        assertFalse(binding.hasVariable("_h999999"));
+    }
+}
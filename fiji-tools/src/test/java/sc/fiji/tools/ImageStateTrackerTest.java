@@ -0,0 +1,143 @@
+package sc.fiji.tools;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The images are never shown: the events are sent to the tracker directly, as ImageJ would
+ */
+public class ImageStateTrackerTest {
+
+    ImageStateTracker tracker;
+
+    @Before
+    public void setUp() {
+        tracker = new ImageStateTracker();
+    }
+
+    @After
+    public void tearDown() {
+        tracker.dispose();
+    }
+
+    static ImagePlus image(String title) {
+        return new ImagePlus(title, new ByteProcessor(4, 4));
+    }
+
+    static String titles(ImageStateTracker.StateDelta delta) {
+        return delta.changed.stream().map(d -> d.title).collect(Collectors.joining(","));
+    }
+
+    @Test
+    public void openedImagesAreReportedInOpeningOrder() {
+        tracker.imageOpened(image("a"));
+        tracker.imageOpened(image("b"));
+        ImageStateTracker.StateDelta delta = tracker.getStateSince(0);
+        assertEquals("a,b", titles(delta));
+        assertEquals(tracker.getVersion(), delta.version);
+        assertFalse(delta.full);
+        assertTrue(delta.closed.isEmpty());
+    }
+
+    @Test
+    public void onlyChangedImagesAreReportedSinceAVersion() {
+        ImagePlus a = image("a");
+        ImagePlus b = image("b");
+        tracker.imageOpened(a);
+        tracker.imageOpened(b);
+        long version = tracker.getVersion();
+        assertTrue(tracker.getStateSince(version).changed.isEmpty());
+
+        b.setTitle("b2");
+        tracker.imageUpdated(b);
+        ImageStateTracker.StateDelta delta = tracker.getStateSince(version);
+        assertEquals("b2", titles(delta));
+        assertTrue(delta.version > version);
+    }
+
+    @Test
+    public void updateWithoutChangeKeepsTheVersionButNotTheModification() {
+        ImagePlus a = image("a");
+        tracker.imageOpened(a);
+        long version = tracker.getVersion();
+        long modification = tracker.getModification(a.getID());
+
+        tracker.imageUpdated(a);
+        assertEquals(version, tracker.getVersion());
+        assertTrue(tracker.getModification(a.getID()) > modification);
+        assertEquals(-1, tracker.getModification(a.getID() - 1000));
+    }
+
+    @Test
+    public void trackersNeverGiveTheSameStampTwice() {
+        ImageStateTracker other = new ImageStateTracker();
+        try {
+            ImagePlus a = image("a");
+            tracker.imageOpened(a);
+            other.imageOpened(a);
+            assertTrue(other.getModification(a.getID()) > tracker.getModification(a.getID()));
+            tracker.imageUpdated(a);
+            assertTrue(tracker.getModification(a.getID()) > other.getModification(a.getID()));
+        } finally {
+            other.dispose();
+        }
+    }
+
+    @Test
+    public void closedImagesAreReportedSinceAVersion() {
+        ImagePlus a = image("a");
+        ImagePlus b = image("b");
+        tracker.imageOpened(a);
+        tracker.imageOpened(b);
+        long version = tracker.getVersion();
+
+        tracker.imageClosed(a);
+        ImageStateTracker.StateDelta delta = tracker.getStateSince(version);
+        assertFalse(delta.full);
+        assertTrue(delta.changed.isEmpty());
+        assertEquals(1, delta.closed.size());
+        assertEquals(a.getID(), delta.closed.get(0).imageId);
+        assertEquals("a", delta.closed.get(0).title);
+        assertEquals("b", titles(tracker.getStateSince(0)));
+        assertEquals(-1, tracker.getModification(a.getID()));
+
+        // Closing an unknown image changes nothing
+        long afterClose = tracker.getVersion();
+        tracker.imageClosed(a);
+        assertEquals(afterClose, tracker.getVersion());
+    }
+
+    @Test
+    public void fullStateIsReturnedWhenClosedImagesWereForgotten() {
+        ImagePlus kept = image("kept");
+        tracker.imageOpened(kept);
+        long version = tracker.getVersion();
+        for (int i = 0; i <= ImageStateTracker.MAX_CLOSED_IMAGES; i++) {
+            ImagePlus imp = image("closed" + i);
+            tracker.imageOpened(imp);
+            tracker.imageClosed(imp);
+        }
+        ImageStateTracker.StateDelta delta = tracker.getStateSince(version);
+        assertTrue(delta.full);
+        assertEquals("kept", titles(delta));
+        assertTrue(delta.closed.isEmpty());
+        assertFalse(tracker.getStateSince(tracker.getVersion()).full);
+    }
+
+    @Test
+    public void fullStateIsReturnedForAnUnknownVersion() {
+        tracker.imageOpened(image("a"));
+        ImageStateTracker.StateDelta delta = tracker.getStateSince(tracker.getVersion() + 1);
+        assertTrue(delta.full);
+        assertEquals("a", titles(delta));
+    }
+}
@@ -0,0 +1,186 @@
+package sc.fiji.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the parallel accumulation of synthetic planes with a single-threaded, two-pass reference
+ */
+public class ImageStatisticsTest {
+
+    static final int PLANE_SIZE = 64 * 64;
+
+    static final int N_PLANES = 13;
+
+    /**
+     * Count, min, max, mean and population variance of the values, with a separate pass for the mean
+     */
+    static double[] reference(List<double[]> planes) {
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        for (double[] plane : planes) {
+            for (double v : plane) {
+                count++;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                sum += v;
+            }
+        }
+        double mean = sum / count;
+        double squares = 0;
+        for (double[] plane : planes) {
+            for (double v : plane) squares += (v - mean) * (v - mean);
+        }
+        return new double[]{count, min, max, mean, squares / count};
+    }
+
+    static long[] referenceHistogram(List<double[]> planes, double min, double max) {
+        long[] histogram = new long[ImageStatistics.HISTOGRAM_BINS];
+        double binsPerUnit = max > min ? ImageStatistics.HISTOGRAM_BINS / (max - min) : 0;
+        for (double[] plane : planes) {
+            for (double v : plane) {
+                histogram[Math.min(ImageStatistics.HISTOGRAM_BINS - 1, (int) ((v - min) * binsPerUnit))]++;
+            }
+        }
+        return histogram;
+    }
+
+    static ImageStatistics.Accumulator accumulate(List<Object> planes, int component, ImageStatistics.Accumulator range) {
+        return ForkJoinPool.commonPool().invoke(new ImageStatistics.PlanesTask(planes, 0, planes.size(), component, range));
+    }
+
+    static void assertMatchesReference(List<Object> planes, List<double[]> values, int component) {
+        double[] expected = reference(values);
+        ImageStatistics.Accumulator moments = accumulate(planes, component, null);
+        assertEquals((long) expected[0], moments.count);
+        assertEquals(expected[1], moments.min, 0);
+        assertEquals(expected[2], moments.max, 0);
+        double tolerance = 1e-9 * Math.max(1, Math.abs(expected[3]));
+        assertEquals(expected[3], moments.mean, tolerance);
+        assertEquals(expected[4], moments.m2 / moments.count, 1e-9 * Math.max(1, expected[4]));
+
+        ImageStatistics.Accumulator histogram = accumulate(planes, component, moments);
+        assertArrayEquals(referenceHistogram(values, expected[1], expected[2]), histogram.histogram);
+    }
+
+    @Test
+    public void bytePlanes() {
+        Random random = new Random(1);
+        List<Object> planes = new ArrayList<>();
+        List<double[]> values = new ArrayList<>();
+        for (int p = 0; p < N_PLANES; p++) {
+            byte[] plane = new byte[PLANE_SIZE];
+            double[] v = new double[PLANE_SIZE];
+            for (int i = 0; i < PLANE_SIZE; i++) {
+                plane[i] = (byte) random.nextInt(256);
+                v[i] = plane[i] & 0xFF;
+            }
+            planes.add(plane);
+            values.add(v);
+        }
+        assertMatchesReference(planes, values, 0);
+    }
+
+    @Test
+    public void shortPlanesWithALargeMean() {
+        Random random = new Random(2);
+        List<Object> planes = new ArrayList<>();
+        List<double[]> values = new ArrayList<>();
+        for (int p = 0; p < N_PLANES; p++) {
+            short[] plane = new short[PLANE_SIZE];
+            double[] v = new double[PLANE_SIZE];
+            for (int i = 0; i < PLANE_SIZE; i++) {
+                // Narrow range far from 0, where a sum of squares would lose the variance
+                plane[i] = (short) (60000 + random.nextInt(16));
+                v[i] = plane[i] & 0xFFFF;
+            }
+            planes.add(plane);
+            values.add(v);
+        }
+        assertMatchesReference(planes, values, 0);
+    }
+
+    @Test
+    public void floatPlanesIgnoreNonFiniteValues() {
+        Random random = new Random(3);
+        List<Object> planes = new ArrayList<>();
+        List<double[]> values = new ArrayList<>();
+        for (int p = 0; p < N_PLANES; p++) {
+            float[] plane = new float[PLANE_SIZE];
+            List<Double> finite = new ArrayList<>();
+            for (int i = 0; i < PLANE_SIZE; i++) {
+                if (i % 97 == 0) {
+                    plane[i] = i % 2 == 0 ? Float.NaN : Float.POSITIVE_INFINITY;
+                } else {
+                    plane[i] = (float) (random.nextGaussian() * 10 - 3);
+                    finite.add((double) plane[i]);
+                }
+            }
+            planes.add(plane);
+            values.add(finite.stream().mapToDouble(Double::doubleValue).toArray());
+        }
+        assertMatchesReference(planes, values, 0);
+    }
+
+    @Test
+    public void rgbComponents() {
+        Random random = new Random(4);
+        List<Object> planes = new ArrayList<>();
+        int[][] pixels = new int[N_PLANES][PLANE_SIZE];
+        for (int p = 0; p < N_PLANES; p++) {
+            for (int i = 0; i < PLANE_SIZE; i++) pixels[p][i] = 0xFF000000 | random.nextInt(1 << 24);
+            planes.add(pixels[p]);
+        }
+        for (int component = 0; component < 3; component++) {
+            List<double[]> values = new ArrayList<>();
+            int shift = 16 - 8 * component;
+            for (int[] plane : pixels) {
+                double[] v = new double[PLANE_SIZE];
+                for (int i = 0; i < PLANE_SIZE; i++) v[i] = (plane[i] >> shift) & 0xFF;
+                values.add(v);
+            }
+            assertMatchesReference(planes, values, component);
+        }
+    }
+
+    @Test
+    public void constantPlanesHaveASingleBin() {
+        List<Object> planes = new ArrayList<>();
+        for (int p = 0; p < N_PLANES; p++) {
+            short[] plane = new short[PLANE_SIZE];
+            Arrays.fill(plane, (short) 7);
+            planes.add(plane);
+        }
+        ImageStatistics.Accumulator moments = accumulate(planes, 0, null);
+        assertEquals(7, moments.mean, 0);
+        assertEquals(0, moments.m2, 0);
+        ImageStatistics.Accumulator histogram = accumulate(planes, 0, moments);
+        assertEquals((long) N_PLANES * PLANE_SIZE, histogram.histogram[0]);
+    }
+
+    @Test
+    public void mergeOfEmptyAccumulatorsKeepsTheOther() {
+        ImageStatistics.Accumulator empty = new ImageStatistics.Accumulator(null);
+        ImageStatistics.Accumulator values = new ImageStatistics.Accumulator(null);
+        values.add(1);
+        values.add(3);
+        empty.merge(values);
+        assertEquals(2, empty.count);
+        assertEquals(2, empty.mean, 0);
+        assertEquals(2, empty.m2, 0);
+        values.merge(new ImageStatistics.Accumulator(null));
+        assertEquals(2, values.count);
+        assertEquals(1, values.min, 0);
+        assertEquals(3, values.max, 0);
+    }
+}
@@ -0,0 +1,156 @@
+package sc.fiji.tools;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the JSON-RPC transport with in-memory channels and test tools: no Fiji instance is needed
+ */
+public class McpServerTest {
+
+    static McpServer server() {
+        McpServer server = new McpServer(null);
+        server.add(new McpServer.Tool("echo", "Returns its text")
+                .param("text", "string", "the text", true)
+                .handler(a -> McpServer.string(a, "text")));
+        server.add(new McpServer.Tool("fail", "Always fails")
+                .handler(a -> FijiTools.errorText("it failed")));
+        server.add(new McpServer.Tool("wait", "Waits until interrupted")
+                .handler(a -> {
+                    try {
+                        Thread.sleep(60_000);
+                        return "not interrupted";
+                    } catch (InterruptedException e) {
+                        return "interrupted";
+                    }
+                }));
+        return server;
+    }
+
+    /**
+     * Serves the lines until the end of the input
+     * @return the messages written by the server
+     */
+    static List<JsonObject> serve(McpServer server, String... lines) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] in = (String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8);
+        server.serve(Channels.newChannel(new ByteArrayInputStream(in)), Channels.newChannel(out));
+        List<JsonObject> messages = new ArrayList<>();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) messages.add(JsonParser.parseString(line).getAsJsonObject());
+        }
+        return messages;
+    }
+
+    static JsonObject response(List<JsonObject> messages, int id) {
+        for (JsonObject message : messages) {
+            JsonElement messageId = message.get("id");
+            if ((messageId != null) && !messageId.isJsonNull() && (messageId.getAsInt() == id)) return message;
+        }
+        return null;
+    }
+
+    static String call(int id, String tool, String arguments) {
+        return "{\"jsonrpc\":\"2.0\",\"id\":" + id + ",\"method\":\"tools/call\",\"params\":{\"name\":\"" + tool
+                + "\",\"arguments\":" + arguments + "}}";
+    }
+
+    @Test
+    public void initializeAndListTools() throws IOException {
+        List<JsonObject> messages = serve(server(),
+                "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"initialize\",\"params\":{\"protocolVersion\":\"2025-03-26\"}}",
+                "{\"jsonrpc\":\"2.0\",\"method\":\"notifications/initialized\"}",
+                "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"tools/list\"}");
+        assertEquals(2, messages.size());
+        JsonObject initialize = response(messages, 1).getAsJsonObject("result");
+        assertEquals("2025-03-26", initialize.get("protocolVersion").getAsString());
+        assertEquals(McpServer.SERVER_NAME, initialize.getAsJsonObject("serverInfo").get("name").getAsString());
+
+        JsonObject echo = null;
+        for (JsonElement tool : response(messages, 2).getAsJsonObject("result").getAsJsonArray("tools")) {
+            if ("echo".equals(tool.getAsJsonObject().get("name").getAsString())) echo = tool.getAsJsonObject();
+        }
+        assertEquals("text", echo.getAsJsonObject("inputSchema").getAsJsonArray("required").get(0).getAsString());
+    }
+
+    @Test
+    public void toolCallsReturnTheirTextAndErrorFlag() throws IOException {
+        List<JsonObject> messages = serve(server(),
+                call(1, "echo", "{\"text\":\"ERROR! is only text here\"}"),
+                call(2, "fail", "{}"),
+                call(3, "echo", "{}"),
+                call(4, "missing", "{}"));
+        JsonObject echo = response(messages, 1).getAsJsonObject("result");
+        assertEquals("ERROR! is only text here", echo.getAsJsonArray("content").get(0).getAsJsonObject().get("text").getAsString());
+        assertFalse(echo.get("isError").getAsBoolean());
+
+        JsonObject fail = response(messages, 2).getAsJsonObject("result");
+        assertEquals("ERROR! it failed", fail.getAsJsonArray("content").get(0).getAsJsonObject().get("text").getAsString());
+        assertTrue(fail.get("isError").getAsBoolean());
+
+        JsonObject invalidArguments = response(messages, 3).getAsJsonObject("result");
+        assertTrue(invalidArguments.get("isError").getAsBoolean());
+        assertTrue(invalidArguments.getAsJsonArray("content").get(0).getAsJsonObject().get("text").getAsString()
+                .contains("Missing argument text"));
+
+        assertEquals(McpServer.INVALID_PARAMS, response(messages, 4).getAsJsonObject("error").get("code").getAsInt());
+    }
+
+    @Test
+    public void invalidMessagesGetErrors() throws IOException {
+        List<JsonObject> messages = serve(server(),
+                "{not json",
+                "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"unknown/method\"}",
+                "{\"jsonrpc\":\"2.0\",\"id\":4}");
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(0).get("id").isJsonNull());
+        assertEquals(McpServer.PARSE_ERROR, messages.get(0).getAsJsonObject("error").get("code").getAsInt());
+        assertEquals(McpServer.METHOD_NOT_FOUND, response(messages, 3).getAsJsonObject("error").get("code").getAsInt());
+        assertEquals(McpServer.INVALID_REQUEST, response(messages, 4).getAsJsonObject("error").get("code").getAsInt());
+    }
+
+    @Test
+    public void cancelledCallsGetNoResponse() throws IOException {
+        long start = System.nanoTime();
+        List<JsonObject> messages = serve(server(),
+                call(5, "wait", "{}"),
+                "{\"jsonrpc\":\"2.0\",\"method\":\"notifications/cancelled\",\"params\":{\"requestId\":5}}",
+                "{\"jsonrpc\":\"2.0\",\"id\":6,\"method\":\"ping\"}");
+        assertNull(response(messages, 5));
+        assertEquals(new JsonObject(), response(messages, 6).getAsJsonObject("result"));
+        // The waiting tool was interrupted, not awaited until the shutdown timeout
+        assertTrue((System.nanoTime() - start) / 1_000_000 < McpServer.SHUTDOWN_TIMEOUT_MS);
+    }
+
+    @Test
+    public void callsInFlightAreAnsweredBeforeServeReturns() throws IOException {
+        McpServer server = server();
+        server.add(new McpServer.Tool("slow", "Answers after a while")
+                .handler(a -> {
+                    try {
+                        Thread.sleep(200);
+                    } catch (InterruptedException e) {
+                        return "interrupted";
+                    }
+                    return "done";
+                }));
+        List<JsonObject> messages = serve(server, call(7, "slow", "{}"));
+        JsonObject slow = response(messages, 7).getAsJsonObject("result");
+        assertEquals("done", slow.getAsJsonArray("content").get(0).getAsJsonObject().get("text").getAsString());
+    }
+}
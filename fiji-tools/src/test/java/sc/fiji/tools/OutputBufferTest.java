@@ -0,0 +1,97 @@
+package sc.fiji.tools;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutputBufferTest {
+
+    final OutputBuffer buffer = new OutputBuffer(8);
+
+    @Test
+    public void emptyBufferReadsNothing() {
+        assertTrue(buffer.isEmpty());
+        OutputBuffer.Chunk chunk = buffer.read(0);
+        assertEquals("", chunk.text);
+        assertEquals(0, chunk.from);
+        assertEquals(0, chunk.to);
+        assertEquals(0, chunk.dropped);
+    }
+
+    @Test
+    public void readsFromAPosition() throws IOException {
+        buffer.write("hello");
+        OutputBuffer.Chunk chunk = buffer.read(2);
+        assertEquals("llo", chunk.text);
+        assertEquals(2, chunk.from);
+        assertEquals(5, chunk.to);
+        assertFalse(buffer.isEmpty());
+    }
+
+    @Test
+    public void incrementalReadsResumeWhereThePreviousStopped() throws IOException {
+        buffer.write("abc");
+        OutputBuffer.Chunk first = buffer.read(0);
+        buffer.write("de");
+        OutputBuffer.Chunk second = buffer.read(first.to);
+        assertEquals("abc", first.text);
+        assertEquals("de", second.text);
+        assertEquals(3, second.from);
+        assertEquals("", buffer.read(second.to).text);
+    }
+
+    @Test
+    public void writesWrapAroundTheRing() throws IOException {
+        buffer.write("012345");
+        buffer.write("6789");
+        assertEquals(10, buffer.getPosition());
+        OutputBuffer.Chunk chunk = buffer.read(0);
+        assertEquals("23456789", chunk.text);
+        assertEquals(2, chunk.from);
+        assertEquals(2, chunk.dropped);
+        // Read across the end of the ring array
+        assertEquals("6789", buffer.read(6).text);
+        assertEquals(0, buffer.read(6).dropped);
+    }
+
+    @Test
+    public void writeLargerThanTheCapacityKeepsTheEnd() throws IOException {
+        buffer.write("abcdefghijklmnopqrstuvwxyz");
+        assertEquals(26, buffer.getPosition());
+        OutputBuffer.Chunk chunk = buffer.read(0);
+        assertEquals("stuvwxyz", chunk.text);
+        assertEquals(18, chunk.dropped);
+        buffer.write("!");
+        assertEquals("tuvwxyz!", buffer.read(18).text);
+        assertEquals(1, buffer.read(18).dropped);
+    }
+
+    @Test
+    public void positionsOutOfRangeAreClamped() throws IOException {
+        buffer.write("abc");
+        OutputBuffer.Chunk after = buffer.read(100);
+        assertEquals("", after.text);
+        assertEquals(3, after.from);
+        assertEquals("abc", buffer.read(-5).text);
+    }
+
+    @Test
+    public void toStringReportsTheDroppedCharacters() throws IOException {
+        buffer.write("abc");
+        assertEquals("abc", buffer.toString());
+        buffer.write("defghijk");
+        assertEquals("[... 3 characters truncated ...]\ndefghijk", buffer.toString());
+    }
+
+    @Test
+    public void printWriterOutputIsCaptured() {
+        PrintWriter out = new PrintWriter(buffer, true);
+        out.println("ok");
+        assertEquals("ok" + System.lineSeparator(), buffer.read(0).text);
+    }
+}
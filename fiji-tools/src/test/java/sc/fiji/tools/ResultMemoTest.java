@@ -0,0 +1,133 @@
+package sc.fiji.tools;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The images are never shown: the image events are sent to the memo directly, as ImageJ would
+ */
+public class ResultMemoTest {
+
+    final ResultMemo memo = new ResultMemo();
+
+    @After
+    public void tearDown() {
+        memo.dispose();
+    }
+
+    static ImagePlus image(String title) {
+        return new ImagePlus(title, new ByteProcessor(8, 8));
+    }
+
+    static FijiTools.ExecutionResult result(Object returned) {
+        FijiTools.ExecutionResult result = new FijiTools.ExecutionResult();
+        result.returnedObject = returned;
+        result.executionSuccess = true;
+        return result;
+    }
+
+    ResultMemo.Key keyOn(String key, ImagePlus imp) {
+        return new ResultMemo.Key(key, new int[]{imp.getID()}, memo.generation.get());
+    }
+
+    @Test
+    public void keyDependsOnTheCode() {
+        assertEquals(memo.key("return 1").key, memo.key("return 1").key);
+        assertNotEquals(memo.key("return 1").key, memo.key("return 2").key);
+    }
+
+    @Test
+    public void listenerIsOnlyRegisteredOnFirstKey() {
+        assertFalse(memo.listening);
+        memo.key("return 1");
+        assertTrue(memo.listening);
+        memo.stopListening();
+        assertFalse(memo.listening);
+    }
+
+    @Test
+    public void resultIsReturnedUntilOneOfItsImagesIsUpdated() {
+        ImagePlus a = image("a");
+        ImagePlus b = image("b");
+        FijiTools.ExecutionResult onA = result(1);
+        FijiTools.ExecutionResult onB = result(2);
+        ResultMemo.Key keyA = keyOn("a", a);
+        ResultMemo.Key keyB = keyOn("b", b);
+        memo.put(keyA, onA);
+        memo.put(keyB, onB);
+        assertSame(onA, memo.get(keyA));
+        assertEquals(1, memo.getHits());
+
+        memo.invalidator.imageUpdated(a);
+        assertNull(memo.get(keyA));
+        assertSame(onB, memo.get(keyB));
+        assertEquals(1, memo.getMisses());
+
+        memo.invalidator.imageClosed(b);
+        assertNull(memo.get(keyB));
+        assertEquals(0, memo.size());
+    }
+
+    @Test
+    public void resultComputedWhileImagesChangedIsNotCached() {
+        ImagePlus a = image("a");
+        ResultMemo.Key key = memo.key("return 1");
+        // An image opened while the script ran: the result may not match the key anymore
+        memo.invalidator.imageOpened(a);
+        memo.put(key, result(1));
+        assertEquals(0, memo.size());
+
+        ResultMemo.Key afterUpdate = keyOn("a", a);
+        memo.invalidator.imageUpdated(a);
+        memo.put(afterUpdate, result(1));
+        assertEquals(0, memo.size());
+
+        ResultMemo.Key current = memo.key("return 1");
+        memo.put(current, result(1));
+        assertEquals(1, memo.size());
+    }
+
+    @Test
+    public void stopListeningDropsTheResults() {
+        ImagePlus a = image("a");
+        memo.put(keyOn("a", a), result(1));
+        ResultMemo.Key pending = keyOn("b", a);
+        memo.stopListening();
+        assertEquals(0, memo.size());
+        memo.put(pending, result(2));
+        assertEquals(0, memo.size());
+    }
+
+    @Test
+    public void fingerprintIsCachedUntilTheImageIsUpdated() {
+        ImagePlus a = image("a");
+        long before = memo.fingerprint(a);
+        a.getProcessor().set(3, 4, 200);
+        // Not notified yet: the cached fingerprint is used
+        assertEquals(before, memo.fingerprint(a));
+        memo.invalidator.imageUpdated(a);
+        assertNotEquals(before, memo.fingerprint(a));
+    }
+
+    @Test
+    public void viewFingerprintDependsOnRoiAndCalibration() {
+        ImagePlus a = image("a");
+        long plain = ResultMemo.viewFingerprint(a);
+        a.setRoi(new Roi(1, 1, 3, 3));
+        long withRoi = ResultMemo.viewFingerprint(a);
+        assertNotEquals(plain, withRoi);
+        a.getCalibration().pixelWidth = 0.5;
+        assertNotEquals(withRoi, ResultMemo.viewFingerprint(a));
+        assertEquals(ResultMemo.computeFingerprint(a), ResultMemo.computeFingerprint(a));
+    }
+}
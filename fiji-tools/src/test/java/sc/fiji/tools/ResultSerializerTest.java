@@ -0,0 +1,158 @@
+package sc.fiji.tools;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResultSerializerTest {
+
+    static class Fields {
+        int a = 1;
+        String _truncated = "data";
+        Object next;
+    }
+
+    static JsonElement parse(ResultSerializer serializer, Object o) {
+        return JsonParser.parseString(serializer.toJson(o));
+    }
+
+    static void assertMarker(JsonElement element, String reason) {
+        assertEquals(reason, element.getAsJsonObject().get(ResultSerializer.TRUNCATION_KEY).getAsString());
+    }
+
+    static List<Integer> numbers(int n) {
+        List<Integer> numbers = new ArrayList<>();
+        for (int i = 0; i < n; i++) numbers.add(i);
+        return numbers;
+    }
+
+    @Test
+    public void smallValuesAreNotTruncated() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("list", numbers(3));
+        map.put("nan", Double.NaN);
+        StringWriter out = new StringWriter();
+        assertFalse(new ResultSerializer().compact().write(map, out));
+        assertEquals("{\"list\":[0,1,2],\"nan\":NaN}", out.toString());
+    }
+
+    @Test
+    public void deepValuesAreReplacedByADepthMarker() {
+        List<Object> nested = Collections.singletonList(Collections.singletonList(Collections.singletonList(1)));
+        JsonElement json = parse(new ResultSerializer(2, 100, 10_000), nested);
+        JsonElement marker = json.getAsJsonArray().get(0).getAsJsonArray().get(0);
+        assertMarker(marker, "maxDepth");
+        assertTrue(marker.getAsJsonObject().get("class").getAsString().startsWith("java.util."));
+    }
+
+    @Test
+    public void arraysListsAndIterablesAreCutAfterMaxElements() {
+        ResultSerializer serializer = new ResultSerializer(8, 3, 10_000);
+        for (Object o : Arrays.asList(new int[10], new Object[10], numbers(10))) {
+            JsonArray array = parse(serializer, o).getAsJsonArray();
+            assertEquals(4, array.size());
+            assertMarker(array.get(3), "maxElements");
+            assertEquals(10, array.get(3).getAsJsonObject().get("total").getAsLong());
+        }
+        Iterable<Integer> iterable = () -> numbers(10).iterator();
+        JsonArray array = parse(serializer, iterable).getAsJsonArray();
+        assertEquals(4, array.size());
+        // The size of an iterable is not known
+        assertFalse(array.get(3).getAsJsonObject().has("total"));
+    }
+
+    @Test
+    public void mapsAreCutAfterMaxElements() {
+        Map<String, Integer> map = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) map.put("k" + i, i);
+        JsonObject json = parse(new ResultSerializer(8, 3, 10_000), map).getAsJsonObject();
+        assertEquals(4, json.size());
+        assertMarker(json.get(ResultSerializer.TRUNCATION_KEY), "maxElements");
+        assertEquals(10, json.get(ResultSerializer.TRUNCATION_KEY).getAsJsonObject().get("total").getAsLong());
+    }
+
+    @Test
+    public void outputStopsAtMaxBytes() {
+        ResultSerializer serializer = new ResultSerializer(8, 100_000, 1000, false);
+        String json = serializer.toJson(numbers(100_000));
+        // The budget is checked before each element: one element and the marker may exceed it
+        assertTrue(json.length() < 1100);
+        JsonArray array = JsonParser.parseString(json).getAsJsonArray();
+        assertMarker(array.get(array.size() - 1), "maxBytes");
+
+        Fields fields = new Fields();
+        fields.next = numbers(100_000);
+        JsonObject object = parse(serializer, Arrays.asList(numbers(300), fields)).getAsJsonArray().get(1).getAsJsonObject();
+        assertMarker(object, "maxBytes");
+    }
+
+    @Test
+    public void longStringsAreCutOnUtf8Bytes() {
+        ResultSerializer serializer = new ResultSerializer(8, 100, 10);
+        String cut = parse(serializer, "\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9").getAsString();
+        assertEquals("\u00e9\u00e9\u00e9\u00e9\u00e9...[_truncated 8 chars]", cut);
+
+        // A surrogate pair is kept whole
+        String emojis = "\ud83d\ude00\ud83d\ude00\ud83d\ude00";
+        cut = parse(new ResultSerializer(8, 100, 6), emojis).getAsString();
+        assertEquals("\ud83d\ude00...[_truncated 6 chars]", cut);
+
+        String fits = "\u00e9\u00e9\u00e9\u00e9\u00e9";
+        assertEquals(10, fits.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(fits, parse(serializer, fits).getAsString());
+    }
+
+    @Test
+    public void cyclesAreReplacedByACycleMarker() {
+        List<Object> list = new ArrayList<>();
+        list.add(1);
+        list.add(list);
+        JsonArray json = parse(new ResultSerializer(), list).getAsJsonArray();
+        assertEquals(1, json.get(0).getAsInt());
+        assertMarker(json.get(1), "cycle");
+
+        // The same object twice, but not in its own path, is not a cycle
+        List<Integer> shared = numbers(2);
+        json = parse(new ResultSerializer(), Arrays.asList(shared, shared)).getAsJsonArray();
+        assertEquals(json.get(0), json.get(1));
+    }
+
+    @Test
+    public void keysLikeTheMarkerAreEscaped() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("_truncated", "a");
+        map.put("__truncated", "b");
+        map.put("truncated", "c");
+        map.put("x", "d");
+        JsonObject json = parse(new ResultSerializer(8, 3, 10_000), map).getAsJsonObject();
+        assertEquals("a", json.get("__truncated").getAsString());
+        assertEquals("b", json.get("___truncated").getAsString());
+        assertEquals("c", json.get("truncated").getAsString());
+        assertMarker(json.get(ResultSerializer.TRUNCATION_KEY), "maxElements");
+
+        JsonObject fields = parse(new ResultSerializer(), new Fields()).getAsJsonObject();
+        assertEquals("data", fields.get("__truncated").getAsString());
+        assertFalse(fields.has(ResultSerializer.TRUNCATION_KEY));
+    }
+
+    @Test
+    public void truncationIsReported() {
+        StringWriter out = new StringWriter();
+        assertTrue(new ResultSerializer(8, 3, 10_000).write(numbers(10), out));
+    }
+}
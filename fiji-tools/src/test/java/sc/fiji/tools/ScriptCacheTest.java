@@ -0,0 +1,70 @@
+package sc.fiji.tools;
+
+import groovy.lang.Script;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class ScriptCacheTest {
+
+    final ScriptCache cache = new ScriptCache(ScriptCacheTest.class.getClassLoader(), 2);
+
+    @Test
+    public void sameCodeIsCompiledOnce() {
+        Class<? extends Script> first = cache.getOrCompile("return 1");
+        Class<? extends Script> second = cache.getOrCompile("return 1");
+        assertSame(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void differentCodeIsCompiledSeparately() {
+        assertNotSame(cache.getOrCompile("return 1"), cache.getOrCompile("return 2"));
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.getHits());
+    }
+
+    @Test
+    public void leastRecentlyUsedScriptIsEvicted() {
+        Class<? extends Script> a = cache.getOrCompile("return 'a'");
+        cache.getOrCompile("return 'b'");
+        cache.getOrCompile("return 'a'"); // b is now the least recently used
+        cache.getOrCompile("return 'c'");
+        assertEquals(2, cache.size());
+
+        assertSame(a, cache.getOrCompile("return 'a'"));
+        long misses = cache.getMisses();
+        cache.getOrCompile("return 'b'");
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void clearEmptiesTheCache() {
+        cache.getOrCompile("return 1");
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.getOrCompile("return 1");
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void scriptParametersAreBlankedKeepingLineNumbers() {
+        String code = "#@ String name\n  #@output Integer n\nprintln name\nn = 1";
+        assertEquals("\n\nprintln name\nn = 1", ScriptCache.stripScriptParameters(code));
+    }
+
+    @Test
+    public void codeWithoutParametersIsUnchanged() {
+        String code = "def a = 1 // #@ in a comment\nreturn a\n";
+        assertEquals(code, ScriptCache.stripScriptParameters(code));
+    }
+
+    @Test
+    public void scriptWithParametersCompiles() {
+        Class<? extends Script> script = cache.getOrCompile("#@ String name\nreturn 42");
+        assertEquals(Script.class, script.getSuperclass());
+    }
+}
@@ -0,0 +1,138 @@
+package sc.fiji.tools;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptJobsTest {
+
+    static final long WAIT_MS = 10_000;
+
+    ScriptJobs jobs;
+
+    @After
+    public void tearDown() {
+        if (jobs != null) jobs.shutdown();
+    }
+
+    /**
+     * Stub runner: prints the code, and returns it
+     */
+    static FijiTools.ExecutionResult echo(String code, OutputBuffer output) {
+        output.write(code.toCharArray(), 0, code.length());
+        FijiTools.ExecutionResult result = new FijiTools.ExecutionResult();
+        result.executionSuccess = true;
+        result.returnedObject = code;
+        return result;
+    }
+
+    ScriptJobs.JobStatus awaitFinished(String id) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MS;
+        ScriptJobs.JobStatus status = jobs.getStatus(id, true);
+        while (!status.state.isFinished() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(5);
+            status = jobs.getStatus(id, true);
+        }
+        assertTrue(status.state.isFinished());
+        return status;
+    }
+
+    @Test
+    public void submittedJobSucceeds() throws InterruptedException {
+        jobs = new ScriptJobs((code, onModuleStarted, output) -> echo(code, output));
+        String id = jobs.submit("return 1");
+        ScriptJobs.JobStatus status = awaitFinished(id);
+        assertEquals(ScriptJobs.State.SUCCEEDED, status.state);
+        assertEquals("return 1", status.result.returnedObject);
+        assertNotNull(status.finishedAt);
+        assertNotNull(status.durationMs);
+        assertEquals(8, status.outputLength);
+        assertEquals("return 1", jobs.getOutput(id, 0).text);
+        assertNull(jobs.getStatus(id, false).result);
+    }
+
+    @Test
+    public void unsuccessfulExecutionEndsFailed() throws InterruptedException {
+        jobs = new ScriptJobs((code, onModuleStarted, output) -> FijiTools.failure(new FijiTools.ExecutionResult(), "syntax"));
+        ScriptJobs.JobStatus status = awaitFinished(jobs.submit("return"));
+        assertEquals(ScriptJobs.State.FAILED, status.state);
+        assertEquals("syntax", status.result.errorMessage);
+    }
+
+    @Test
+    public void throwingRunnerEndsFailed() throws InterruptedException {
+        jobs = new ScriptJobs((code, onModuleStarted, output) -> {
+            throw new IllegalStateException("broken runner");
+        });
+        ScriptJobs.JobStatus status = awaitFinished(jobs.submit("return 1"));
+        assertEquals(ScriptJobs.State.FAILED, status.state);
+        assertNotNull(status.finishedAt);
+        assertFalse(status.result.executionSuccess);
+        assertTrue(status.result.errorMessage.contains("broken runner"));
+    }
+
+    @Test
+    public void cancelStopsTheRunningModule() throws InterruptedException {
+        CompletableFuture<Object> module = new CompletableFuture<>();
+        CountDownLatch started = new CountDownLatch(1);
+        jobs = new ScriptJobs((code, onModuleStarted, output) -> {
+            onModuleStarted.accept(module);
+            started.countDown();
+            try {
+                module.get();
+            } catch (Exception e) {
+                // Cancelled
+            }
+            return FijiTools.failure(new FijiTools.ExecutionResult(), "Execution cancelled");
+        });
+        String id = jobs.submit("while (true) {}");
+        assertTrue(started.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(ScriptJobs.State.RUNNING, jobs.getStatus(id, false).state);
+
+        assertTrue(jobs.cancel(id));
+        assertTrue(module.isCancelled());
+        ScriptJobs.JobStatus status = awaitFinished(id);
+        assertEquals(ScriptJobs.State.CANCELLED, status.state);
+        // The result of the cancelled execution is not kept
+        assertNull(status.result);
+        assertFalse(jobs.cancel(id));
+        assertFalse(jobs.cancel("job-unknown"));
+    }
+
+    @Test
+    public void finishedJobsArePurgedAfterTheRetentionTime() throws InterruptedException {
+        jobs = new ScriptJobs((code, onModuleStarted, output) -> echo(code, output), 50, 100);
+        String id = jobs.submit("return 1");
+        awaitFinished(id);
+        Thread.sleep(100);
+        assertNull(jobs.getStatus(id, false));
+        assertNull(jobs.getOutput(id, 0));
+    }
+
+    @Test
+    public void oldestFinishedJobsArePurgedAboveTheMaximalCount() throws InterruptedException {
+        jobs = new ScriptJobs((code, onModuleStarted, output) -> echo(code, output), WAIT_MS, 2);
+        String[] ids = new String[4];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = jobs.submit("return " + i);
+            awaitFinished(ids[i]);
+            // Distinct finishing times
+            Thread.sleep(2);
+        }
+        jobs.purge();
+        assertEquals(2, jobs.jobs.size());
+        assertNull(jobs.getStatus(ids[0], false));
+        assertNull(jobs.getStatus(ids[1], false));
+        assertNotNull(jobs.getStatus(ids[2], false));
+        assertNotNull(jobs.getStatus(ids[3], false));
+    }
+}
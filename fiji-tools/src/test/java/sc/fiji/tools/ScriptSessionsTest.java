@@ -0,0 +1,77 @@
+package sc.fiji.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ScriptSessionsTest {
+
+    ScriptSessions sessions;
+
+    @Before
+    public void setUp() {
+        sessions = new ScriptSessions(ScriptSessionsTest.class.getClassLoader());
+    }
+
+    @After
+    public void tearDown() {
+        sessions.dispose();
+    }
+
+    @Test
+    public void sessionsAreFoundByName() {
+        ScriptSessions.Session session = sessions.getOrCreate("a");
+        assertSame(session, sessions.getOrCreate("a"));
+        assertNotSame(session, sessions.getOrCreate("b"));
+        assertEquals(2, sessions.list().size());
+    }
+
+    @Test
+    public void closedSessionIsMarkedAndReplaced() {
+        ScriptSessions.Session session = sessions.getOrCreate("a");
+        session.getBinding().setVariable("x", 1);
+        assertTrue(sessions.close("a"));
+        assertTrue(session.isClosed());
+        assertTrue(session.getBinding().getVariables().isEmpty());
+        assertFalse(sessions.close("a"));
+
+        ScriptSessions.Session replacement = sessions.getOrCreate("a");
+        assertNotSame(session, replacement);
+        assertFalse(replacement.isClosed());
+    }
+
+    @Test
+    public void idleSessionsExpireWithoutAnyCall() throws InterruptedException {
+        sessions.setLimits(10, ScriptSessions.DEFAULT_MAX_BYTES);
+        ScriptSessions.Session idle = sessions.getOrCreate("idle");
+        ScriptSessions.Session busy = sessions.getOrCreate("busy");
+        busy.busy = true;
+        Thread.sleep(30);
+        sessions.expireIdleSessions();
+        assertTrue(idle.isClosed());
+        assertFalse(busy.isClosed());
+        assertEquals(Collections.singletonList("busy"), Arrays.asList(sessions.sessions.keySet().toArray()));
+    }
+
+    @Test
+    public void largestVariablesAreRemovedAboveTheBudget() {
+        sessions.setLimits(0, 10_000);
+        ScriptSessions.Session session = sessions.getOrCreate("a");
+        session.getBinding().setVariable("small", new int[10]);
+        session.getBinding().setVariable("large", new int[10_000]);
+        session.getBinding().setVariable("out", new int[10_000]);
+        assertEquals(Collections.singletonList("large"), sessions.afterExecution(session));
+        assertTrue(session.getBinding().hasVariable("small"));
+        assertTrue(session.getBinding().hasVariable("out"));
+        assertEquals(1, session.executions);
+    }
+}
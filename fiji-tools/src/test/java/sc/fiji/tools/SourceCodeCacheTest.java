@@ -0,0 +1,106 @@
+package sc.fiji.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SourceCodeCacheTest {
+
+    Path directory;
+
+    final AtomicInteger fetches = new AtomicInteger();
+
+    final SourceCodeCache.Fetcher fetcher = url -> "source " + fetches.incrementAndGet();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("source-code-cache-test");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    static URL location() throws IOException {
+        return new URL("http://localhost/Source.java");
+    }
+
+    @Test
+    public void sourcesAreFetchedOnceThenReadFromDisk() throws IOException {
+        SourceCodeCache cache = new SourceCodeCache(directory, 4, fetcher);
+        assertEquals("source 1", cache.get("a.B@1.0", SourceCodeCacheTest::location));
+        assertEquals("source 1", cache.get("a.B@1.0", SourceCodeCacheTest::location));
+        assertEquals("source 1", cache.getFromMemory("a.B@1.0"));
+
+        SourceCodeCache restarted = new SourceCodeCache(directory, 4, fetcher);
+        assertEquals("source 1", restarted.get("a.B@1.0", SourceCodeCacheTest::location));
+        assertEquals(1, fetches.get());
+    }
+
+    @Test
+    public void snapshotsAreNotCached() throws IOException {
+        SourceCodeCache cache = new SourceCodeCache(directory, 4, fetcher);
+        assertEquals("source 1", cache.get("a.B@1.0-SNAPSHOT", SourceCodeCacheTest::location));
+        assertEquals("source 2", cache.get("a.B@1.0-SNAPSHOT", SourceCodeCacheTest::location));
+        cache.remember("a.B@1.0-SNAPSHOT", "local");
+        assertNull(cache.getFromMemory("a.B@1.0-SNAPSHOT"));
+        assertEquals("source 3", new SourceCodeCache(directory, 4, fetcher).get("a.B@1.0-SNAPSHOT", SourceCodeCacheTest::location));
+    }
+
+    @Test
+    public void failedAttemptsAreRetriedWithoutWaitingAfterTheLast() {
+        AtomicInteger attempts = new AtomicInteger();
+        SourceCodeCache.HttpFetcher failing = new SourceCodeCache.HttpFetcher(100, 100, 1) {
+            @Override
+            String read(URL url) throws IOException {
+                attempts.incrementAndGet();
+                throw new IOException("HTTP 503 for " + url);
+            }
+        };
+        long start = System.nanoTime();
+        try {
+            failing.fetch(location());
+            fail();
+        } catch (IOException e) {
+            assertEquals("HTTP 503 for http://localhost/Source.java", e.getMessage());
+        }
+        assertEquals(2, attempts.get());
+        // A single 250 ms wait, between the two attempts
+        assertTrue((System.nanoTime() - start) / 1_000_000 < 700);
+    }
+
+    @Test
+    public void clientErrorsAreNotRetried() throws IOException {
+        AtomicInteger attempts = new AtomicInteger();
+        SourceCodeCache.HttpFetcher notFound = new SourceCodeCache.HttpFetcher(100, 100, 3) {
+            @Override
+            String read(URL url) throws IOException {
+                attempts.incrementAndGet();
+                return super.read(url);
+            }
+        };
+        try {
+            notFound.fetch(directory.resolve("Missing.java").toUri().toURL());
+            fail();
+        } catch (FileNotFoundException e) {
+            assertEquals(1, attempts.get());
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package sc.fiji.tools;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SourcesJarResolverTest {
+
+    static final String STORED = "package a;\n\npublic class Stored {\n}\n";
+
+    static final String DEFLATED = "package a.b;\n\n/** Compressible: compressible, compressible, compressible */\npublic class Deflated {\n}\n";
+
+    Path directory;
+
+    Path jar;
+
+    final SourcesJarResolver resolver = new SourcesJarResolver();
+
+    @Before
+    public void writeJar() throws IOException {
+        directory = Files.createTempDirectory("sources-jar-test");
+        jar = directory.resolve("lib-1.0-sources.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(jar))) {
+            zip.setComment("a comment, before which the end of central directory is searched");
+            ZipEntry stored = new ZipEntry("a/Stored.java");
+            byte[] bytes = STORED.getBytes(StandardCharsets.UTF_8);
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(bytes.length);
+            stored.setCompressedSize(bytes.length);
+            stored.setCrc(crc.getValue());
+            zip.putNextEntry(stored);
+            zip.write(bytes);
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("a/b/Deflated.java"));
+            zip.write(DEFLATED.getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            zip.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+            zip.write("Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+        }
+    }
+
+    @After
+    public void deleteJar() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void storedEntryIsRead() throws IOException {
+        assertEquals(STORED, resolver.read(jar, "a/Stored.java"));
+    }
+
+    @Test
+    public void deflatedEntryIsInflated() throws IOException {
+        SourcesJarResolver.EntryLocation location = resolver.getIndex(jar).entries.get("a/b/Deflated.java");
+        assertEquals(ZipEntry.DEFLATED, location.method);
+        assertTrue(location.compressedSize < location.size);
+        assertEquals(DEFLATED, resolver.read(jar, "a/b/Deflated.java"));
+    }
+
+    @Test
+    public void onlyJavaEntriesAreIndexed() throws IOException {
+        assertEquals(2, resolver.getIndex(jar).entries.size());
+        assertNull(resolver.read(jar, "META-INF/MANIFEST.MF"));
+        assertNull(resolver.read(jar, "a/Missing.java"));
+    }
+
+    @Test
+    public void indexIsBuiltOncePerJar() throws IOException {
+        assertTrue(resolver.getIndex(jar) == resolver.getIndex(jar));
+    }
+
+    @Test
+    public void truncatedEntryIsAnError() throws IOException {
+        SourcesJarResolver.JarIndex index = resolver.getIndex(jar);
+        SourcesJarResolver.EntryLocation location = index.entries.get("a/b/Deflated.java");
+        SourcesJarResolver.EntryLocation wrongSize = new SourcesJarResolver.EntryLocation(
+                location.localHeaderOffset, location.compressedSize, location.size + 10, location.method);
+        try {
+            SourcesJarResolver.extract(index.buffer, wrongSize);
+            fail("A partially inflated entry should not be returned");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void notAZipIsAnError() throws IOException {
+        Path text = directory.resolve("text-sources.jar");
+        Files.write(text, "not a zip".getBytes(StandardCharsets.UTF_8));
+        resolver.read(text, "a/Stored.java");
+    }
+
+    @Test
+    public void pomMatchingTheJarNameIsPreferred() throws IOException {
+        Path shaded = directory.resolve("app-2.0.jar");
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(shaded))) {
+            writePom(zip, "org.dependency", "dependency", "1.1");
+            writePom(zip, "org.app", "app", "2.0");
+        }
+        Properties pom = SourcesJarResolver.readPomProperties(shaded, "app-2.0.jar");
+        assertEquals("org.app", pom.getProperty("groupId"));
+        assertEquals("2.0", pom.getProperty("version"));
+        assertNull(SourcesJarResolver.readPomProperties(jar, jar.getFileName().toString()));
+    }
+
+    static void writePom(ZipOutputStream zip, String groupId, String artifactId, String version) throws IOException {
+        zip.putNextEntry(new ZipEntry("META-INF/maven/" + groupId + "/" + artifactId + "/pom.properties"));
+        zip.write(("groupId=" + groupId + "\nartifactId=" + artifactId + "\nversion=" + version + "\n")
+                .getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+}
@@ -0,0 +1,138 @@
+package sc.fiji.tools;
+
+import ij.measure.ResultsTable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TableExporterTest {
+
+    Path directory;
+
+    TableExporter exporter;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("table-exporter-test");
+        exporter = new TableExporter(directory);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        exporter.files.deleteAll();
+        Files.deleteIfExists(directory);
+    }
+
+    @Test
+    public void pageIsBoundedByTheTable() {
+        assertArrayEquals(new int[]{0, 10}, TableExporter.page(0, 0, 10));
+        assertArrayEquals(new int[]{2, 3}, TableExporter.page(2, 3, 10));
+        assertArrayEquals(new int[]{8, 2}, TableExporter.page(8, 5, 10));
+        assertArrayEquals(new int[]{10, 0}, TableExporter.page(10, 5, 10));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void offsetAfterTheTableIsAnError() {
+        TableExporter.page(11, 0, 10);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeOffsetIsAnError() {
+        TableExporter.page(-1, 0, 10);
+    }
+
+    @Test
+    public void stringsAreConcatenatedUtf8WithOffsets() {
+        TableExporter.Column column = TableExporter.strings("name", new String[]{"ab", null, "ü"});
+        assertEquals("utf8", column.dtype);
+        assertEquals(4, column.length);
+        assertArrayEquals(new byte[]{'a', 'b', (byte) 0xC3, (byte) 0xBC}, Arrays.copyOf((byte[]) column.values, column.length));
+        assertArrayEquals(new int[]{0, 2, 2, 4}, column.valueOffsets);
+    }
+
+    @Test
+    public void positionsAreAligned() {
+        assertEquals(0, TableExporter.align(0));
+        assertEquals(8, TableExporter.align(1));
+        assertEquals(8, TableExporter.align(8));
+        assertEquals(16, TableExporter.align(9));
+    }
+
+    @Test
+    public void columnsAreAlignedAndSharedOffsetsWrittenOnce() throws IOException {
+        int[] vertexOffsets = {0, 1, 3};
+        List<TableExporter.Column> columns = Arrays.asList(
+                TableExporter.strings("name", new String[]{"ab", "c"}),
+                new TableExporter.Column("x", "float64", new double[]{1.5, 2.5}, 2, null),
+                new TableExporter.Column("c", "int32", new int[]{7, 8}, 2, null),
+                new TableExporter.Column("vx", "float32", new float[]{1, 2, 3}, 3, vertexOffsets),
+                new TableExporter.Column("vy", "float32", new float[]{4, 5, 6}, 3, vertexOffsets));
+        TableExporter.TableDescriptor descriptor = exporter.write("test", "Test", 5, new int[]{1, 2}, columns);
+        assertEquals(5, descriptor.total);
+        assertEquals(1, descriptor.offset);
+        assertEquals(2, descriptor.rows);
+
+        List<TableExporter.ColumnDescriptor> c = descriptor.columns;
+        assertEquals(Long.valueOf(0), c.get(0).value_offsets);
+        assertEquals(16, c.get(0).offset);
+        assertEquals(3, c.get(0).length);
+        assertNull(c.get(1).value_offsets);
+        assertEquals(24, c.get(1).offset);
+        assertEquals(40, c.get(2).offset);
+        assertEquals(Long.valueOf(48), c.get(3).value_offsets);
+        assertEquals(64, c.get(3).offset);
+        assertEquals(Long.valueOf(48), c.get(4).value_offsets);
+        assertEquals(80, c.get(4).offset);
+        for (TableExporter.ColumnDescriptor column : c) assertEquals(0, column.offset % TableExporter.ALIGNMENT);
+
+        Path file = Paths.get(descriptor.path);
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.nativeOrder());
+        assertEquals(96, data.capacity());
+        assertEquals(2, data.getInt(4));
+        assertEquals(3, data.getInt(8));
+        assertEquals('c', data.get(18));
+        assertEquals(2.5, data.getDouble(32), 0);
+        assertEquals(8, data.getInt(44));
+        assertEquals(3, data.getInt(56));
+        assertEquals(3f, data.getFloat(72), 0);
+        assertEquals(6f, data.getFloat(88), 0);
+
+        assertTrue(exporter.release(descriptor.path));
+        assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void onlyTheExportedRowsAreRead() {
+        ResultsTable rt = new ResultsTable();
+        for (int i = 0; i < 5; i++) {
+            rt.incrementCounter();
+            rt.addValue("Area", 1.5 * i);
+            rt.addValue("Kind", i % 2 == 0 ? "even" : "odd");
+        }
+        TableExporter.Column area = TableExporter.resultsColumn(rt, "Area", 1, 3);
+        assertEquals("float64", area.dtype);
+        assertArrayEquals(new double[]{1.5, 3, 4.5}, (double[]) area.values, 0);
+
+        TableExporter.Column kind = TableExporter.resultsColumn(rt, "Kind", 3, 2);
+        assertEquals("utf8", kind.dtype);
+        assertArrayEquals(new int[]{0, 3, 7}, kind.valueOffsets);
+
+        TableExporter.Column missing = TableExporter.resultsColumn(rt, "Mean", 0, 2);
+        assertArrayEquals(new double[]{Double.NaN, Double.NaN}, (double[]) missing.values, 0);
+    }
+}
@@ -1,3 +1,6 @@
+import os
+import time
+
 import imagej
 
 def get_java_dependencies():
@@ -24,20 +27,34 @@ def get_tools_instance():
 
     if not _fiji_initialized:
         print("Initializing Fiji instance...")
-        ij = imagej.init(get_java_dependencies(), mode="interactive")
-        ij.ui().showUI()
+        # FIJI_MCP_HEADLESS=true: no UI at startup, the script editor is created on first use (if there is a display)
+        headless = os.environ.get('FIJI_MCP_HEADLESS', '').lower() in ('1', 'true', 'yes')
+        start = time.perf_counter()
+        ij = imagej.init(get_java_dependencies(), mode="headless" if headless else "interactive")
+        init_ms = (time.perf_counter() - start) * 1000
+        start = time.perf_counter()
+        if not headless:
+            ij.ui().showUI()
+        ui_ms = (time.perf_counter() - start) * 1000
         from scyjava import jimport
         FijiTools = jimport('sc.fiji.tools.FijiTools')
-        _fiji_tools = FijiTools(ij)
+        _fiji_tools = FijiTools(ij, headless)
+        _fiji_tools.recordStartupPhaseDuration("imagej_init", init_ms)
+        if not headless:
+            _fiji_tools.recordStartupPhaseDuration("show_ui", ui_ms)
+        # FIJI_MCP_ENCODING=compact_json: results without whitespace, smaller than the default indented json
+        encoding = os.environ.get('FIJI_MCP_ENCODING')
+        if encoding:
+            _fiji_tools.setResponseEncoding(JString(encoding))
         _fiji_initialized = True
-        print("Fiji instance initialized!")
+        print("Fiji instance initialized! Startup timings (ms): " + str(_fiji_tools.getStartupTimings()))
 
     return _fiji_tools
 
 from server import mcp
 
 @mcp.tool()
-def get_opened_images_information() -> str:
+def get_opened_images_information(with_statistics: bool = False) -> str:
     """
         Returns the list of already opened images in Fiji and some of their properties (can be empty).
 
@@ -52,18 +69,40 @@ def get_opened_images_information() -> str:
             \\ do things with the image variable
             ```
         Args:
+            with_statistics: if True, also returns the bit depth, calibration and memory footprint of each image, and per channel
+            its min, max, mean, standard deviation and histogram (256 bins between min and max). Statistics are cached until the image changes
         Returns:
             a description of the images currently opened in Fiji as well as the code to retrieve them
     """
-    return get_tools_instance().getCurrentState()
+    return str(get_tools_instance().getCurrentState(with_statistics))
 
 @mcp.tool()
-def execute_groovy(groovy_code: str) -> str:
+def get_opened_images_changes(since_version: int = 0, with_statistics: bool = False) -> str:
+    """
+        Returns only the images opened, changed or closed in Fiji since a previous call, which is much cheaper
+        than get_opened_images_information when many images are opened.
+        Args:
+            since_version: the version returned by the previous call, or 0 to get all opened images
+            with_statistics: if True, the changed images also contain their statistics, as in get_opened_images_information
+        Returns:
+            a json object with the current version ("version"), the descriptions of the images opened or changed ("changed"),
+            the id and title of the closed images ("closed"), and "full": true if all images were returned instead
+            of only the changes, in which case the previous state should be discarded
+    """
+    return str(get_tools_instance().getStateSince(since_version, with_statistics))
+
+@mcp.tool()
+def execute_groovy(groovy_code: str, timeout_ms: int = 0, cpu_time_ms: int = 0, max_allocated_bytes: int = 0, memoize: bool = False) -> str:
     """
         Execute a groovy script in the current opened Fiji instance
         Args:
             groovy_code: the groovy code to execute in the current Fiji instance. You can get some information about an object if you return it at the end of script. For instance
             you can return a String with some information that you want to gather from the script execution
+            timeout_ms: maximal wall clock time of the script, 0 for no limit
+            cpu_time_ms: maximal CPU time of the script and of the threads it starts, 0 for no limit
+            max_allocated_bytes: maximal number of bytes allocated by the script and the threads it starts, 0 for no limit
+            memoize: if True and the same script was already run on the same opened images (same pixels, titles and active image),
+                returns the previous result without running it again. Only for scripts which read images: side effects are not replayed
         Returns:
             Returns a string representation of the returned object from the script if the execution is successful or an explanation of the error if one occurred. The structure is:
             class ExecutionResult:
@@ -71,9 +110,46 @@ def execute_groovy(groovy_code: str) -> str:
                 returnedObject: object = None
                 executionSuccess: bool = False
                 errorMessage: str = None
+                output: str = None  # what the script printed with println, only the end if it printed a lot
+                limitExceeded: str = None  # 'timeout', 'cpu_time' or 'allocated_bytes' if the script was stopped by a limit
+                cpuTimeMs: int = None  # measured only when a limit is set
+                allocatedBytes: int = None  # measured only when a limit is set
+                returnedHandle: dict = None  # handle (e.g. '_h12'), class_name, size, shape of the returned object,
+                    # see inspect_handle; later scripts can use the object as a variable named after the handle.
+                    # returnedObject is null when the object has more elements than the serialization limit
+                memoized: bool = None  # True if the result of a previous execution on the same images was returned
     """
+    if timeout_ms or cpu_time_ms or max_allocated_bytes:
+        return str(get_tools_instance().executeGroovy(JString(groovy_code), timeout_ms, cpu_time_ms, max_allocated_bytes, memoize))
+    if memoize:
+        return str(get_tools_instance().executeGroovy(JString(groovy_code), True))
     return str(get_tools_instance().executeGroovy(JString(groovy_code)))
 
+@mcp.tool()
+def inspect_handle(handle: str, path: str = "", offset: int = 0, limit: int = 100) -> str:
+    """
+        Returns a page of an object returned by a previous script, without recomputing it or sending it entirely
+        Args:
+            handle: the handle of the object, from the returnedHandle of an execution result, for instance '_h12'
+            path: dot separated field names, map keys or indices leading to the part to inspect, for instance 'rois.3.bounds', empty for the object itself
+            offset: index of the first element, entry or field returned
+            limit: maximal number of elements, entries or fields returned
+        Returns:
+            A json page with class_name, total, and items (arrays, collections) or entries (maps, fields of objects), or value for simple values
+    """
+    return str(get_tools_instance().inspectHandle(JString(handle), JString(path), offset, limit))
+
+@mcp.tool()
+def release_handle(handle: str) -> str:
+    """
+        Forgets an object returned by a previous script, so that its memory can be reclaimed
+        Args:
+            handle: the handle of the object, for instance '_h12'
+        Returns:
+            true if the handle was known
+    """
+    return str(get_tools_instance().releaseHandle(JString(handle)))
+
 @mcp.tool()
 def show_or_update_script_in_editor(groovy_code: str, script_title: str) -> None:
     """
@@ -98,3 +174,278 @@ def getScriptFromEditor(script_title: str) -> str:
     """
     return str(get_tools_instance().getScriptFromEditor(JString(script_title)))
 
+
+@mcp.tool()
+def submit_groovy(groovy_code: str) -> str:
+    """
+        Starts the execution of a groovy script in the current opened Fiji instance, without waiting for its end.
+        Use this for long analyses, then poll the job with get_job_status and fetch its result with get_job_result
+        Args:
+            groovy_code: the groovy code to execute in the current Fiji instance
+        Returns:
+            The id of the job
+    """
+    return str(get_tools_instance().submitGroovy(JString(groovy_code)))
+
+@mcp.tool()
+def get_job_status(job_id: str) -> str:
+    """
+        Gets the state (QUEUED, RUNNING, SUCCEEDED, FAILED, CANCELLED) and timestamps of a job started with submit_groovy
+        Args:
+            job_id: the id returned by submit_groovy
+        Returns:
+            The status of the job
+    """
+    return str(get_tools_instance().getJobStatus(JString(job_id)))
+
+@mcp.tool()
+def get_job_result(job_id: str) -> str:
+    """
+        Gets the status of a job started with submit_groovy, together with its ExecutionResult once it is finished.
+        Results are only kept for a limited time after the end of the job
+        Args:
+            job_id: the id returned by submit_groovy
+        Returns:
+            The status of the job, with its result if it is finished
+    """
+    return str(get_tools_instance().getJobResult(JString(job_id)))
+
+@mcp.tool()
+def get_job_output(job_id: str, from_position: int = 0) -> str:
+    """
+        Returns what a job started with submit_groovy printed since a position, to follow it while it runs
+        and cancel it early if it goes wrong
+        Args:
+            job_id: the id returned by submit_groovy
+            from_position: the 'to' position of the previous chunk, or 0 for all the output kept
+        Returns:
+            a json chunk with the printed text, its from and to positions, and the number of characters
+            dropped before being read (only the last 64k characters are kept)
+    """
+    return str(get_tools_instance().getJobOutput(JString(job_id), from_position))
+
+@mcp.tool()
+def cancel_job(job_id: str) -> str:
+    """
+        Cancels a job started with submit_groovy, interrupting the script if it is running
+        Args:
+            job_id: the id returned by submit_groovy
+        Returns:
+            true if the job was cancelled, false if it was already finished or is unknown
+    """
+    return str(get_tools_instance().cancelJob(JString(job_id)))
+
+@mcp.tool()
+def execute_groovy_batch(groovy_codes: list[str], stop_on_error: bool = True) -> str:
+    """
+        Execute several groovy scripts one after the other in the current opened Fiji instance, in a single call.
+        The scripts share their variables: a variable assigned without 'def' in a script can be used by the following scripts
+        Args:
+            groovy_codes: the groovy scripts to execute, in order
+            stop_on_error: if True, the scripts following a failing script are skipped
+        Returns:
+            A json array with one ExecutionResult per script, each with its execution time in milliseconds
+    """
+    from scyjava import to_java
+    return str(get_tools_instance().executeGroovyBatch(to_java([str(code) for code in groovy_codes]), stop_on_error))
+
+@mcp.tool()
+def execute_groovy_in_session(session: str, groovy_code: str) -> str:
+    """
+        Execute a groovy script in a named session of the current opened Fiji instance, as in a REPL: variables assigned
+        without 'def', closures and classes defined by the previous scripts of the session can be used.
+        The session is created on first use, and closed after a long idle time
+        Args:
+            session: the name of the session
+            groovy_code: the groovy code to execute
+        Returns:
+            The ExecutionResult as json, see execute_groovy. If the variables of the session use too much memory,
+            the largest ones are removed and listed in evictedVariables
+    """
+    return str(get_tools_instance().executeGroovyInSession(JString(session), JString(groovy_code)))
+
+@mcp.tool()
+def list_sessions() -> str:
+    """
+        Lists the opened sessions
+        Returns:
+            A json array with, for each session, its name, number of executions, idle time, estimated memory and the class of each variable
+    """
+    return str(get_tools_instance().getSessions())
+
+@mcp.tool()
+def close_session(session: str) -> str:
+    """
+        Closes a session, forgetting its variables and classes
+        Args:
+            session: the name of the session
+        Returns:
+            true if the session was opened
+    """
+    return str(get_tools_instance().closeSession(JString(session)))
+
+@mcp.tool()
+def search_commands(query: str, k: int = 10) -> str:
+    """
+        Searches the SciJava commands available in Fiji, by class name, label, description and parameters
+        Args:
+            query: words describing what you are looking for, for instance "gaussian blur" or "register atlas slices"
+            k: maximal number of commands returned
+        Returns:
+            A json array of the best matching commands, best first, with their inputs and outputs.
+            You can then run a command in a groovy script, with the CommandService for instance
+    """
+    return str(get_tools_instance().searchCommands(JString(query), k))
+
+@mcp.tool()
+def export_pixels(image_title: str, c: int = 0, z: int = 0, t: int = 0, roi: str = "") -> str:
+    """
+        Writes the pixels of an image (or of a region of it) to a raw file, much faster than returning them from a groovy script
+        Args:
+            image_title: title of the opened image
+            c: channel (starting at 1), or 0 for all channels
+            z: slice (starting at 1), or 0 for all slices
+            t: timepoint (starting at 1), or 0 for all timepoints
+            roi: "x,y,width,height" of the region to export in each plane, or an empty string for the full plane
+        Returns:
+            a json descriptor of the file: path, offset, dtype, shape as (t, z, c, y, x), strides in bytes and byte_order.
+            Call release_pixels with the path once the file is not needed anymore
+    """
+    return str(get_tools_instance().exportPixels(JString(image_title), c, z, t, JString(roi)))
+
+@mcp.tool()
+def release_pixels(path: str) -> str:
+    """
+        Deletes a file written by export_pixels
+        Args:
+            path: the path of the descriptor returned by export_pixels
+        Returns:
+            true if the file was deleted
+    """
+    return str(get_tools_instance().releasePixels(JString(path)))
+
+@mcp.tool()
+def list_tables() -> str:
+    """
+        Lists the results tables, the ROI Manager and the image overlays
+        Returns:
+            a json list with, for each of them, its kind ("results_table", "roi_manager" or "overlay"), title, number of rows and columns.
+            They can be exported with export_table and export_rois
+    """
+    return str(get_tools_instance().listTables())
+
+@mcp.tool()
+def export_table(title: str = "", offset: int = 0, limit: int = 0) -> str:
+    """
+        Writes the columns of a results table to a raw file, much faster than returning its rows from a groovy script
+        Args:
+            title: title of the table, or an empty string for the "Results" table
+            offset: first exported row
+            limit: maximal number of exported rows, or 0 for all rows after offset
+        Returns:
+            a json descriptor of the file: path, total number of rows, offset, rows, byte_order and for each column
+            its name, dtype ("float64" or "utf8" for text), offset and length in the file, and value_offsets for text columns.
+            Call release_table with the path once the file is not needed anymore
+    """
+    return str(get_tools_instance().exportResultsTable(JString(title), offset, limit))
+
+@mcp.tool()
+def export_rois(image_title: str = "", offset: int = 0, limit: int = 0) -> str:
+    """
+        Writes the rois of the ROI Manager or of an image overlay to a raw file, one row per roi
+        Args:
+            image_title: title of the image whose overlay is exported, or an empty string for the ROI Manager
+            offset: first exported roi
+            limit: maximal number of exported rois, or 0 for all rois after offset
+        Returns:
+            a json descriptor as for export_table, with the columns name, type, x, y, width, height, position,
+            channel, slice, frame, vertices_x and vertices_y (polygon vertices, one list per roi).
+            Call release_table with the path once the file is not needed anymore
+    """
+    return str(get_tools_instance().exportRois(JString(image_title), offset, limit))
+
+@mcp.tool()
+def release_table(path: str) -> str:
+    """
+        Deletes a file written by export_table or export_rois
+        Args:
+            path: the path of the descriptor returned by export_table or export_rois
+        Returns:
+            true if the file was deleted
+    """
+    return str(get_tools_instance().releaseTable(JString(path)))
+
+def encoded_bytes(buffer) -> bytes:
+    """
+        Copies a buffer returned by the *Encoded methods of FijiTools (e.g. executeGroovyEncoded(code, "cbor")).
+        The buffer is reused by the next encoding of the same java thread, so it must be copied before.
+        CBOR responses encode arrays of numbers as RFC 8746 typed arrays (little endian), which cbor2 returns as tagged byte strings
+        Not exposed as an MCP tool, since tool results are text: it is meant for python code calling FijiTools through JPype
+    """
+    return bytes(memoryview(buffer))
+
+def load_exported_pixels(descriptor):
+    """
+    Maps the file written by export_pixels as a numpy array, without copying it
+    :param descriptor: the json descriptor returned by export_pixels, as a string or a dict
+    :return: a read-only numpy array of shape (t, z, c, y, x)
+    """
+    import json
+    import numpy as np
+    if isinstance(descriptor, str):
+        descriptor = json.loads(descriptor)
+    dtype = np.dtype(descriptor['dtype']).newbyteorder('<' if descriptor['byte_order'] == 'little' else '>')
+    shape = tuple(descriptor['shape'])
+    buffer = np.memmap(descriptor['path'], dtype=np.uint8, mode='r')
+    return np.ndarray(shape, dtype=dtype, buffer=buffer, offset=descriptor['offset'],
+                      strides=tuple(descriptor['strides']))
+
+def load_exported_table(descriptor):
+    """
+    Maps the file written by export_table or export_rois, column by column
+    :param descriptor: the json descriptor returned by export_table or export_rois, as a string or a dict
+    :return: a dict of columns, which can be given to pandas.DataFrame: numeric columns are read-only numpy arrays
+    mapping the file, text columns lists of str, and vertex columns lists of numpy arrays (one per roi)
+    """
+    import json
+    import numpy as np
+    if isinstance(descriptor, str):
+        descriptor = json.loads(descriptor)
+    order = '<' if descriptor['byte_order'] == 'little' else '>'
+    buffer = np.memmap(descriptor['path'], dtype=np.uint8, mode='r')
+    rows = descriptor['rows']
+    columns = {}
+    for column in descriptor['columns']:
+        dtype = np.dtype(np.uint8 if column['dtype'] == 'utf8' else column['dtype']).newbyteorder(order)
+        values = np.ndarray((column['length'],), dtype=dtype, buffer=buffer, offset=column['offset'])
+        if column.get('value_offsets') is None:
+            columns[column['name']] = values
+            continue
+        offsets = np.ndarray((rows + 1,), dtype=np.dtype(np.int32).newbyteorder(order), buffer=buffer,
+                             offset=column['value_offsets'])
+        if column['dtype'] == 'utf8':
+            data = values.tobytes()
+            columns[column['name']] = [data[offsets[i]:offsets[i + 1]].decode('utf-8') for i in range(rows)]
+        else:
+            columns[column['name']] = [values[offsets[i]:offsets[i + 1]] for i in range(rows)]
+    return columns
+
+@mcp.tool()
+def get_metrics() -> str:
+    """
+        Returns performance metrics of the Fiji tools: latency histograms (count, mean, approximate p50, p95, p99 and max in ms)
+        of script compilation and execution, result serialization, editor operations, image state queries and source code lookups,
+        result sizes, error counters and cache statistics
+        Returns:
+            the metrics as json
+    """
+    return str(get_tools_instance().getMetrics())
+
+@mcp.tool()
+def get_startup_timings() -> str:
+    """
+        Returns how long each phase of the startup of Fiji took
+        Returns:
+            a json object with the duration in ms of each startup phase
+    """
+    return str(get_tools_instance().getStartupTimings())